@@ -0,0 +1,117 @@
+package com.benchmarks;
+
+import com.ULDB;
+import com.examples.model.Apple;
+import com.examples.model.ApplePackage;
+import com.examples.model.Basket;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Creates objects used by benchmarks.
+ * Field mix decides which model class is used:
+ * - simple - Apple, only primitive and String fields
+ * - reference - ApplePackage, BigDecimal field and reference to Apple
+ * - list - Basket, list of Strings and list of two Apples
+ * - synthetic - SyntheticRecord, wide record with every supported kind of field (not used by JMH benchmarks)
+ */
+public final class BenchmarkData {
+
+    public static final String SIMPLE = "simple";
+    public static final String REFERENCE = "reference";
+    public static final String LIST = "list";
+    public static final String SYNTHETIC = "synthetic";
+
+    private static final String[] COLORS = {"GREEN", "RED", "YELLOW"};
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Returns class stored for field mix.
+     */
+    public static Class<?> storedClass(String fieldMix) {
+        switch (fieldMix) {
+            case SIMPLE:
+                return Apple.class;
+            case REFERENCE:
+                return ApplePackage.class;
+            case LIST:
+                return Basket.class;
+            case SYNTHETIC:
+                return SyntheticRecord.class;
+            default:
+                throw new IllegalArgumentException("Unknown field mix: " + fieldMix);
+        }
+    }
+
+    /**
+     * Creates new, not saved object for field mix.
+     *
+     * @param fieldMix field mix
+     * @param seed     value used to vary fields
+     * @return new object
+     */
+    public static Object newObject(String fieldMix, int seed) {
+        switch (fieldMix) {
+            case SIMPLE:
+                return newApple(seed);
+            case REFERENCE:
+                ApplePackage applePackage = new ApplePackage();
+                applePackage.setApple(newApple(seed));
+                applePackage.setPrice(BigDecimal.valueOf(seed % 1000, 2));
+                return applePackage;
+            case LIST:
+                Basket basket = new Basket();
+                basket.getApples().add(newApple(seed));
+                basket.getApples().add(newApple(seed + 1));
+                basket.getCollectors().add("Adam");
+                basket.getCollectors().add("Collector " + (seed % 100));
+                return basket;
+            case SYNTHETIC:
+                return newSyntheticRecord(seed);
+            default:
+                throw new IllegalArgumentException("Unknown field mix: " + fieldMix);
+        }
+    }
+
+    /**
+     * Clears database and fills it with records without saving to local drive.
+     *
+     * @param fieldMix field mix
+     * @param records  number of stored objects of field mix class
+     */
+    public static void fill(String fieldMix, int records) {
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.clearData();
+        for (int i = 0; i < records; i++) {
+            ULDB.saveOrUpdate(newObject(fieldMix, i));
+        }
+    }
+
+    private static SyntheticRecord newSyntheticRecord(int seed) {
+        SyntheticRecord record = new SyntheticRecord();
+        record.setName("Record " + seed);
+        record.setDescription("Synthetic record " + seed + " with some longer text; it contains separators: # and ;");
+        record.setStatus(SyntheticRecord.Status.values()[seed % SyntheticRecord.Status.values().length]);
+        record.setQuantity(seed % 1000);
+        record.setScore(seed * 31L);
+        record.setPriority((short) (seed % 10));
+        record.setActive(seed % 2 == 0);
+        record.setAmount(BigDecimal.valueOf(seed % 100000, 2));
+        record.setCreated(LocalDate.of(2020, 1, 1).plusDays(seed % 1000));
+        record.setUpdated(LocalDateTime.of(2020, 1, 1, 0, 0).plusMinutes(seed));
+        record.getTags().add(COLORS[seed % COLORS.length]);
+        record.getTags().add("tag" + (seed % 50));
+        return record;
+    }
+
+    private static Apple newApple(int seed) {
+        Apple apple = new Apple();
+        apple.setColor(COLORS[seed % COLORS.length]);
+        apple.setWeight(100 + seed % 150);
+        return apple;
+    }
+}
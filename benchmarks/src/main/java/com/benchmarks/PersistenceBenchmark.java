@@ -0,0 +1,53 @@
+package com.benchmarks;
+
+import com.ULDB;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures saveData and loadData of whole database file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+public class PersistenceBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    public int records;
+
+    @Param({BenchmarkData.SIMPLE, BenchmarkData.REFERENCE, BenchmarkData.LIST})
+    public String fieldMix;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("uldb-benchmark", ".txt");
+        ULDB.setFilename(file.getAbsolutePath());
+        BenchmarkData.fill(fieldMix, records);
+        ULDB.saveData();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ULDB.clearData();
+        file.delete();
+    }
+
+    @Benchmark
+    public void saveData() {
+        ULDB.saveData();
+    }
+
+    @Benchmark
+    public void loadData() {
+        ULDB.clearData();
+        ULDB.loadData();
+    }
+}
@@ -0,0 +1,50 @@
+package com.benchmarks;
+
+import com.ULDB;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures get and getAll on filled database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+public class ReadBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    public int records;
+
+    @Param({BenchmarkData.SIMPLE, BenchmarkData.REFERENCE, BenchmarkData.LIST})
+    public String fieldMix;
+
+    private Class<?> storedClass;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkData.fill(fieldMix, records);
+        storedClass = BenchmarkData.storedClass(fieldMix);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ULDB.clearData();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object get() {
+        return ULDB.get(storedClass, ThreadLocalRandom.current().nextLong(1, records + 1));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<?> getAll() {
+        return ULDB.getAll(storedClass);
+    }
+}
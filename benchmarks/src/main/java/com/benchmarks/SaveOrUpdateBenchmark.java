@@ -0,0 +1,61 @@
+package com.benchmarks;
+
+import com.ULDB;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures saveOrUpdate of new objects and of already stored objects.
+ * Automatic save is disabled, so only in-memory work is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+public class SaveOrUpdateBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    public int records;
+
+    @Param({BenchmarkData.SIMPLE, BenchmarkData.REFERENCE, BenchmarkData.LIST})
+    public String fieldMix;
+
+    private Object storedObject;
+    private int seed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkData.fill(fieldMix, records);
+        storedObject = ULDB.get(BenchmarkData.storedClass(fieldMix), (long) records / 2);
+    }
+
+    /**
+     * Removes objects added by insert in previous iteration, so every iteration inserts into database
+     * of the same size and memory does not grow with number of iterations.
+     */
+    @Setup(Level.Iteration)
+    public void resetInserted() {
+        if (seed > 0) {
+            setUp();
+            seed = 0;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ULDB.clearData();
+    }
+
+    @Benchmark
+    public long insert() {
+        return ULDB.saveOrUpdate(BenchmarkData.newObject(fieldMix, seed++));
+    }
+
+    @Benchmark
+    public long update() {
+        return ULDB.saveOrUpdate(storedObject);
+    }
+}
@@ -0,0 +1,350 @@
+package com.benchmarks;
+
+import com.ULDB;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long running load test: many threads run mix of reads, writes and deletes against one database,
+ * while autosave (or periodic saveData) rewrites data file. Unlike JMH benchmarks it shows how saving
+ * interacts with sustained load.
+ * Options are given as name=value (eg. "threads=8 duration=3600 mix=read:70,write:25,delete:5"):
+ * - threads - number of threads running operations (default 4)
+ * - duration - run time in seconds (default 60)
+ * - interval - reporting interval in seconds (default 5)
+ * - records - number of objects saved before start (default 10000)
+ * - mix - percent of operations of each type (default read:70,write:25,delete:5)
+ * - fieldMixes - used field mixes of BenchmarkData (default simple,reference,list,synthetic)
+ * - actionLimit - setActionLimitBeforeSaving during run (default 1000)
+ * - flushInterval - milliseconds between saveData calls made by separate thread, 0 to disable (default 0)
+ * - file - data file (default soak-data.txt)
+ * - output - prefix of result files (default soak-result-date)
+ * Results are saved as output.csv (one line per interval, written during run) and output.json
+ * (options, intervals and summary of whole run), so runs of different versions can be compared.
+ */
+public class SoakDriver {
+
+    private static final String[] OPERATIONS = {"read", "write", "delete"};
+    private static final int READ = 0;
+    private static final int WRITE = 1;
+    private static final int DELETE = 2;
+
+    private final Map<String, String> options = new LinkedHashMap<>();
+    private final int threads;
+    private final long durationMillis;
+    private final long intervalMillis;
+    private final int records;
+    private final int[] mix = new int[OPERATIONS.length];
+    private final String[] fieldMixes;
+    private final int actionLimit;
+    private final long flushIntervalMillis;
+    private final File file;
+    private final String output;
+
+    private final AtomicLong[] maxIds;
+    private final ULDB.LatencyHistogram[] totalLatencies = newHistograms();
+    private volatile ULDB.LatencyHistogram[] intervalLatencies = newHistograms();
+    private volatile boolean running = true;
+    private final List<Map<String, Object>> intervals = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        new SoakDriver(args).run();
+    }
+
+    private SoakDriver(String[] args) {
+        options.put("threads", "4");
+        options.put("duration", "60");
+        options.put("interval", "5");
+        options.put("records", "10000");
+        options.put("mix", "read:70,write:25,delete:5");
+        options.put("fieldMixes", String.join(",", BenchmarkData.SIMPLE, BenchmarkData.REFERENCE, BenchmarkData.LIST, BenchmarkData.SYNTHETIC));
+        options.put("actionLimit", "1000");
+        options.put("flushInterval", "0");
+        options.put("file", "soak-data.txt");
+        options.put("output", "soak-result-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()));
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0 || !options.containsKey(arg.substring(0, separator))) {
+                throw new IllegalArgumentException("Unknown option: " + arg + ", known options: " + options.keySet());
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        threads = Integer.parseInt(options.get("threads"));
+        durationMillis = Long.parseLong(options.get("duration")) * 1000;
+        intervalMillis = Long.parseLong(options.get("interval")) * 1000;
+        records = Integer.parseInt(options.get("records"));
+        for (String part : options.get("mix").split(",")) {
+            String[] operation = part.split(":");
+            int index = Arrays.asList(OPERATIONS).indexOf(operation[0]);
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown operation: " + operation[0]);
+            }
+            mix[index] = Integer.parseInt(operation[1]);
+        }
+        fieldMixes = options.get("fieldMixes").split(",");
+        for (String fieldMix : fieldMixes) {
+            BenchmarkData.storedClass(fieldMix);
+        }
+        actionLimit = Integer.parseInt(options.get("actionLimit"));
+        flushIntervalMillis = Long.parseLong(options.get("flushInterval"));
+        file = new File(options.get("file"));
+        output = options.get("output");
+
+        maxIds = new AtomicLong[fieldMixes.length];
+        for (int i = 0; i < maxIds.length; i++) {
+            maxIds[i] = new AtomicLong();
+        }
+    }
+
+    private void run() throws Exception {
+        ULDB.setFilename(file.getPath());
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.clearData();
+        for (int i = 0; i < records; i++) {
+            int fieldMix = i % fieldMixes.length;
+            long id = ULDB.saveOrUpdate(BenchmarkData.newObject(fieldMixes[fieldMix], i));
+            maxIds[fieldMix].accumulateAndGet(id, Math::max);
+        }
+        ULDB.saveData();
+        ULDB.setActionLimitBeforeSaving(actionLimit);
+        System.out.println("Running " + options);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            long seed = i;
+            workers.add(new Thread(() -> runOperations(new Random(seed)), "soak-worker-" + i));
+        }
+        if (flushIntervalMillis > 0) {
+            workers.add(new Thread(this::flushPeriodically, "soak-flusher"));
+        }
+        workers.forEach(Thread::start);
+
+        try (Writer csv = new OutputStreamWriter(new FileOutputStream(output + ".csv"), StandardCharsets.UTF_8)) {
+            long start = System.nanoTime();
+            Snapshot previous = new Snapshot();
+            boolean header = true;
+            while (System.nanoTime() - start < durationMillis * 1_000_000) {
+                Thread.sleep(intervalMillis);
+                ULDB.LatencyHistogram[] latencies = intervalLatencies;
+                intervalLatencies = newHistograms();
+                Snapshot current = new Snapshot();
+                Map<String, Object> interval = describeInterval((System.nanoTime() - start) / 1_000_000_000.0, latencies, previous, current);
+                previous = current;
+                intervals.add(interval);
+
+                if (header) {
+                    csv.write(String.join(",", interval.keySet()) + "\n");
+                    header = false;
+                }
+                List<String> values = new ArrayList<>();
+                for (Object value : interval.values()) {
+                    values.add(format(value));
+                }
+                csv.write(String.join(",", values) + "\n");
+                csv.flush();
+                System.out.println(interval);
+            }
+        }
+
+        running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        ULDB.saveData();
+        writeJson();
+        System.out.println("Results saved to " + output + ".csv and " + output + ".json");
+    }
+
+    private void runOperations(Random random) {
+        while (running) {
+            int fieldMix = random.nextInt(fieldMixes.length);
+            Class<?> storedClass = BenchmarkData.storedClass(fieldMixes[fieldMix]);
+            int operation = pickOperation(random.nextInt(100));
+            long start = System.nanoTime();
+            switch (operation) {
+                case READ:
+                    ULDB.get(storedClass, randomId(fieldMix, random));
+                    break;
+                case WRITE:
+                    // half of writes update existing object
+                    Object existing = random.nextBoolean() ? ULDB.get(storedClass, randomId(fieldMix, random)) : null;
+                    Object object = existing != null ? existing : BenchmarkData.newObject(fieldMixes[fieldMix], random.nextInt(1_000_000));
+                    maxIds[fieldMix].accumulateAndGet(ULDB.saveOrUpdate(object), Math::max);
+                    break;
+                default:
+                    Object deleted = ULDB.get(storedClass, randomId(fieldMix, random));
+                    if (deleted != null) {
+                        ULDB.delete(deleted);
+                    }
+            }
+            long nanos = System.nanoTime() - start;
+            intervalLatencies[operation].record(nanos);
+            totalLatencies[operation].record(nanos);
+        }
+    }
+
+    private void flushPeriodically() {
+        while (running) {
+            try {
+                Thread.sleep(flushIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            ULDB.saveData();
+        }
+    }
+
+    private int pickOperation(int percent) {
+        int limit = 0;
+        for (int i = 0; i < mix.length; i++) {
+            limit += mix[i];
+            if (percent < limit) {
+                return i;
+            }
+        }
+        return READ;
+    }
+
+    private long randomId(int fieldMix, Random random) {
+        return 1 + (long) (random.nextDouble() * Math.max(1, maxIds[fieldMix].get()));
+    }
+
+    private Map<String, Object> describeInterval(double elapsedSeconds, ULDB.LatencyHistogram[] latencies,
+                                                 Snapshot previous, Snapshot current) {
+        double seconds = (current.nanoTime - previous.nanoTime) / 1_000_000_000.0;
+        Map<String, Object> interval = new LinkedHashMap<>();
+        interval.put("elapsed_s", elapsedSeconds);
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            interval.put(OPERATIONS[i] + "_ops_s", latencies[i].getCount() / seconds);
+        }
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            putPercentiles(interval, OPERATIONS[i], latencies[i]);
+        }
+        long flushes = current.flushCount - previous.flushCount;
+        interval.put("flushes", flushes);
+        interval.put("flush_mean_ms", flushes == 0 ? 0.0 : (current.flushMillis - previous.flushMillis) / flushes);
+        interval.put("flush_max_ms", current.flushMaxMillis);
+        interval.put("file_bytes", current.fileBytes);
+        interval.put("heap_used_bytes", current.heapUsedBytes);
+        interval.put("gc_count", current.gcCount - previous.gcCount);
+        interval.put("gc_time_ms", current.gcMillis - previous.gcMillis);
+        interval.put("errors", current.errors - previous.errors);
+        return interval;
+    }
+
+    private static void putPercentiles(Map<String, Object> values, String operation, ULDB.LatencyHistogram histogram) {
+        values.put(operation + "_p50_ms", histogram.getP50Millis());
+        values.put(operation + "_p99_ms", histogram.getP99Millis());
+        values.put(operation + "_p999_ms", histogram.getP999Millis());
+    }
+
+    private void writeJson() throws IOException {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            summary.put(OPERATIONS[i] + "_ops", totalLatencies[i].getCount());
+            summary.put(OPERATIONS[i] + "_ops_s", totalLatencies[i].getCount() / (durationMillis / 1000.0));
+            putPercentiles(summary, OPERATIONS[i], totalLatencies[i]);
+            summary.put(OPERATIONS[i] + "_max_ms", totalLatencies[i].getMaxMillis());
+        }
+        ULDB.LatencyHistogram flushLatency = ULDB.getMetrics().getSaveDataLatency();
+        summary.put("flushes", flushLatency.getCount());
+        summary.put("flush_mean_ms", flushLatency.getMeanMillis());
+        summary.put("flush_p99_ms", flushLatency.getP99Millis());
+        summary.put("flush_max_ms", flushLatency.getMaxMillis());
+        Snapshot end = new Snapshot();
+        summary.put("file_bytes", end.fileBytes);
+        summary.put("gc_count", end.gcCount);
+        summary.put("gc_time_ms", end.gcMillis);
+        summary.put("errors", end.errors);
+
+        StringBuilder json = new StringBuilder("{\n  \"options\": {");
+        appendJson(json, new LinkedHashMap<>(options));
+        json.append("},\n  \"intervals\": [");
+        for (int i = 0; i < intervals.size(); i++) {
+            json.append(i == 0 ? "\n    {" : ",\n    {");
+            appendJson(json, intervals.get(i));
+            json.append("}");
+        }
+        json.append("\n  ],\n  \"summary\": {");
+        appendJson(json, summary);
+        json.append("}\n}\n");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(output + ".json"), StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        }
+    }
+
+    private static void appendJson(StringBuilder json, Map<String, ?> values) {
+        boolean first = true;
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (!first) {
+                json.append(", ");
+            }
+            first = false;
+            json.append('"').append(entry.getKey()).append("\": ");
+            if (entry.getValue() instanceof Number) {
+                json.append(format(entry.getValue()));
+            } else {
+                json.append('"').append(entry.getValue().toString().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+        }
+    }
+
+    private static String format(Object value) {
+        if (value instanceof Double) {
+            return String.format(Locale.ROOT, "%.6f", (Double) value);
+        }
+        return value.toString();
+    }
+
+    private static ULDB.LatencyHistogram[] newHistograms() {
+        ULDB.LatencyHistogram[] histograms = new ULDB.LatencyHistogram[OPERATIONS.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new ULDB.LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    /**
+     * Counters read at the end of interval, intervals report differences between two snapshots.
+     */
+    private final class Snapshot {
+        private final long nanoTime = System.nanoTime();
+        private final long flushCount;
+        private final double flushMillis;
+        private final double flushMaxMillis;
+        private final long fileBytes = file.length();
+        private final long heapUsedBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        private final long errors = ULDB.getMetrics().getErrorCount();
+        private long gcCount;
+        private long gcMillis;
+
+        private Snapshot() {
+            ULDB.LatencyHistogram flushLatency = ULDB.getMetrics().getSaveDataLatency();
+            flushCount = flushLatency.getCount();
+            flushMillis = flushLatency.getMeanMillis() * flushCount;
+            flushMaxMillis = flushLatency.getMaxMillis();
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcCount += Math.max(0, collector.getCollectionCount());
+                gcMillis += Math.max(0, collector.getCollectionTime());
+            }
+        }
+    }
+}
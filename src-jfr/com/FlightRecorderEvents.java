@@ -0,0 +1,171 @@
+package com;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events of ULDB, in category "ULDB". Events are created only while any recording
+ * is running, so they cost one volatile read otherwise. Default thresholds can be changed by recording
+ * settings, eg. {@code recording.enable("com.ULDB.SaveCascade").withThreshold(Duration.ofMillis(1))}.
+ * This class is compiled only by JDK with Flight Recorder, ULDB loads it by name.
+ */
+final class FlightRecorderEvents implements ULDB.EventRecorder {
+
+    FlightRecorderEvents() {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                update(recorder);
+            }
+
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                update(FlightRecorder.getFlightRecorder());
+            }
+        });
+    }
+
+    private static void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording recording : recorder.getRecordings()) {
+            running |= recording.getState() == RecordingState.RUNNING;
+        }
+        ULDB.setFlightRecording(running);
+    }
+
+    @Override
+    public Object beginFlush() {
+        FlushEvent event = new FlushEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endFlush(Object flushEvent, String engine, long records, long bytes) {
+        FlushEvent event = (FlushEvent) flushEvent;
+        event.end();
+        if (event.shouldCommit()) {
+            event.engine = engine;
+            event.records = records;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginLoadSection() {
+        LoadSectionEvent event = new LoadSectionEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endLoadSection(Object loadEvent, String objectClass, long records, long bytes) {
+        LoadSectionEvent event = (LoadSectionEvent) loadEvent;
+        event.end();
+        if (event.shouldCommit()) {
+            event.objectClass = objectClass;
+            event.records = records;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginSaveCascade() {
+        SaveCascadeEvent event = new SaveCascadeEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endSaveCascade(Object cascadeEvent, String objectClass, int graphSize) {
+        SaveCascadeEvent event = (SaveCascadeEvent) cascadeEvent;
+        event.end();
+        if (event.shouldCommit()) {
+            event.objectClass = objectClass;
+            event.graphSize = graphSize;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void exception(Exception e) {
+        ExceptionEvent event = new ExceptionEvent();
+        if (event.shouldCommit()) {
+            event.exceptionClass = e.getClass().getName();
+            event.message = e.getMessage();
+            event.commit();
+        }
+    }
+
+    @Name("com.ULDB.Flush")
+    @Label("ULDB Flush")
+    @Category("ULDB")
+    @Description("Data saved by storage engine")
+    @Threshold("0 ms")
+    static final class FlushEvent extends Event {
+        @Label("Storage Engine")
+        String engine;
+
+        @Label("Records")
+        @Description("Saved objects, only changed ones for engines saving changes")
+        long records;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.ULDB.LoadSection")
+    @Label("ULDB Load Section")
+    @Category("ULDB")
+    @Description("Section of one class read from data file")
+    @Threshold("0 ms")
+    static final class LoadSectionEvent extends Event {
+        @Label("Class")
+        String objectClass;
+
+        @Label("Records")
+        long records;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.ULDB.SaveCascade")
+    @Label("ULDB Slow Save")
+    @Category("ULDB")
+    @Description("saveOrUpdate of object with its new children that took longer than threshold")
+    @Threshold("10 ms")
+    static final class SaveCascadeEvent extends Event {
+        @Label("Class")
+        String objectClass;
+
+        @Label("Graph Size")
+        @Description("Number of saved objects, object with its new children")
+        int graphSize;
+    }
+
+    @Name("com.ULDB.Exception")
+    @Label("ULDB Exception")
+    @Category("ULDB")
+    @Description("Exception handled by ULDB, counted as error in metrics")
+    static final class ExceptionEvent extends Event {
+        @Label("Exception Class")
+        String exceptionClass;
+
+        @Label("Message")
+        String message;
+    }
+}
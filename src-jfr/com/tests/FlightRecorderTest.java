@@ -0,0 +1,67 @@
+package com.tests;
+
+import com.ULDB;
+import com.examples.model.Apple;
+import com.examples.model.ApplePackage;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks Flight Recorder events of ULDB. Compiled only by JDK with Flight Recorder and run by {@link Test}.
+ */
+public class FlightRecorderTest {
+
+    public static void main(String... args) {
+        ULDB.setFilename("tmp.txt");
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.loadData();
+        List<RecordedEvent> events = new ArrayList<>();
+        try (Recording recording = new Recording()) {
+            recording.enable("com.ULDB.Flush");
+            recording.enable("com.ULDB.LoadSection");
+            recording.enable("com.ULDB.SaveCascade").withThreshold(Duration.ZERO);
+            recording.enable("com.ULDB.Exception");
+            recording.start();
+
+            ApplePackage applePackage = new ApplePackage();
+            applePackage.setApple(new Apple());
+            ULDB.saveOrUpdate(applePackage);
+            ULDB.clearData();
+            ULDB.setLazyLoading(true);
+            ULDB.loadData();
+            ULDB.get(Apple.class, 1L);
+            ULDB.project(Apple.class, "size");
+
+            recording.stop();
+            Path file = Files.createTempFile("uldb", ".jfr");
+            recording.dump(file);
+            events.addAll(RecordingFile.readAllEvents(file));
+            Files.delete(file);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        assertThat(events.stream().anyMatch(event -> event.getEventType().getName().equals("com.ULDB.Flush")
+                && event.getLong("records") == 2 && event.getLong("bytes") > 0 && event.getString("engine").equals("TextFileEngine")));
+        assertThat(events.stream().anyMatch(event -> event.getEventType().getName().equals("com.ULDB.SaveCascade")
+                && event.getInt("graphSize") == 2 && event.getString("objectClass").equals(ApplePackage.class.getName())));
+        assertThat(events.stream().anyMatch(event -> event.getEventType().getName().equals("com.ULDB.LoadSection")
+                && event.getLong("records") == 1 && event.getString("objectClass").equals(Apple.class.getName())));
+        assertThat(events.stream().anyMatch(event -> event.getEventType().getName().equals("com.ULDB.Exception")
+                && event.getString("exceptionClass").equals(IllegalArgumentException.class.getName())));
+
+        ULDB.setLazyLoading(false);
+        ULDB.deleteAllData();
+    }
+
+    private static void assertThat(boolean isValid) {
+        if (!isValid) throw new AssertionError();
+    }
+}
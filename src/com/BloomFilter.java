@@ -0,0 +1,49 @@
+package com;
+
+/**
+ * Bloom filter with 10 bits and 7 hashes per key (about 1% false positives).
+ */
+final class BloomFilter {
+    private static final int HASHES = 7;
+
+    final long[] bits;
+
+    BloomFilter(int keys) {
+        this.bits = new long[Math.max(1, (keys * 10 + 63) / 64)];
+    }
+
+    BloomFilter(long[] bits) {
+        this.bits = bits;
+    }
+
+    void add(String key) {
+        long bitCount = bits.length * 64L;
+        int h1 = key.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(String key) {
+        long bitCount = bits.length * 64L;
+        int h1 = key.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return (h ^ (h >>> 16)) | 1;
+    }
+}
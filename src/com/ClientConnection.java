@@ -0,0 +1,298 @@
+package com;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.ULDB.collectObjectsForSave;
+import static com.ULDB.convertObjectToString;
+import static com.ULDB.convertToObject;
+import static com.ULDB.getClassMetadata;
+import static com.ULDB.getId;
+import static com.ULDB.handleException;
+import static com.ULDB.isValidForSave;
+
+/**
+ * Connection, request queue and response reader of {@link ULDB.Client}.
+ */
+final class ClientConnection implements AutoCloseable {
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final Thread reader;
+    private final Map<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final ByteArrayOutputStream queued = new ByteArrayOutputStream();
+    private boolean writing;
+    private volatile boolean closed;
+
+    ClientConnection(SocketChannel channel) {
+        this.channel = channel;
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+        this.reader = new Thread(this::readResponses, "ULDB-client");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Returns object from database.
+     *
+     * @param objectClass class of searched object
+     * @param id          id of object
+     * @return object filled with data or null if object do not exist
+     */
+    public <T> T get(Class<T> objectClass, Long id) {
+        List<T> objects = get(objectClass, Collections.singletonList(id));
+        return objects.isEmpty() ? null : objects.get(0);
+    }
+
+    /**
+     * Returns objects with given ids. All requests are sent before first response is read.
+     *
+     * @param objectClass class of searched objects
+     * @param ids         ids of objects
+     * @return objects in order of ids, null for objects that do not exist; empty list when request fails
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> get(Class<T> objectClass, Collection<Long> ids) {
+        try {
+            List<CompletableFuture<ByteBuffer>> responses = new ArrayList<>(ids.size());
+            for (Long id : ids) {
+                Request request = new Request(Protocol.GET);
+                Protocol.writeString(request.out, objectClass.getName());
+                request.out.writeLong(id);
+                responses.add(send(request));
+            }
+            List<T> objects = new ArrayList<>(ids.size());
+            for (CompletableFuture<ByteBuffer> response : responses) {
+                ByteBuffer body = await(response);
+                objects.add(body.get() != 0 ? (T) convertToObject(Protocol.readString(body)) : null);
+            }
+            return objects;
+        } catch (Exception e) {
+            handleException(e);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Returns all objects of specified class from database.
+     *
+     * @param objectClass class of object
+     * @return all objects of specified class
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getAll(Class<T> objectClass) {
+        List<T> list = new ArrayList<>();
+        try {
+            Request request = new Request(Protocol.GET_ALL);
+            Protocol.writeString(request.out, objectClass.getName());
+            ByteBuffer body = await(send(request));
+            for (int i = body.getInt(); i > 0; i--) {
+                list.add((T) convertToObject(Protocol.readString(body)));
+            }
+        } catch (Exception e) {
+            handleException(e);
+        }
+        return list;
+    }
+
+    /**
+     * Add object to database or update existing one. New children are saved as well, like by
+     * {@link ULDB#saveOrUpdate(Object)}, and ids assigned by server are set to sent objects.
+     *
+     * @param obj object for adding
+     * @return id of saved object or -1 if object is not valid for save or request failed
+     */
+    public long saveOrUpdate(Object obj) {
+        return saveOrUpdateAll(Collections.singletonList(obj))[0];
+    }
+
+    /**
+     * Saves many objects with one request.
+     *
+     * @param objects objects for adding
+     * @return ids of saved objects, -1 for objects not valid for save or all of them when request failed
+     */
+    public long[] saveOrUpdateAll(List<?> objects) {
+        long[] ids = new long[objects.size()];
+        Arrays.fill(ids, -1L);
+        List<Object> graph = new ArrayList<>();
+        Set<Object> collected = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Object obj : objects) {
+            if (isValidForSave(obj)) {
+                for (Object graphObject : collectObjectsForSave(obj)) {
+                    if (collected.add(graphObject)) {
+                        graph.add(graphObject);
+                    }
+                }
+            }
+        }
+        if (graph.isEmpty()) {
+            return ids;
+        }
+        List<Object> newObjects = new ArrayList<>();
+        try {
+            // new objects get temporary negative ids, so objects referring to them can be sent as text
+            for (Object obj : graph) {
+                if (getId(obj) < 1) {
+                    newObjects.add(obj);
+                    getClassMetadata(obj.getClass()).setId(obj, -newObjects.size());
+                }
+            }
+            Request request = new Request(Protocol.SAVE);
+            request.out.writeInt(graph.size());
+            for (Object obj : graph) {
+                Protocol.writeString(request.out, convertObjectToString(obj));
+            }
+            ByteBuffer body = await(send(request));
+            for (Object obj : graph) {
+                getClassMetadata(obj.getClass()).setId(obj, body.getLong());
+            }
+            for (int i = 0; i < ids.length; i++) {
+                if (isValidForSave(objects.get(i))) {
+                    ids[i] = getId(objects.get(i));
+                }
+            }
+        } catch (Exception e) {
+            handleException(e);
+            Arrays.fill(ids, -1L);
+            for (Object obj : newObjects) {
+                try {
+                    getClassMetadata(obj.getClass()).setId(obj, 0);
+                } catch (ReflectiveOperationException ex) {
+                    handleException(ex);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Deletes object from database.
+     *
+     * @param obj object for deletion
+     * @return true if object deleted or false otherwise
+     */
+    public boolean delete(Object obj) {
+        if (!isValidForSave(obj)) {
+            return false;
+        }
+        try {
+            Request request = new Request(Protocol.DELETE);
+            Protocol.writeString(request.out, obj.getClass().getName());
+            request.out.writeLong(getId(obj));
+            return await(send(request)).get() != 0;
+        } catch (Exception e) {
+            handleException(e);
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+            reader.join();
+        } catch (Exception e) {
+            handleException(e);
+        }
+    }
+
+    /**
+     * Sends request. Thread that finds no write in progress writes all requests queued until then,
+     * other threads only add their requests to queue.
+     */
+    private CompletableFuture<ByteBuffer> send(Request request) throws IOException {
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        pending.put(requestId, response);
+        byte[] frame = request.bytes.toByteArray();
+        ByteBuffer.wrap(frame).putInt(0, frame.length - 4).putInt(4, requestId);
+        synchronized (queued) {
+            queued.write(frame);
+            if (writing) {
+                return response;
+            }
+            writing = true;
+        }
+        try {
+            while (true) {
+                ByteBuffer buffer;
+                synchronized (queued) {
+                    if (queued.size() == 0) {
+                        writing = false;
+                        return response;
+                    }
+                    buffer = ByteBuffer.wrap(queued.toByteArray());
+                    queued.reset();
+                }
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (queued) {
+                writing = false;
+            }
+            pending.remove(requestId);
+            throw e;
+        }
+    }
+
+    private ByteBuffer await(CompletableFuture<ByteBuffer> response) throws Exception {
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private void readResponses() {
+        IOException failure;
+        try {
+            while (true) {
+                int length = in.readInt();
+                int requestId = in.readInt();
+                byte status = in.readByte();
+                byte[] body = new byte[length - 5];
+                in.readFully(body);
+                CompletableFuture<ByteBuffer> response = pending.remove(requestId);
+                if (response == null) {
+                    continue;
+                }
+                if (status == Protocol.OK) {
+                    response.complete(ByteBuffer.wrap(body));
+                } else {
+                    response.completeExceptionally(new IOException("Server error: " + Protocol.readString(ByteBuffer.wrap(body))));
+                }
+            }
+        } catch (IOException e) {
+            failure = closed ? new IOException("Client is closed") : e;
+        }
+        for (Integer requestId : new ArrayList<>(pending.keySet())) {
+            CompletableFuture<ByteBuffer> response = pending.remove(requestId);
+            if (response != null) {
+                response.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private static final class Request {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        private Request(byte operation) throws IOException {
+            // length and request id are set when request is sent
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(operation);
+        }
+    }
+}
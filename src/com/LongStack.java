@@ -0,0 +1,26 @@
+package com;
+
+import java.util.*;
+
+/**
+ * Growing stack of long values.
+ */
+final class LongStack {
+    private long[] values = new long[16];
+    private int size;
+
+    void push(long value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    long pop() {
+        return values[--size];
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+}
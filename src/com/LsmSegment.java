@@ -0,0 +1,204 @@
+package com;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Immutable sorted file of LsmEngine: entries (key length, key, value length, value), then sparse index
+ * (every 16th key with its position), then bloom filter of all keys and fixed size trailer.
+ */
+final class LsmSegment {
+    private static final int INDEX_INTERVAL = 16;
+    private static final long MAGIC = 0x554c44424c534d31L;
+
+    final File file;
+    final String firstKey;
+    final String lastKey;
+    private final String[] indexKeys;
+    private final long[] indexPositions;
+    private final long entriesEnd;
+    private final BloomFilter bloomFilter;
+
+    LsmSegment(File file) throws IOException {
+        this.file = file;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(in.length() - 24);
+            long indexPosition = in.readLong();
+            long bloomPosition = in.readLong();
+            if (in.readLong() != MAGIC) {
+                throw new IOException("Damaged segment " + file);
+            }
+            in.seek(indexPosition);
+            int count = in.readInt();
+            indexKeys = new String[count];
+            indexPositions = new long[count];
+            for (int i = 0; i < count; i++) {
+                indexKeys[i] = in.readUTF();
+                indexPositions[i] = in.readLong();
+            }
+            lastKey = in.readUTF();
+            in.seek(bloomPosition);
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            bloomFilter = new BloomFilter(bits);
+            firstKey = indexKeys[0];
+            entriesEnd = indexPosition;
+        }
+    }
+
+    /**
+     * Returns value of key, empty value for deleted object or null if segment do not have key.
+     */
+    String get(String key) throws IOException {
+        if (key.compareTo(firstKey) < 0 || key.compareTo(lastKey) > 0 || !bloomFilter.mightContain(key)) {
+            return null;
+        }
+        try (SegmentIterator entries = iterator(key)) {
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                int compared = entry.getKey().compareTo(key);
+                if (compared >= 0) {
+                    return compared == 0 ? entry.getValue() : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns iterator of entries starting with first key not lower than given key.
+     */
+    SegmentIterator iterator(String fromKey) throws IOException {
+        int index = Arrays.binarySearch(indexKeys, fromKey);
+        index = index >= 0 ? index : Math.max(0, -index - 2);
+        SegmentIterator iterator = new SegmentIterator(this, indexPositions[index]);
+        iterator.skipTo(fromKey);
+        return iterator;
+    }
+
+    static final class SegmentIterator implements Iterator<Map.Entry<String, String>>, Closeable {
+        private final DataInputStream in;
+        private final long end;
+        private long position;
+        private Map.Entry<String, String> next;
+
+        private SegmentIterator(LsmSegment segment, long position) throws IOException {
+            FileInputStream file = new FileInputStream(segment.file);
+            file.getChannel().position(position);
+            this.in = new DataInputStream(new BufferedInputStream(file, 65536));
+            this.end = segment.entriesEnd;
+            this.position = position;
+            advance();
+        }
+
+        private void skipTo(String key) throws IOException {
+            while (next != null && next.getKey().compareTo(key) < 0) {
+                advance();
+            }
+        }
+
+        private void advance() throws IOException {
+            if (position >= end) {
+                next = null;
+                close();
+                return;
+            }
+            byte[] key = new byte[in.readInt()];
+            in.readFully(key);
+            byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            position += 8 + key.length + value.length;
+            next = new AbstractMap.SimpleImmutableEntry<>(new String(key, StandardCharsets.UTF_8),
+                    new String(value, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = next;
+            try {
+                advance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return entry;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    static final class Writer {
+        private final File file;
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+        private final List<String> indexKeys = new ArrayList<>();
+        private final List<Long> indexPositions = new ArrayList<>();
+        private final List<String> keys = new ArrayList<>();
+        private long size;
+
+        Writer(File file) throws IOException {
+            this.file = file;
+            this.fileOut = new FileOutputStream(file);
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+        }
+
+        void add(String key, String value) throws IOException {
+            if (keys.size() % INDEX_INTERVAL == 0) {
+                indexKeys.add(key);
+                indexPositions.add(size);
+            }
+            keys.add(key);
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            size += 8 + keyBytes.length + bytes.length;
+        }
+
+        long size() {
+            return size;
+        }
+
+        LsmSegment finish() throws IOException {
+            long indexPosition = size;
+            out.writeInt(indexKeys.size());
+            for (int i = 0; i < indexKeys.size(); i++) {
+                out.writeUTF(indexKeys.get(i));
+                out.writeLong(indexPositions.get(i));
+            }
+            out.writeUTF(keys.get(keys.size() - 1));
+            long bloomPosition = out.size();
+            BloomFilter bloomFilter = new BloomFilter(keys.size());
+            for (String key : keys) {
+                bloomFilter.add(key);
+            }
+            out.writeInt(bloomFilter.bits.length);
+            for (long word : bloomFilter.bits) {
+                out.writeLong(word);
+            }
+            out.writeLong(indexPosition);
+            out.writeLong(bloomPosition);
+            out.writeLong(MAGIC);
+            out.flush();
+            // segment must be on disk before manifest lists it and log with its changes is truncated
+            fileOut.getChannel().force(true);
+            out.close();
+            return new LsmSegment(file);
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package com;
+
+import com.ULDB.Records;
+import com.ULDB.StorageEngine;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.ULDB.handleException;
+import static com.ULDB.metrics;
+
+/**
+ * Write-ahead log, memtable and leveled segments of {@link ULDB.LsmEngine}.
+ */
+final class LsmTree implements StorageEngine {
+    private static final String MANIFEST_FILE = "MANIFEST";
+    private static final String LOG_FILE = "wal.log";
+    private static final String TOMBSTONE = "";
+    private static final int LEVEL0_SEGMENTS = 4;
+    private static final long LEVEL1_BYTES = 32L << 20;
+    private static final int LEVEL_MULTIPLIER = 10;
+    private static final long SEGMENT_BYTES = 8L << 20;
+
+    private final File directory;
+    private final ReentrantReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+    private final List<List<LsmSegment>> levels = new ArrayList<>();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private TreeMap<String, String> memtable = new TreeMap<>();
+    private long memtableBytes;
+    private long memtableLimit = 4L << 20;
+    private final AtomicLong nextSegment = new AtomicLong(1);
+    private boolean opened;
+    private ExecutorService compactor;
+
+    /**
+     * @param directory directory for engine files, it is created if it does not exist
+     */
+    LsmTree(String directory) {
+        this.directory = new File(directory);
+    }
+
+    /**
+     * Sets size of memtable (in characters of saved records) written as new segment. Default: 4M.
+     *
+     * @param memtableLimit size of memtable
+     */
+    public void setMemtableLimit(long memtableLimit) {
+        this.memtableLimit = memtableLimit;
+    }
+
+    @Override
+    public boolean tracksChanges() {
+        return true;
+    }
+
+    @Override
+    public void load(Records records, Set<String> classes) throws IOException {
+        TreeMap<String, String> memtableCopy;
+        synchronized (this) {
+            open();
+            memtableCopy = new TreeMap<>(memtable);
+        }
+        segmentsLock.readLock().lock();
+        try {
+            if (classes == null) {
+                load(records, memtableCopy, "");
+            } else {
+                for (String className : classes) {
+                    load(records, memtableCopy, className + ":");
+                }
+            }
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    private void load(Records records, TreeMap<String, String> memtableCopy, String prefix) throws IOException {
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        sources.add(memtableCopy.tailMap(prefix).entrySet().iterator());
+        for (List<LsmSegment> level : levels) {
+            for (LsmSegment segment : level) {
+                if (segment.lastKey.compareTo(prefix) >= 0) {
+                    sources.add(segment.iterator(prefix));
+                }
+            }
+        }
+        try (MergeIterator entries = new MergeIterator(sources)) {
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                String key = entry.getKey();
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                if (entry.getValue().equals(TOMBSTONE)) {
+                    continue;
+                }
+                if (key.endsWith(":")) {
+                    records.setLastId(key.substring(0, key.length() - 1), Long.parseLong(entry.getValue()));
+                } else {
+                    records.add(entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one saved object from engine files. Bloom filters skip segments that do not have the object.
+     *
+     * @param className name of class
+     * @param id        id of object
+     * @return object as record line or null if object was not saved or was deleted
+     * @throws IOException when data can not be read
+     */
+    public String get(String className, long id) throws IOException {
+        String key = key(className, id);
+        synchronized (this) {
+            open();
+            String value = memtable.get(key);
+            if (value != null) {
+                return value.equals(TOMBSTONE) ? null : value;
+            }
+        }
+        segmentsLock.readLock().lock();
+        try {
+            for (List<LsmSegment> level : levels) {
+                for (LsmSegment segment : level) {
+                    String value = segment.get(key);
+                    if (value != null) {
+                        return value.equals(TOMBSTONE) ? null : value;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public synchronized void save(Records records, Map<String, Set<Long>> changes) throws IOException {
+        open();
+        StringBuilder log = new StringBuilder();
+        for (Map.Entry<String, Set<Long>> entry : changes.entrySet()) {
+            put(log, entry.getKey() + ":", Long.toString(records.getLastId(entry.getKey())));
+            for (Long id : entry.getValue()) {
+                String record = records.get(entry.getKey(), id);
+                put(log, key(entry.getKey(), id), record == null ? TOMBSTONE : record);
+            }
+        }
+        byte[] bytes = log.toString().getBytes(StandardCharsets.UTF_8);
+        try (FileOutputStream out = new FileOutputStream(new File(directory, LOG_FILE), true)) {
+            out.write(bytes);
+            // save is durable only when log is on disk, not in page cache
+            out.getChannel().force(true);
+        }
+        metrics.bytesWritten.add(bytes.length);
+        if (memtableBytes >= memtableLimit) {
+            flushMemtable();
+        }
+    }
+
+    /**
+     * Writes memtable as new segment of level 0, even if it is not full.
+     *
+     * @throws IOException when segment can not be written
+     */
+    public synchronized void flush() throws IOException {
+        open();
+        if (!memtable.isEmpty()) {
+            flushMemtable();
+        }
+    }
+
+    /**
+     * Waits until background compaction is finished.
+     */
+    public void awaitCompaction() {
+        try {
+            compactor().submit(() -> {
+            }).get();
+        } catch (Exception e) {
+            handleException(e);
+        }
+    }
+
+    /**
+     * @return number of segments on each level
+     */
+    public List<Integer> getSegmentCounts() {
+        segmentsLock.readLock().lock();
+        try {
+            List<Integer> counts = new ArrayList<>();
+            for (List<LsmSegment> level : levels) {
+                counts.add(level.size());
+            }
+            return counts;
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public synchronized void delete() throws IOException {
+        awaitCompaction();
+        segmentsLock.writeLock().lock();
+        try {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            levels.clear();
+            memtable = new TreeMap<>();
+            memtableBytes = 0;
+            nextSegment.set(1);
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (compactor != null) {
+            compactor.shutdown();
+            compactor = null;
+        }
+    }
+
+    private static String key(String className, long id) {
+        return String.format("%s:%020d", className, id);
+    }
+
+    private void put(StringBuilder log, String key, String value) {
+        log.append(key).append('\t').append(value).append('\n');
+        String previous = memtable.put(key, value);
+        memtableBytes += previous == null ? key.length() + value.length() : value.length() - previous.length();
+    }
+
+    /**
+     * Reads manifest and replays write-ahead log on first use.
+     */
+    private void open() throws IOException {
+        if (opened) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create directory " + directory);
+        }
+        File manifest = new File(directory, MANIFEST_FILE);
+        if (manifest.exists()) {
+            for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                String[] data = line.split(":");
+                if (data[0].equals("next")) {
+                    nextSegment.set(Long.parseLong(data[1]));
+                } else {
+                    level(Integer.parseInt(data[0])).add(new LsmSegment(new File(directory, data[1])));
+                }
+            }
+        }
+        File log = new File(directory, LOG_FILE);
+        if (log.exists()) {
+            StringBuilder ignored = new StringBuilder();
+            for (String line : Files.readAllLines(log.toPath(), StandardCharsets.UTF_8)) {
+                int separator = line.indexOf('\t');
+                if (separator > 0) {
+                    put(ignored, line.substring(0, separator), line.substring(separator + 1));
+                    ignored.setLength(0);
+                }
+            }
+        }
+        opened = true;
+    }
+
+    private List<LsmSegment> level(int level) {
+        while (levels.size() <= level) {
+            levels.add(new ArrayList<>());
+        }
+        return levels.get(level);
+    }
+
+    private void flushMemtable() throws IOException {
+        List<LsmSegment> segments = writeSegments(Collections.singletonList(memtable.entrySet().iterator()), false, Long.MAX_VALUE);
+        segmentsLock.writeLock().lock();
+        try {
+            // level 0 keeps newest segment first
+            level(0).addAll(0, segments);
+            writeManifest();
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+        // log is not needed after its changes are in segment listed in manifest, both are forced to disk already
+        new FileOutputStream(new File(directory, LOG_FILE)).close();
+        memtable = new TreeMap<>();
+        memtableBytes = 0;
+        scheduleCompaction();
+    }
+
+    private void scheduleCompaction() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            compactor().execute(() -> {
+                compactionScheduled.set(false);
+                try {
+                    while (compactOnce()) {
+                        // next level can be too big after this compaction
+                    }
+                } catch (Exception e) {
+                    handleException(e);
+                }
+            });
+        }
+    }
+
+    private synchronized ExecutorService compactor() {
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ULDB-compaction");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return compactor;
+    }
+
+    /**
+     * Merges level 0 into level 1 when it has too many segments, or one segment of too big level into
+     * overlapping segments of next level.
+     *
+     * @return true if something was merged
+     * @throws IOException when segments can not be read or written
+     */
+    private boolean compactOnce() throws IOException {
+        List<LsmSegment> inputs = new ArrayList<>();
+        int target;
+        segmentsLock.readLock().lock();
+        try {
+            int level = -1;
+            if (levels.size() > 0 && levels.get(0).size() >= LEVEL0_SEGMENTS) {
+                level = 0;
+            } else {
+                long limit = LEVEL1_BYTES;
+                for (int i = 1; i < levels.size(); i++, limit *= LEVEL_MULTIPLIER) {
+                    long bytes = 0;
+                    for (LsmSegment segment : levels.get(i)) {
+                        bytes += segment.file.length();
+                    }
+                    if (bytes > limit) {
+                        level = i;
+                        break;
+                    }
+                }
+            }
+            if (level < 0) {
+                return false;
+            }
+            // level 0 segments overlap, so all of them are merged; newer segments go first
+            inputs.addAll(level == 0 ? levels.get(0) : levels.get(level).subList(0, 1));
+            String first = inputs.get(0).firstKey;
+            String last = inputs.get(0).lastKey;
+            for (LsmSegment segment : inputs) {
+                first = segment.firstKey.compareTo(first) < 0 ? segment.firstKey : first;
+                last = segment.lastKey.compareTo(last) > 0 ? segment.lastKey : last;
+            }
+            target = level + 1;
+            if (target < levels.size()) {
+                for (LsmSegment segment : levels.get(target)) {
+                    if (segment.lastKey.compareTo(first) >= 0 && segment.firstKey.compareTo(last) <= 0) {
+                        inputs.add(segment);
+                    }
+                }
+            }
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+
+        boolean bottom;
+        segmentsLock.readLock().lock();
+        try {
+            bottom = true;
+            for (int i = target + 1; i < levels.size(); i++) {
+                bottom &= levels.get(i).isEmpty();
+            }
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        for (LsmSegment segment : inputs) {
+            sources.add(segment.iterator(""));
+        }
+        List<LsmSegment> outputs;
+        try (MergeIterator merged = new MergeIterator(sources)) {
+            // deleted objects are forgotten when there is no older level that could still have them
+            outputs = writeSegments(Collections.singletonList(merged), bottom, SEGMENT_BYTES);
+        }
+
+        segmentsLock.writeLock().lock();
+        try {
+            for (List<LsmSegment> level : levels) {
+                level.removeAll(inputs);
+            }
+            List<LsmSegment> targetLevel = level(target);
+            targetLevel.addAll(outputs);
+            targetLevel.sort(Comparator.comparing(segment -> segment.firstKey));
+            writeManifest();
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+        for (LsmSegment segment : inputs) {
+            segment.file.delete();
+        }
+        return true;
+    }
+
+    /**
+     * Writes sorted entries as segments, new segment is started when current one reaches maximum size.
+     */
+    private List<LsmSegment> writeSegments(List<Iterator<Map.Entry<String, String>>> sources, boolean dropTombstones,
+                                           long maxBytes) throws IOException {
+        List<LsmSegment> segments = new ArrayList<>();
+        LsmSegment.Writer writer = null;
+        for (Iterator<Map.Entry<String, String>> source : sources) {
+            while (source.hasNext()) {
+                Map.Entry<String, String> entry = source.next();
+                if (dropTombstones && entry.getValue().equals(TOMBSTONE)) {
+                    continue;
+                }
+                if (writer == null) {
+                    writer = new LsmSegment.Writer(new File(directory, String.format("segment-%012d.sst", nextSegment.getAndIncrement())));
+                }
+                writer.add(entry.getKey(), entry.getValue());
+                if (writer.size() >= maxBytes) {
+                    segments.add(writer.finish());
+                    writer = null;
+                }
+            }
+        }
+        if (writer != null) {
+            segments.add(writer.finish());
+        }
+        metrics.bytesWritten.add(segments.stream().mapToLong(segment -> segment.file.length()).sum());
+        return segments;
+    }
+
+    private void writeManifest() throws IOException {
+        StringBuilder sb = new StringBuilder("next:").append(nextSegment.get()).append("\n");
+        for (int i = 0; i < levels.size(); i++) {
+            for (LsmSegment segment : levels.get(i)) {
+                sb.append(i).append(":").append(segment.file.getName()).append("\n");
+            }
+        }
+        File temp = new File(directory, MANIFEST_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            out.getChannel().force(true);
+        }
+        Files.move(temp.toPath(), new File(directory, MANIFEST_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    /**
+     * Forces renamed manifest and new segment files to disk. Directories can not be opened on Windows,
+     * there rename is durable without it.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported by file system
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Merges sorted sources into one sorted sequence. For equal keys only entry from earlier source is returned,
+ * so sources should be given from newest to oldest.
+ */
+final class MergeIterator implements Iterator<Map.Entry<String, String>>, Closeable {
+    private final List<Iterator<Map.Entry<String, String>>> sources;
+    private final PriorityQueue<int[]> queue;
+    private final List<Map.Entry<String, String>> heads = new ArrayList<>();
+
+    MergeIterator(List<Iterator<Map.Entry<String, String>>> sources) {
+        this.sources = sources;
+        this.queue = new PriorityQueue<>((a, b) -> {
+            int compared = heads.get(a[0]).getKey().compareTo(heads.get(b[0]).getKey());
+            return compared != 0 ? compared : Integer.compare(a[0], b[0]);
+        });
+        for (int i = 0; i < sources.size(); i++) {
+            heads.add(null);
+            advance(i);
+        }
+    }
+
+    private void advance(int source) {
+        if (sources.get(source).hasNext()) {
+            heads.set(source, sources.get(source).next());
+            queue.add(new int[]{source});
+        } else {
+            heads.set(source, null);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+        int source = queue.poll()[0];
+        Map.Entry<String, String> entry = heads.get(source);
+        advance(source);
+        // older entries of the same key are skipped
+        while (!queue.isEmpty() && heads.get(queue.peek()[0]).getKey().equals(entry.getKey())) {
+            advance(queue.poll()[0]);
+        }
+        return entry;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Iterator<Map.Entry<String, String>> source : sources) {
+            if (source instanceof Closeable) {
+                ((Closeable) source).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com;
+
+import com.ULDB.ClassMetadata;
+import com.ULDB.HeapEstimator;
+import com.ULDB.RowPlan;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import static com.ULDB.appendRow;
+import static com.ULDB.getClassMetadata;
+
+/**
+ * Objects of one class kept serialized (as rows of saved file) in direct memory.
+ * Index from id to record address uses primitive arrays, so it does not create object per record.
+ * Methods returning previous value return null to avoid decoding.
+ */
+final class OffHeapTable extends AbstractMap<Long, Object> {
+    private static final Charset RECORD_CHARSET = Charset.forName("UTF-8");
+
+    private final RecordArena arena = new RecordArena();
+    private final LongLongMap index = new LongLongMap();
+    private ClassMetadata metadata;
+
+    @Override
+    public synchronized Object get(Object key) {
+        if (!(key instanceof Long)) {
+            return null;
+        }
+        long address = index.get((Long) key);
+        if (address == LongLongMap.MISSING) {
+            return null;
+        }
+        return metadata.getRowPlan().decode(new String(arena.read(address), RECORD_CHARSET));
+    }
+
+    /**
+     * Decodes all objects with given plan, eg. plan that decodes only some properties.
+     */
+    synchronized List<Object> project(RowPlan plan) {
+        List<Object> objects = new ArrayList<>(index.size());
+        for (long id : index.keys()) {
+            objects.add(plan.decode(new String(arena.read(index.get(id)), RECORD_CHARSET)));
+        }
+        return objects;
+    }
+
+    /**
+     * Returns object as saved line without decoding it.
+     */
+    synchronized String getRecord(long id) {
+        long address = index.get(id);
+        if (address == LongLongMap.MISSING) {
+            return null;
+        }
+        return new String(arena.read(address), RECORD_CHARSET);
+    }
+
+    @Override
+    public synchronized Object put(Long key, Object value) {
+        if (metadata == null) {
+            metadata = getClassMetadata(value.getClass());
+        }
+        byte[] record = appendRow(new StringBuilder(), metadata, value).toString().getBytes(RECORD_CHARSET);
+        long address = index.get(key);
+        index.put(key, arena.write(address, record));
+        return null;
+    }
+
+    @Override
+    public synchronized Object remove(Object key) {
+        if (!(key instanceof Long)) {
+            return null;
+        }
+        long address = index.remove((Long) key);
+        if (address != LongLongMap.MISSING) {
+            arena.free(address);
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return key instanceof Long && index.get((Long) key) != LongLongMap.MISSING;
+    }
+
+    @Override
+    public synchronized int size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        index.clear();
+        arena.clear();
+    }
+
+    @Override
+    public synchronized Set<Long> keySet() {
+        Set<Long> ids = new LinkedHashSet<>();
+        for (long id : index.keys()) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    /**
+     * Entries are decoded when value is read.
+     */
+    @Override
+    public Set<Map.Entry<Long, Object>> entrySet() {
+        Set<Map.Entry<Long, Object>> entries = new LinkedHashSet<>();
+        for (Long id : keySet()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<Long, Object>(id, null) {
+                @Override
+                public Object getValue() {
+                    return OffHeapTable.this.get(id);
+                }
+            });
+        }
+        return entries;
+    }
+
+    /**
+     * @return bytes of heap used by index of records
+     */
+    synchronized long heapBytes() {
+        return HeapEstimator.OBJECT_HEADER * 3L + HeapEstimator.arrayBytes(index.keys.length, 8) * 2;
+    }
+
+    synchronized long reservedBytes() {
+        return arena.reservedBytes();
+    }
+}
@@ -0,0 +1,49 @@
+package com;
+
+import java.io.*;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary protocol of server. Request: length, request id, operation, arguments.
+ * Response: length, request id, status, result (or error message). Texts are UTF-8 bytes preceded by length.
+ */
+final class Protocol {
+    static final byte GET = 1;
+    static final byte GET_ALL = 2;
+    static final byte SAVE = 3;
+    static final byte DELETE = 4;
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+    static final int MAX_REQUEST = 64 << 20;
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Unix domain sockets are available since Java 16, they are used by reflection to keep Java 8 compatibility.
+     */
+    static ProtocolFamily unixFamily() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16 or newer");
+        }
+    }
+
+    static SocketAddress unixAddress(String path) throws ReflectiveOperationException {
+        return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+    }
+}
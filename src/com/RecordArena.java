@@ -0,0 +1,105 @@
+package com;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Direct memory divided into slabs. Record is saved as [capacity][length][bytes].
+ * Capacity is power of two, freed records are reused by records of the same capacity.
+ */
+final class RecordArena {
+    private static final int SLAB_SIZE = 1 << 22;
+    private static final int RECORD_HEADER = 8;
+    private static final int MIN_CAPACITY = 32;
+
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private final LongStack[] freeRecords = new LongStack[32];
+    private int lastSlabUsed;
+    long reservedBytes;
+
+    /**
+     * Writes record in place when it fits, otherwise moves it to new place.
+     *
+     * @param address current address of record or LongLongMap.MISSING for new record
+     * @param record  record bytes
+     * @return address of record
+     */
+    long write(long address, byte[] record) {
+        if (address != LongLongMap.MISSING) {
+            ByteBuffer slab = slab(address);
+            int offset = offset(address);
+            if (slab.getInt(offset) - RECORD_HEADER >= record.length) {
+                writeRecord(slab, offset, record);
+                return address;
+            }
+            free(address);
+        }
+        address = allocate(record.length + RECORD_HEADER);
+        writeRecord(slab(address), offset(address), record);
+        return address;
+    }
+
+    byte[] read(long address) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        byte[] record = new byte[slab.getInt(offset + 4)];
+        ((Buffer) slab).position(offset + RECORD_HEADER);
+        slab.get(record);
+        return record;
+    }
+
+    void free(long address) {
+        int capacity = slab(address).getInt(offset(address));
+        int sizeClass = Integer.numberOfTrailingZeros(capacity);
+        if (freeRecords[sizeClass] == null) {
+            freeRecords[sizeClass] = new LongStack();
+        }
+        freeRecords[sizeClass].push(address);
+    }
+
+    void clear() {
+        slabs.clear();
+        Arrays.fill(freeRecords, null);
+        lastSlabUsed = 0;
+        reservedBytes = 0;
+    }
+
+    long reservedBytes() {
+        return reservedBytes;
+    }
+
+    private long allocate(int size) {
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(size - 1) << 1);
+        int sizeClass = Integer.numberOfTrailingZeros(capacity);
+        if (freeRecords[sizeClass] != null && !freeRecords[sizeClass].isEmpty()) {
+            return freeRecords[sizeClass].pop();
+        }
+
+        ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+        if (slab == null || slab.capacity() - lastSlabUsed < capacity) {
+            slab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, capacity));
+            slabs.add(slab);
+            lastSlabUsed = 0;
+            reservedBytes += slab.capacity();
+        }
+        int offset = lastSlabUsed;
+        lastSlabUsed += capacity;
+        slab.putInt(offset, capacity);
+        return ((long) (slabs.size() - 1) << 32) | offset;
+    }
+
+    private void writeRecord(ByteBuffer slab, int offset, byte[] record) {
+        slab.putInt(offset + 4, record.length);
+        ((Buffer) slab).position(offset + RECORD_HEADER);
+        slab.put(record);
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs.get((int) (address >>> 32));
+    }
+
+    private int offset(long address) {
+        return (int) address;
+    }
+}
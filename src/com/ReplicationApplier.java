@@ -0,0 +1,230 @@
+package com;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.ReplicationLog.SNAPSHOT_FILE;
+import static com.ReplicationLog.SNAPSHOT_HEADER;
+import static com.ReplicationLog.listSegments;
+import static com.ReplicationLog.readLastSequence;
+import static com.ReplicationLog.readSnapshotSequence;
+import static com.ReplicationLog.segmentSequence;
+import static com.ULDB.applyReplicatedChange;
+import static com.ULDB.clearData;
+import static com.ULDB.handleException;
+import static com.ULDB.loadExpiries;
+import static com.ULDB.readData;
+import static com.ULDB.replicationFollower;
+
+/**
+ * Change log reader of {@link ULDB.ReplicationFollower}. It applies changes in order of their sequence numbers.
+ */
+final class ReplicationApplier implements AutoCloseable {
+    private final File directory;
+    private final long pollIntervalMillis;
+    private final Thread poller;
+    private File segment;
+    private long offset;
+    private int readSize = 1 << 20;
+    private volatile long appliedSequence = -1;
+    private volatile long availableSequence = -1;
+    private volatile long appliedTime;
+    private volatile long snapshotLoads;
+    private volatile boolean closed;
+
+    ReplicationApplier(File directory, long pollIntervalMillis) {
+        this.directory = directory;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.poller = new Thread(this::pollPeriodically, "ULDB-replication");
+        this.poller.setDaemon(true);
+    }
+
+    void start() {
+        poller.start();
+    }
+
+    /**
+     * Applies all changes that are available in change log now. It is also done periodically in background.
+     *
+     * @return number of applied changes
+     */
+    public synchronized int catchUp() {
+        if (closed) {
+            return 0;
+        }
+        int applied = 0;
+        try {
+            if (appliedSequence < 0 && !loadSnapshot()) {
+                return 0;
+            }
+            List<File> segments = listSegments(directory);
+            if (!segments.isEmpty()) {
+                availableSequence = Math.max(availableSequence, readLastSequence(segments.get(segments.size() - 1)));
+            }
+            while (true) {
+                int index = -1;
+                for (int i = 0; i < segments.size(); i++) {
+                    if (segmentSequence(segments.get(i)) <= appliedSequence + 1) {
+                        index = i;
+                    }
+                }
+                if (index < 0) {
+                    if (!segments.isEmpty()) {
+                        // changes we need are not kept anymore
+                        loadSnapshot();
+                    }
+                    return applied;
+                }
+                if (!segments.get(index).equals(segment)) {
+                    segment = segments.get(index);
+                    offset = 0;
+                }
+                long previousOffset = offset;
+                int count = applyFromSegment();
+                if (count < 0) {
+                    loadSnapshot();
+                    return applied;
+                }
+                applied += count;
+                if (offset > previousOffset) {
+                    continue;
+                }
+                // current segment is read to the end
+                if (index + 1 < segments.size()) {
+                    if (segmentSequence(segments.get(index + 1)) != appliedSequence + 1) {
+                        loadSnapshot();
+                        return applied;
+                    }
+                    continue;
+                }
+                if (readSnapshotSequence(directory) > appliedSequence) {
+                    // primary was restarted and skipped sequence number
+                    loadSnapshot();
+                }
+                return applied;
+            }
+        } catch (Exception e) {
+            // directory may be unavailable for a moment, next call continues from last applied change
+            handleException(e);
+        }
+        return applied;
+    }
+
+    /**
+     * @return sequence number of last applied change
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * @return number of changes in change log that are not applied yet
+     */
+    public long getLag() {
+        return Math.max(0, availableSequence - appliedSequence);
+    }
+
+    /**
+     * @return time since last applied change was made on primary or 0 if there is no lag
+     */
+    public long getLagMillis() {
+        return getLag() == 0 || appliedTime == 0 ? 0 : Math.max(0, System.currentTimeMillis() - appliedTime);
+    }
+
+    /**
+     * @return how many times snapshot was loaded
+     */
+    public long getSnapshotLoads() {
+        return snapshotLoads;
+    }
+
+    /**
+     * Stops applying changes and makes database writable again, eg. when this instance becomes primary.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        poller.interrupt();
+        synchronized (ULDB.class) {
+            if (replicationFollower == this) {
+                replicationFollower = null;
+            }
+        }
+    }
+
+    private boolean loadSnapshot() throws IOException {
+        File snapshot = new File(directory, SNAPSHOT_FILE);
+        if (!snapshot.exists()) {
+            return false;
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(snapshot), StandardCharsets.UTF_8))) {
+            long snapshotSequence = Long.parseLong(br.readLine().substring(SNAPSHOT_HEADER.length()));
+            clearData();
+            readData(br, null);
+            loadExpiries();
+            appliedSequence = snapshotSequence;
+            availableSequence = Math.max(availableSequence, snapshotSequence);
+            segment = null;
+            offset = 0;
+            snapshotLoads++;
+            return true;
+        }
+    }
+
+    /**
+     * Applies complete changes from current segment starting at current offset.
+     *
+     * @return number of applied changes or -1 if change log has gap
+     * @throws IOException when segment can not be read
+     */
+    private int applyFromSegment() throws IOException {
+        byte[] data;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            data = new byte[(int) Math.min(readSize, file.length() - offset)];
+            file.seek(offset);
+            file.readFully(data);
+        }
+        int applied = 0;
+        int lineStart = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            String line = new String(data, lineStart, i - lineStart, StandardCharsets.UTF_8);
+            offset += i + 1 - lineStart;
+            lineStart = i + 1;
+
+            int first = line.indexOf(';');
+            int second = line.indexOf(';', first + 1);
+            long lineSequence = Long.parseLong(line.substring(0, first));
+            if (lineSequence <= appliedSequence) {
+                continue;
+            }
+            if (lineSequence != appliedSequence + 1) {
+                return -1;
+            }
+            applyReplicatedChange(line.charAt(second + 1), line.substring(second + 3));
+            appliedSequence = lineSequence;
+            appliedTime = Long.parseLong(line.substring(first + 1, second));
+            availableSequence = Math.max(availableSequence, lineSequence);
+            applied++;
+        }
+        if (lineStart == 0 && data.length == readSize) {
+            // change is longer than one read
+            readSize *= 2;
+        }
+        return applied;
+    }
+
+    private void pollPeriodically() {
+        while (!closed) {
+            try {
+                Thread.sleep(pollIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            catchUp();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Files of replication directory shared by primary and followers: snapshot and change log segments.
+ */
+final class ReplicationLog {
+    static final String SNAPSHOT_FILE = "snapshot.txt";
+    static final String SNAPSHOT_HEADER = "@ULDB:snapshot:";
+    private static final String SEGMENT_PREFIX = "changes-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private ReplicationLog() {
+    }
+
+    /**
+     * Returns change log segments from replication directory, oldest first.
+     * Name of segment contains sequence number of its first change.
+     *
+     * @param directory replication directory
+     * @return segments or empty list if directory can not be read
+     */
+    static List<File> listSegments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> segments = new ArrayList<>(Arrays.asList(files));
+        segments.sort(Comparator.comparing(File::getName));
+        return segments;
+    }
+
+    static String segmentName(long firstSequence) {
+        return String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX);
+    }
+
+    static long segmentSequence(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Reads sequence number of change included in snapshot as last.
+     *
+     * @param directory replication directory
+     * @return sequence number or -1 if there is no snapshot
+     * @throws IOException when snapshot can not be read
+     */
+    static long readSnapshotSequence(File directory) throws IOException {
+        File snapshot = new File(directory, SNAPSHOT_FILE);
+        if (!snapshot.exists()) {
+            return -1;
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(snapshot), StandardCharsets.UTF_8))) {
+            String header = br.readLine();
+            return header == null ? -1 : Long.parseLong(header.substring(SNAPSHOT_HEADER.length()));
+        }
+    }
+
+    /**
+     * Reads sequence number of last complete change in segment.
+     *
+     * @param segment change log segment
+     * @return sequence number or sequence before first change of segment if segment is empty
+     * @throws IOException when segment can not be read
+     */
+    static long readLastSequence(File segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            long length = file.length();
+            long from = Math.max(0, length - 65536);
+            byte[] tail = new byte[(int) (length - from)];
+            file.seek(from);
+            file.readFully(tail);
+            int end = tail.length - 1;
+            while (end >= 0 && tail[end] != '\n') {
+                end--;
+            }
+            if (end < 0) {
+                return segmentSequence(segment) - 1;
+            }
+            int begin = end - 1;
+            while (begin >= 0 && tail[begin] != '\n') {
+                begin--;
+            }
+            String line = new String(tail, begin + 1, end - begin - 1, StandardCharsets.UTF_8);
+            return Long.parseLong(line.substring(0, line.indexOf(';')));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com;
+
+import com.ULDB.ChangeEvent;
+import com.ULDB.Layout;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static com.ReplicationLog.SNAPSHOT_FILE;
+import static com.ReplicationLog.SNAPSHOT_HEADER;
+import static com.ReplicationLog.listSegments;
+import static com.ReplicationLog.readLastSequence;
+import static com.ReplicationLog.readSnapshotSequence;
+import static com.ReplicationLog.segmentName;
+import static com.ULDB.changeFeed;
+import static com.ULDB.convertObjectToString;
+import static com.ULDB.handleException;
+import static com.ULDB.serializeData;
+
+/**
+ * Change log writer of {@link ULDB.ReplicationPrimary}. Changes are appended to memory when they are published
+ * and written to current segment periodically.
+ */
+final class ReplicationShipper implements AutoCloseable {
+    private static final long FLUSH_INTERVAL_MILLIS = 20;
+    private static final int KEPT_SEGMENTS = 2;
+
+    private final File directory;
+    private final Thread flusher;
+    private final Object snapshotLock = new Object();
+    private final StringBuilder pending = new StringBuilder();
+    private File segment;
+    private long sequence;
+    private volatile boolean closed;
+
+    ReplicationShipper(File directory) {
+        this.directory = directory;
+        long last = -1;
+        try {
+            List<File> segments = listSegments(directory);
+            last = segments.isEmpty() ? -1 : readLastSequence(segments.get(segments.size() - 1));
+            last = Math.max(last, readSnapshotSequence(directory));
+        } catch (Exception e) {
+            handleException(e);
+        }
+        // one number is skipped, so followers of previous primary see the gap and load new snapshot
+        this.sequence = Math.max(0, last + 1);
+        this.segment = new File(directory, segmentName(sequence + 1));
+        this.flusher = new Thread(this::flushPeriodically, "ULDB-replication");
+        this.flusher.setDaemon(true);
+    }
+
+    void start() {
+        flusher.start();
+    }
+
+    /**
+     * Writes snapshot of all data and starts new change log segment. Old segments are removed, except the
+     * last ones, so followers that are a bit behind can still continue without loading snapshot again.
+     */
+    public void snapshot() {
+        synchronized (snapshotLock) {
+            long snapshotSequence;
+            // no change is published while segment is switched
+            synchronized (changeFeed.buffer) {
+                synchronized (this) {
+                    flush();
+                    snapshotSequence = sequence;
+                    segment = new File(directory, segmentName(sequence + 1));
+                }
+            }
+            try {
+                File temp = new File(directory, SNAPSHOT_FILE + ".tmp");
+                try (OutputStream out = new FileOutputStream(temp)) {
+                    out.write((SNAPSHOT_HEADER + snapshotSequence + "\n").getBytes(StandardCharsets.UTF_8));
+                    for (byte[] part : serializeData(StandardCharsets.UTF_8, Layout.ROWS, null)) {
+                        out.write(part);
+                    }
+                }
+                Files.move(temp.toPath(), new File(directory, SNAPSHOT_FILE).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                List<File> segments = listSegments(directory);
+                for (int i = 0; i < segments.size() - KEPT_SEGMENTS; i++) {
+                    segments.get(i).delete();
+                }
+            } catch (Exception e) {
+                handleException(e);
+            }
+        }
+    }
+
+    /**
+     * @return sequence number of last logged change
+     */
+    public synchronized long getLastSequence() {
+        return sequence;
+    }
+
+    /**
+     * Stops shipping changes. Changes logged so far are written to change log.
+     */
+    @Override
+    public void close() {
+        synchronized (ULDB.class) {
+            if (changeFeed.replicationPrimary == this) {
+                changeFeed.replicationPrimary = null;
+            }
+        }
+        closed = true;
+        flusher.interrupt();
+        flush();
+    }
+
+    void append(ChangeEvent<?> event) {
+        String change = event.getType() == ChangeEvent.Type.DELETE
+                ? "D;" + event.getClassName() + ":" + event.getId()
+                : "U;" + convertObjectToString(event.getObject());
+        synchronized (this) {
+            pending.append(++sequence).append(';').append(System.currentTimeMillis()).append(';')
+                    .append(change).append('\n');
+        }
+    }
+
+    private synchronized void flush() {
+        if (pending.length() == 0) {
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(segment, true)) {
+            out.write(pending.toString().getBytes(StandardCharsets.UTF_8));
+            pending.setLength(0);
+        } catch (IOException e) {
+            // changes stay pending and are written with next flush
+            handleException(e);
+        }
+    }
+
+    private void flushPeriodically() {
+        while (!closed) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush();
+        }
+    }
+}
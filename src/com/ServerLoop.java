@@ -0,0 +1,366 @@
+package com;
+
+import com.ULDB.Property;
+import java.io.*;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.ULDB.addToDatabase;
+import static com.ULDB.classForName;
+import static com.ULDB.convertObjectToString;
+import static com.ULDB.convertToObject;
+import static com.ULDB.getClassMetadata;
+import static com.ULDB.getId;
+import static com.ULDB.handleException;
+import static com.ULDB.isReadOnly;
+import static com.ULDB.isValidForSave;
+import static com.ULDB.metrics;
+import static com.ULDB.removeObject;
+import static com.ULDB.saveAsyncIfNeeded;
+
+/**
+ * Event loop, connections and request execution of {@link ULDB.Server}.
+ */
+final class ServerLoop implements AutoCloseable {
+    private static final int MAX_QUEUED_RESPONSE_BYTES = 4 << 20;
+    private final ServerSocketChannel channel;
+    private final String socketPath;
+    private final Selector selector;
+    private final Thread eventLoop;
+    private final LongAdder requestCount = new LongAdder();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    ServerLoop(ServerSocketChannel channel, String socketPath) throws IOException {
+        this.channel = channel;
+        this.socketPath = socketPath;
+        this.selector = Selector.open();
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+        this.eventLoop = new Thread(this::run, "ULDB-server");
+        eventLoop.setDaemon(true);
+    }
+
+    void start() {
+        eventLoop.start();
+    }
+
+    /**
+     * @return port server listens on or -1 for unix domain socket
+     */
+    public int getPort() {
+        return socketPath == null ? channel.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * @return number of requests executed by server
+     */
+    public long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    /**
+     * @return number of connected clients
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            eventLoop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                connection.read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        // client disconnected or sent invalid request
+                        closeConnection(key);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            handleException(e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid() && key.attachment() instanceof Connection) {
+                    closeConnection(key);
+                }
+            }
+            try {
+                selector.close();
+                channel.close();
+                if (socketPath != null) {
+                    Files.deleteIfExists(Paths.get(socketPath));
+                }
+            } catch (IOException e) {
+                handleException(e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = channel.accept();
+        if (client == null) {
+            return;
+        }
+        client.configureBlocking(false);
+        if (client.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        client.register(selector, SelectionKey.OP_READ, new Connection(client));
+        connectionCount.incrementAndGet();
+    }
+
+    private void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            handleException(e);
+        }
+        connectionCount.decrementAndGet();
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ArrayDeque<ByteBuffer> responses = new ArrayDeque<>();
+        private ByteBuffer input = ByteBuffer.allocate(64 * 1024);
+        private long queuedBytes;
+        private boolean stalled;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            if (channel.read(input) < 0) {
+                throw new EOFException();
+            }
+            executeRequests(key);
+        }
+
+        /**
+         * Executes complete requests in input buffer. When unsent responses are too big, connection is not
+         * read and remaining requests are executed after responses are written.
+         */
+        private void executeRequests(SelectionKey key) throws IOException {
+            do {
+                ((Buffer) input).flip();
+                int needed = 0;
+                while (input.remaining() >= 4 && queuedBytes < MAX_QUEUED_RESPONSE_BYTES) {
+                    int length = input.getInt(input.position());
+                    if (length < 5 || length > Protocol.MAX_REQUEST) {
+                        throw new IOException("Invalid request length " + length);
+                    }
+                    if (input.remaining() < 4 + length) {
+                        needed = 4 + length;
+                        break;
+                    }
+                    ByteBuffer request = input.slice();
+                    ((Buffer) request).position(4);
+                    ((Buffer) request).limit(4 + length);
+                    ((Buffer) input).position(input.position() + 4 + length);
+                    ByteBuffer response = execute(request);
+                    responses.add(response);
+                    queuedBytes += response.remaining();
+                    requestCount.increment();
+                }
+                stalled = needed == 0 && input.remaining() >= 4;
+                input.compact();
+                if (needed > input.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(needed);
+                    ((Buffer) input).flip();
+                    bigger.put(input);
+                    input = bigger;
+                }
+                writeResponses();
+            } while (stalled && queuedBytes < MAX_QUEUED_RESPONSE_BYTES);
+            updateInterest(key);
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            writeResponses();
+            if (stalled && queuedBytes < MAX_QUEUED_RESPONSE_BYTES) {
+                executeRequests(key);
+            } else {
+                updateInterest(key);
+            }
+        }
+
+        private void writeResponses() throws IOException {
+            if (responses.isEmpty()) {
+                return;
+            }
+            // responses of all pipelined requests are written with one call
+            queuedBytes -= channel.write(responses.toArray(new ByteBuffer[0]));
+            while (!responses.isEmpty() && !responses.peek().hasRemaining()) {
+                responses.poll();
+            }
+        }
+
+        private void updateInterest(SelectionKey key) {
+            int ops = queuedBytes < MAX_QUEUED_RESPONSE_BYTES ? SelectionKey.OP_READ : 0;
+            key.interestOps(responses.isEmpty() ? ops : ops | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Executes one request and returns its response. Errors are sent to client, they do not close connection.
+     */
+    private ByteBuffer execute(ByteBuffer request) {
+        int requestId = request.getInt();
+        byte operation = request.get();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0);
+            out.writeInt(requestId);
+            out.writeByte(Protocol.OK);
+            try {
+                switch (operation) {
+                    case Protocol.GET: {
+                        Object obj = ULDB.get(classForName(Protocol.readString(request)), request.getLong());
+                        out.writeBoolean(obj != null);
+                        if (obj != null) {
+                            Protocol.writeString(out, convertObjectToString(obj));
+                        }
+                        break;
+                    }
+                    case Protocol.GET_ALL: {
+                        List<?> objects = ULDB.getAll(classForName(Protocol.readString(request)));
+                        out.writeInt(objects.size());
+                        for (Object obj : objects) {
+                            Protocol.writeString(out, convertObjectToString(obj));
+                        }
+                        break;
+                    }
+                    case Protocol.SAVE: {
+                        for (long id : save(request)) {
+                            out.writeLong(id);
+                        }
+                        break;
+                    }
+                    case Protocol.DELETE: {
+                        Object obj = ULDB.get(classForName(Protocol.readString(request)), request.getLong());
+                        boolean deleted = obj != null && removeObject(obj);
+                        if (deleted) {
+                            saveAsyncIfNeeded(1);
+                        }
+                        out.writeBoolean(deleted);
+                        break;
+                    }
+                    default:
+                        throw new IllegalArgumentException("Unknown operation " + operation);
+                }
+            } catch (Exception e) {
+                bytes.reset();
+                out.writeInt(0);
+                out.writeInt(requestId);
+                out.writeByte(Protocol.ERROR);
+                Protocol.writeString(out, e.toString());
+            }
+        } catch (IOException e) {
+            // writing to memory does not fail
+            handleException(e);
+        }
+        ByteBuffer response = ByteBuffer.wrap(bytes.toByteArray());
+        response.putInt(0, response.capacity() - 4);
+        return response;
+    }
+
+    /**
+     * Saves objects sent by {@link ULDB.Client#saveOrUpdateAll(List)}. New objects have temporary negative ids,
+     * references to them are replaced by objects themselves before new ids are assigned.
+     *
+     * @return ids of saved objects in order they were sent
+     */
+    @SuppressWarnings("unchecked")
+    private long[] save(ByteBuffer request) throws ReflectiveOperationException {
+        int count = request.getInt();
+        List<Object> objects = new ArrayList<>(count);
+        Map<String, Object> newObjects = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Object obj = convertToObject(Protocol.readString(request));
+            if (obj == null || !isValidForSave(obj)) {
+                throw new IllegalArgumentException("Object is not valid for save");
+            }
+            objects.add(obj);
+            long id = getId(obj);
+            if (id < 0) {
+                newObjects.put(obj.getClass().getName() + ":" + id, obj);
+            }
+        }
+        if (isReadOnly()) {
+            throw new IllegalStateException("Database is read-only");
+        }
+        if (!newObjects.isEmpty()) {
+            for (Object obj : objects) {
+                for (Property property : getClassMetadata(obj.getClass()).properties) {
+                    Object value = property.get(obj);
+                    if (value instanceof List) {
+                        ListIterator<Object> elements = ((List<Object>) value).listIterator();
+                        while (elements.hasNext()) {
+                            Object element = elements.next();
+                            Object saved = element == null ? null : newObjects.get(element.getClass().getName() + ":" + getId(element));
+                            if (saved != null) {
+                                elements.set(saved);
+                            }
+                        }
+                    } else if (value != null && isValidForSave(property.type)) {
+                        Object saved = newObjects.get(value.getClass().getName() + ":" + getId(value));
+                        if (saved != null) {
+                            property.set(obj, saved);
+                        }
+                    }
+                }
+            }
+        }
+        metrics.saveOrUpdateCount.increment();
+        addToDatabase(objects, true);
+        // event loop does not wait for save, it is done on I/O thread of async lane
+        saveAsyncIfNeeded(objects.size());
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = getId(objects.get(i));
+        }
+        return ids;
+    }
+}
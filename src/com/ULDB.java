@@ -1,14 +1,66 @@
 package com;
 
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
+import java.math.MathContext;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongPredicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Class for saving objects.
@@ -21,13 +73,73 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class ULDB {
 
-    private static int actionsSinceLastSave = 0;
+    private static final AtomicInteger actionsSinceLastSave = new AtomicInteger();
     private static String fileName = "Data.txt";
     private static int actionLimitBeforeSaving = 0;
     private static String encoding = "UTF-8";
+    private static Layout layout = Layout.ROWS;
+    private static StorageMode storageMode = StorageMode.HEAP;
+    private static int valueDictionaryLimit = 100_000;
+    private static boolean lazyLoading = false;
+    private static long backupRateLimit = 64L << 20;
+    private static StorageEngine storageEngine = new TextFileEngine();
 
-    private static final ConcurrentHashMap<String, HashMap<Long, Object>> storedData = new ConcurrentHashMap<>();
+    private static final String COLUMNS_HEADER = "@ULDB:columns";
+    private static final String NULL_VALUE = "#";
+    private static final int DICTIONARY_LIMIT = 256;
+    private static final int MAX_REMEMBERED_TEXT_LENGTH = 128;
+    private static final int SAVE_PARTITION_SIZE = 4096;
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String INDEX_HEADER = "@ULDB:index:";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String EXPIRY_CLASS = Expiry.class.getName();
+    private static final long EXPIRY_TICK_MILLIS = 100;
+    private static final int BACKUP_CHUNK_SIZE = 64 * 1024;
+    private static final int HEAP_SAMPLE_SIZE = 256;
+
+    private static final ConcurrentHashMap<String, Map<Long, Object>> storedData = new ConcurrentHashMap<>();
     private static final ConcurrentHashMap<String, Long> lastId = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Class<?>, ClassMetadata> classMetadata = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Class<?>> classesByName = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Section> pendingSections = new ConcurrentHashMap<>();
+    private static final Map<String, Set<Long>> changedIds = new HashMap<>();
+    static final Metrics metrics = new Metrics();
+    private static final ValueDictionary decodedValues = new ValueDictionary();
+    private static final ValueDictionary encodedValues = new ValueDictionary();
+    static final ChangeFeed changeFeed = new ChangeFeed();
+    private static final ConcurrentHashMap<String, Long> timeToLive = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Map<Long, Expiry>> expiries = new ConcurrentHashMap<>();
+    private static final TimingWheel expiryWheel = new TimingWheel(EXPIRY_TICK_MILLIS);
+    private static final ReferenceIndex referenceIndex = new ReferenceIndex();
+    private static final AsyncLane asyncLane = new AsyncLane();
+    private static final Object saveLock = new Object();
+    static volatile ReplicationApplier replicationFollower;
+    private static Thread expiryReaper;
+    private static volatile BackupImage backupImage;
+    private static volatile boolean flightRecording;
+    private static EventRecorder eventRecorder;
+    private static final ConcurrentHashMap<String, Long> heapBudgets = new ConcurrentHashMap<>();
+    private static final Set<String> exceededHeapBudgets = ConcurrentHashMap.newKeySet();
+    private static volatile HeapBudgetListener heapBudgetListener;
+    private static volatile long heapSamplingInterval;
+    private static Thread heapSampler;
+
+    static {
+        try {
+            eventRecorder = (EventRecorder) Class.forName("com.FlightRecorderEvents").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // built or running without Flight Recorder, events are not recorded
+        }
+    }
+
+    /**
+     * Called by Flight Recorder listener when recordings start and stop.
+     *
+     * @param recording true if any recording is running
+     */
+    static void setFlightRecording(boolean recording) {
+        flightRecording = recording;
+    }
 
     /**
      * Add object to database or update existing one.
@@ -38,55 +150,33 @@ public class ULDB {
      * @return id of saved object or -1 if object is not valid for save (lack of id field).
      */
     public static long saveOrUpdate(Object obj) {
-        Method getId = getIdMethodIfValidForSave(obj);
-        if (getId == null) {
+        int actions = addObjectGraph(obj);
+        if (actions < 0) {
             return -1L;
         }
-        long id = addToDatabase(obj, getId);
+        saveDataIfNeeded(actions);
+        return getId(obj);
+    }
 
-        try {
-            Set<String> methodSet = new HashSet<>();
-            for (Method method : obj.getClass().getMethods()) {
-                methodSet.add(method.getName());
-            }
+    /**
+     * Adds object with its new children to database, without saving data.
+     *
+     * @param obj object for adding
+     * @return number of added objects or -1 if object is not valid for save
+     */
+    private static int addObjectGraph(Object obj) {
+        if (!isValidForSave(obj) || isReadOnly()) {
+            return -1;
+        }
 
-            // looks for children that can be added to database
-            for (Method method : obj.getClass().getMethods()) {
-                String setterMethodName = getSetter(method.getName());
-                if (setterMethodName == null || !methodSet.contains(setterMethodName)) {
-                    continue;
-                }
-                if (method.getReturnType() == List.class || method.getReturnType() == ArrayList.class) {
-                    Object returnObj = method.invoke(obj);
-                    if (returnObj == null) {
-                        continue;
-                    }
-                    for (Object listObject : (List) returnObj) {
-                        // save object only if valid and it do not exists in database
-                        Method getIdMethod = getIdMethodIfValidForSave(listObject.getClass());
-                        if (getIdMethod == null) {
-                            break;
-                        }
-                        if (getId(listObject) == 0) {
-                            ULDB.saveOrUpdate(listObject);
-                        }
-                    }
-                } else {
-                    Method getIdMethod = getIdMethodIfValidForSave(method.getReturnType());
-                    if (getIdMethod != null) {
-                        Object returnObj = method.invoke(obj);
-                        // save object only if it do not exists in database
-                        if (getId(returnObj) == 0) {
-                            ULDB.saveOrUpdate(returnObj);
-                        }
-                    }
-                }
-            }
-        } catch (Exception e) {
-            handleException(e);
+        metrics.saveOrUpdateCount.increment();
+        Object cascadeEvent = flightRecording ? eventRecorder.beginSaveCascade() : null;
+        List<Object> graph = collectObjectsForSave(obj);
+        addToDatabase(graph, true);
+        if (cascadeEvent != null) {
+            eventRecorder.endSaveCascade(cascadeEvent, obj.getClass().getName(), graph.size());
         }
-        saveDataIfNeeded();
-        return id;
+        return graph.size();
     }
 
     /**
@@ -97,15 +187,10 @@ public class ULDB {
      */
     @SuppressWarnings("unchecked")
     public static <T> T loadObject(T object) {
-        try {
-            Method method = object.getClass().getMethod("getId");
-            if (method == null) return null;
-            long id = (long) method.invoke(object);
-            return (T) ULDB.get(object.getClass(), id);
-        } catch (Exception e) {
-            handleException(e);
+        if (!isValidForSave(object)) {
+            return null;
         }
-        return null;
+        return (T) ULDB.get(object.getClass(), getId(object));
     }
 
     /**
@@ -117,8 +202,13 @@ public class ULDB {
      */
     @SuppressWarnings("unchecked")
     public static <T> T get(Class<T> objectClass, Long id) {
-        if (storedData.containsKey(objectClass.getName()))
-            return (T) storedData.get(objectClass.getName()).get(id);
+        metrics.getCount.increment();
+        if (id == null) {
+            return null;
+        }
+        Map<Long, Object> table = getTable(objectClass.getName());
+        if (table != null && !isExpired(objectClass.getName(), id))
+            return (T) table.get(id);
         return null;
     }
 
@@ -131,781 +221,5759 @@ public class ULDB {
     @SuppressWarnings("unchecked")
     public static <T> List<T> getAll(Class<T> objectClass) {
         List<T> list = new ArrayList<>();
-        if (storedData.containsKey(objectClass.getName())) {
-            for (Long id : storedData.get(objectClass.getName()).keySet()) {
-                list.add((T) storedData.get(objectClass.getName()).get(id));
+        Map<Long, Object> table = getTable(objectClass.getName());
+        if (table != null) {
+            boolean expires = expiries.containsKey(objectClass.getName());
+            for (Long id : table.keySet()) {
+                if (!expires || !isExpired(objectClass.getName(), id)) {
+                    list.add((T) table.get(id));
+                }
             }
         }
         return list;
     }
 
     /**
-     * Deletes object from database.
+     * Returns number of objects of specified class in database. Number is not counted again, so objects whose
+     * time to live passed are included until reaper deletes them (in about 100 ms, on replication follower
+     * when deletion made by primary is applied), though get, getAll and exists skip them at once.
      *
-     * @param obj object for deletion
-     * @return true if object deleted or false otherwise
+     * @param objectClass class of object
+     * @return number of objects
      */
-    public static boolean delete(Object obj) {
-        try {
-            if (obj == null)
-                return false;
-
-            Class<?> objectClass = obj.getClass();
-            if (objectClass == null || !storedData.containsKey(objectClass.getName()))
-                return false;
+    public static int count(Class<?> objectClass) {
+        Map<Long, Object> table = getTable(objectClass.getName());
+        return table == null ? 0 : table.size();
+    }
 
-            Method idMethod = objectClass.getMethod("getId");
-            if (idMethod == null)
-                return false;
+    /**
+     * Checks does object with id exists in database.
+     *
+     * @param objectClass class of object
+     * @param id          id of object
+     * @return true if object exists
+     */
+    public static boolean exists(Class<?> objectClass, long id) {
+        Map<Long, Object> table = getTable(objectClass.getName());
+        return table != null && table.containsKey(id) && !isExpired(objectClass.getName(), id);
+    }
 
-            long id = (long) idMethod.invoke(obj);
+    /**
+     * Returns references to object from other stored objects (fields and lists of children).
+     * References are indexed when objects are saved and loaded, so owners are not read to find them.
+     * References to deleted object are kept until their owners are changed, so they can be checked
+     * before or after delete.
+     *
+     * @param obj referenced object
+     * @return references ordered by class and id of owner
+     */
+    public static List<Reference> findReferrers(Object obj) {
+        if (!isValidForSave(obj)) {
+            return new ArrayList<>();
+        }
+        return findReferrers(obj.getClass().getName(), getId(obj));
+    }
 
-            if (storedData.get(objectClass.getName()).containsKey(id)) {
-                storedData.get(objectClass.getName()).remove(id);
-                saveDataIfNeeded();
-                return true;
+    /**
+     * Returns objects of owner class that refer to specified object.
+     *
+     * @param objectClass class of referenced object
+     * @param id          id of referenced object
+     * @param ownerClass  class of owners
+     * @return owners ordered by id
+     */
+    public static <T> List<T> findReferrers(Class<?> objectClass, long id, Class<T> ownerClass) {
+        List<T> owners = new ArrayList<>();
+        long lastOwnerId = 0;
+        for (Reference reference : findReferrers(objectClass.getName(), id)) {
+            // owner can refer to object by many properties
+            if (reference.getOwnerClass().equals(ownerClass.getName()) && reference.getOwnerId() != lastOwnerId) {
+                T owner = get(ownerClass, reference.getOwnerId());
+                if (owner != null) {
+                    owners.add(owner);
+                }
+                lastOwnerId = reference.getOwnerId();
             }
-        } catch (Exception e) {
-            handleException(e);
         }
-        return false;
+        return owners;
     }
 
     /**
-     * Loads all data from local drive.
+     * Sets time to live of objects of specified class. Object expires after this time from its last
+     * saveOrUpdate: get, getAll, count and exists do not see it any more and it is deleted in background
+     * (together with other expired objects, data is saved once per batch when autosave is enabled).
+     * Expiry times are saved with data, so they survive saveData and loadData.
+     *
+     * @param objectClass       class of objects
+     * @param timeToLiveMillis  time to live in milliseconds, 0 or less disables expiry for objects saved later
      */
-    public static void loadData() {
-        try {
-            File f = new File(fileName);
-            if (!f.exists()) return;
+    public static void setTimeToLive(Class<?> objectClass, long timeToLiveMillis) {
+        if (timeToLiveMillis > 0) {
+            timeToLive.put(objectClass.getName(), timeToLiveMillis);
+        } else {
+            timeToLive.remove(objectClass.getName());
+        }
+    }
 
-            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF8"));
-            String currentLine;
+    /**
+     * Sets time to live of one stored object, from now. See {@link #setTimeToLive(Class, long)}.
+     *
+     * @param obj              stored object
+     * @param timeToLiveMillis time to live in milliseconds, 0 or less removes expiry of object
+     * @return true if expiry was changed or false if object is not in database
+     */
+    public static boolean expireAfter(Object obj, long timeToLiveMillis) {
+        if (!isValidForSave(obj) || isReadOnly() || !exists(obj.getClass(), getId(obj))) {
+            return false;
+        }
+        if (timeToLiveMillis > 0) {
+            setExpiry(obj.getClass().getName(), getId(obj), System.currentTimeMillis() + timeToLiveMillis);
+        } else {
+            removeExpiry(obj.getClass().getName(), getId(obj));
+        }
+        saveDataIfNeeded();
+        return true;
+    }
 
-            while ((currentLine = br.readLine()) != null) {
-                if (!currentLine.isEmpty()) {
-                    if (currentLine.charAt(0) == '#') {
-                        String[] data = currentLine.substring(1).split(":", -1);
-                        String objectClass = data[0];
-                        long id = Long.parseLong(data[1]);
-                        lastId.put(objectClass, id);
-                    } else {
-                        addToDatabase(convertToObject(currentLine));
-                    }
+    /**
+     * Returns time when object expires.
+     *
+     * @param objectClass class of object
+     * @param id          id of object
+     * @return expiry time in milliseconds since epoch or 0 if object does not expire
+     */
+    public static long getExpiryTime(Class<?> objectClass, long id) {
+        Map<Long, Expiry> classExpiries = expiries.get(objectClass.getName());
+        Expiry expiry = classExpiries == null ? null : classExpiries.get(id);
+        return expiry == null ? 0 : expiry.getExpiresAt();
+    }
+
+    /**
+     * Returns objects of specified class with only id and given properties filled, other fields keep default values.
+     * Only requested values are decoded: class not loaded yet (lazy loading) is read from its section of file,
+     * where values of other properties are skipped (in columns layout their lines are not decoded at all),
+     * and in OFF_HEAP mode only requested values of serialized objects are decoded.
+     *
+     * @param objectClass class of object
+     * @param properties  names of properties (eg. "color" or "Color")
+     * @return new partially filled objects, empty list if property do not exist
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> List<T> project(Class<T> objectClass, String... properties) {
+        List<T> list = new ArrayList<>();
+        if (!isValidForSave(objectClass)) {
+            return list;
+        }
+        try {
+            ClassMetadata metadata = getClassMetadata(objectClass);
+            Set<Property> projected = new HashSet<>();
+            projected.add(metadata.idProperty);
+            for (String property : properties) {
+                String name = property.isEmpty() ? property : Character.toUpperCase(property.charAt(0)) + property.substring(1);
+                Property p = name.equals("Id") ? metadata.idProperty : metadata.propertiesByName.get(name);
+                if (p == null) {
+                    throw new IllegalArgumentException("Property " + property + " not found in " + objectClass.getName());
                 }
+                projected.add(p);
             }
-            br.close();
 
+            String className = objectClass.getName();
+            List<Object> objects = new ArrayList<>();
+            Section section = pendingSections.get(className);
+            Map<Long, Object> table = storedData.get(className);
+            if (section != null) {
+                projectSection(section, metadata, projected, objects);
+            } else if (table instanceof OffHeapTable) {
+                objects = ((OffHeapTable) table).project(metadata.getRowPlan().project(projected));
+            } else if (table != null) {
+                for (Object obj : table.values()) {
+                    Object copy = metadata.newInstance();
+                    for (Property property : projected) {
+                        Object value = property.get(obj);
+                        if (value != null) {
+                            property.set(copy, value);
+                        }
+                    }
+                    objects.add(copy);
+                }
+            }
+            for (Object obj : objects) {
+                if (obj != null && !isExpired(className, metadata.getId(obj))) {
+                    list.add((T) obj);
+                }
+            }
         } catch (Exception e) {
             handleException(e);
         }
+        return list;
     }
 
     /**
-     * Manually saves all data to local drive.
+     * Returns aggregation (count, sum, avg, min, max, groupBy) over all objects of specified class.
+     * Aggregations run in parallel and do not create list of objects.
+     *
+     * @param objectClass class of object
+     * @return aggregation of objects
      */
-    public static void saveData() {
-        StringBuilder sb = new StringBuilder();
-        for (String objectClass : storedData.keySet()) {
-            sb.append("#");
-            sb.append(objectClass);
-            sb.append(":");
-            sb.append(lastId.get(objectClass));
-            sb.append("\n");
-            for (Long id : storedData.get(objectClass).keySet()) {
-                Object object = storedData.get(objectClass).get(id);
-                sb.append(convertObjectToString(object));
-                sb.append("\n");
-            }
+    public static <T> Aggregation<T> aggregate(Class<T> objectClass) {
+        return new Aggregation<>(objectClass);
+    }
+
+    /**
+     * Subscribes to changes of objects of specified class made by saveOrUpdate and delete.
+     * Listener is called asynchronously with batches of events in order of their sequence numbers.
+     * Slow listener never blocks saving; when its queue is full new events are dropped
+     * and counted by {@link Subscription#getDroppedEvents()}.
+     *
+     * @param objectClass class of changed objects
+     * @param listener    listener of changes
+     * @return subscription, close it to stop receiving events
+     */
+    public static <T> Subscription<T> subscribe(Class<T> objectClass, ChangeListener<T> listener) {
+        Subscription<T> subscription = new Subscription<>(objectClass.getName(), listener);
+        changeFeed.subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Subscribes to changes of objects of all classes. See {@link #subscribe(Class, ChangeListener)}.
+     *
+     * @param listener listener of changes
+     * @return subscription, close it to stop receiving events
+     */
+    public static Subscription<Object> subscribeAll(ChangeListener<Object> listener) {
+        Subscription<Object> subscription = new Subscription<>(null, listener);
+        changeFeed.subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Opens cursor for reading changes of objects of specified class made after this call.
+     * Recent changes are kept in buffer, events not read before they leave the buffer are counted
+     * by {@link ChangeCursor#getLostEvents()}.
+     *
+     * @param objectClass class of changed objects or null for all classes
+     * @return cursor, close it when it is no longer used
+     */
+    public static ChangeCursor openChangeCursor(Class<?> objectClass) {
+        return changeFeed.openCursor(objectClass == null ? null : objectClass.getName());
+    }
+
+    /**
+     * Starts shipping changes to other instances of application. Snapshot of all data is written to directory
+     * and every next change made by saveOrUpdate or delete is appended, in order, to change log in the same
+     * directory. Followers started with {@link #startReplicationFollower(String, long)} on that directory
+     * load snapshot and apply the log. Directory should be shared by all instances (eg. network drive).
+     *
+     * @param directory directory for snapshot and change log, it is created if it does not exist
+     * @return primary, close it to stop shipping changes or null if replication is already started
+     */
+    public static synchronized ReplicationPrimary startReplicationPrimary(String directory) {
+        if (changeFeed.replicationPrimary != null || replicationFollower != null) {
+            handleException(new IllegalStateException("Replication is already started"));
+            return null;
+        }
+        File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            handleException(new IOException("Can not create directory " + directory));
+            return null;
+        }
+        ReplicationShipper shipper = new ReplicationShipper(dir);
+        // changes are logged from this moment, snapshot taken after that can only contain more of them
+        changeFeed.replicationPrimary = shipper;
+        shipper.snapshot();
+        shipper.start();
+        return new ReplicationPrimary(shipper);
+    }
+
+    /**
+     * Makes this instance read-only copy of primary instance. Data in memory is replaced by snapshot from directory
+     * and changes from change log are applied in background as they appear. saveOrUpdate, delete and saveData
+     * are rejected until follower is closed. Changes applied by follower are sent to subscribers.
+     * Follower that falls behind the oldest kept log (or primary is restarted) loads snapshot again.
+     *
+     * @param directory          directory used by primary
+     * @param pollIntervalMillis how often change log is checked for new changes
+     * @return follower, close it to make database writable again or null if replication is already started
+     */
+    public static synchronized ReplicationFollower startReplicationFollower(String directory, long pollIntervalMillis) {
+        if (changeFeed.replicationPrimary != null || replicationFollower != null) {
+            handleException(new IllegalStateException("Replication is already started"));
+            return null;
+        }
+        ReplicationApplier applier = new ReplicationApplier(new File(directory), pollIntervalMillis);
+        replicationFollower = applier;
+        applier.catchUp();
+        applier.start();
+        return new ReplicationFollower(applier);
+    }
+
+    /**
+     * Starts server that shares this database with other processes on the same machine. Server listens on
+     * loopback address only and executes requests of all clients on one thread in order they arrive,
+     * so this process stays the only writer of data. Other processes use {@link #connect(int)}.
+     *
+     * @param port port to listen on or 0 for any free port (see {@link Server#getPort()})
+     * @return server, close it to stop serving or null if it can not be started
+     */
+    public static Server startServer(int port) {
+        try {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            return startServer(channel, null);
+        } catch (IOException e) {
+            handleException(e);
+            return null;
         }
+    }
 
+    /**
+     * Starts server on unix domain socket (Java 16 or newer). See {@link #startServer(int)}.
+     *
+     * @param socketPath path of socket file, it is deleted when server is closed
+     * @return server, close it to stop serving or null if it can not be started
+     */
+    public static Server startServer(String socketPath) {
         try {
-            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), encoding));
-            out.write(sb.toString());
-            out.close();
-            ULDB.actionsSinceLastSave = 0;
+            ServerSocketChannel channel = (ServerSocketChannel) ServerSocketChannel.class
+                    .getMethod("open", ProtocolFamily.class).invoke(null, Protocol.unixFamily());
+            channel.bind(Protocol.unixAddress(socketPath));
+            return startServer(channel, socketPath);
         } catch (Exception e) {
             handleException(e);
+            return null;
         }
     }
 
+    private static Server startServer(ServerSocketChannel channel, String socketPath) throws IOException {
+        ServerLoop loop = new ServerLoop(channel, socketPath);
+        loop.start();
+        return new Server(loop);
+    }
+
     /**
-     * Sets the name of file where data should be stored.
-     * Can contain path, but all folders should exist.
+     * Connects to database shared by other process with {@link #startServer(int)}.
      *
-     * @param fileName name of file
+     * @param port port of server
+     * @return client, close it when it is no longer used or null if connection failed
      */
-    public static void setFilename(String fileName) {
-        ULDB.fileName = fileName;
+    public static Client connect(int port) {
+        try {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            return new Client(new ClientConnection(channel));
+        } catch (IOException e) {
+            handleException(e);
+            return null;
+        }
     }
 
     /**
-     * Deletes all data from memory and local drive.
+     * Connects to database shared with {@link #startServer(String)}.
+     *
+     * @param socketPath path of socket file
+     * @return client, close it when it is no longer used or null if connection failed
      */
-    public static void deleteAllData() {
+    public static Client connect(String socketPath) {
         try {
-            File f = new File(fileName);
-            f.delete();
+            SocketChannel channel = (SocketChannel) SocketChannel.class
+                    .getMethod("open", ProtocolFamily.class).invoke(null, Protocol.unixFamily());
+            channel.connect(Protocol.unixAddress(socketPath));
+            return new Client(new ClientConnection(channel));
         } catch (Exception e) {
             handleException(e);
+            return null;
         }
-        clearData();
-        loadData();
     }
 
     /**
-     * Removes data from memory only. Data stored on local drive will not be touched here.
+     * Deletes object from database.
+     *
+     * @param obj object for deletion
+     * @return true if object deleted or false otherwise
      */
-    public static void clearData() {
-        storedData.clear();
-        lastId.clear();
-        actionsSinceLastSave = 0;
+    public static boolean delete(Object obj) {
+        if (removeObject(obj)) {
+            saveDataIfNeeded();
+            return true;
+        }
+        return false;
     }
 
     /**
-     * Set charset encoding for saved data. Default: UTF-8.
+     * Asynchronous {@link #saveOrUpdate(Object)}. Object is added on async executor (virtual threads on Java 21
+     * or newer), caller thread does not wait for it. When autosave is due, returned future completes after data
+     * is saved; saves requested by many calls in the meantime are done as one save on I/O thread.
      *
-     * @param encoding charset encoding
+     * @param obj object for adding
+     * @return future id of saved object or -1 if object is not valid for save
      */
-    public static void setEncoding(String encoding) {
-        ULDB.encoding = encoding;
+    public static CompletableFuture<Long> saveAsync(Object obj) {
+        return CompletableFuture.supplyAsync(() -> addObjectGraph(obj), asyncLane.executor())
+                .thenCompose(actions -> actions < 0 ? CompletableFuture.completedFuture(-1L)
+                        : saveAsyncIfNeeded(actions).thenApply(saved -> getId(obj)));
     }
 
     /**
-     * Sets how many actions could be done before ULDB saves data to local drive. Default is 0.
-     * Put negative value to disable automatic save.
-     * Making auto-save occur less often can increase performance, but can lead to loss of data when application is closed without running manual save.
+     * Asynchronous {@link #delete(Object)}, completes like {@link #saveAsync(Object)}.
      *
-     * @param actionLimitBeforeSaving number of actions (actions: object save or object delete)
+     * @param obj object for deletion
+     * @return future true if object deleted or false otherwise
      */
-    public static void setActionLimitBeforeSaving(int actionLimitBeforeSaving) {
-        ULDB.actionLimitBeforeSaving = actionLimitBeforeSaving;
+    public static CompletableFuture<Boolean> deleteAsync(Object obj) {
+        return CompletableFuture.supplyAsync(() -> removeObject(obj), asyncLane.executor())
+                .thenCompose(removed -> !removed ? CompletableFuture.completedFuture(false)
+                        : saveAsyncIfNeeded(1).thenApply(saved -> true));
     }
 
     /**
-     * Adds object to database without any validation.
+     * Asynchronous {@link #get(Class, Long)}. Object of loaded class is returned in completed future,
+     * class which is not loaded yet (lazy loading) is loaded on async executor.
      *
-     * @param obj object to save
-     * @return id of new object or -1 if object was not added to database
+     * @param objectClass class of object
+     * @param id          id of object
+     * @return future object or null if object not found
      */
-    private static long addToDatabase(Object obj) {
-        try {
-            Method getIdMethod = obj.getClass().getMethod("getId");
-            return addToDatabase(obj, getIdMethod);
-        } catch (Exception e) {
-            handleException(e);
+    public static <T> CompletableFuture<T> getAsync(Class<T> objectClass, Long id) {
+        if (pendingSections.containsKey(objectClass.getName())) {
+            return CompletableFuture.supplyAsync(() -> get(objectClass, id), asyncLane.executor());
         }
-        return -1L;
+        return CompletableFuture.completedFuture(get(objectClass, id));
+    }
+
+    /**
+     * Asynchronous {@link #loadData()}, data is loaded on I/O thread.
+     *
+     * @return future completed when data is loaded
+     */
+    public static CompletableFuture<Void> loadDataAsync() {
+        return CompletableFuture.runAsync(ULDB::loadData, asyncLane.io());
+    }
+
+    /**
+     * Asynchronous {@link #saveData()}. Calls made while save is waiting for I/O thread share that save.
+     *
+     * @return future completed when data is saved
+     */
+    public static CompletableFuture<Void> saveDataAsync() {
+        return asyncLane.save();
+    }
+
+    static CompletableFuture<Void> saveAsyncIfNeeded(int actions) {
+        return countActions(actions) ? asyncLane.save() : CompletableFuture.completedFuture(null);
     }
 
     /**
-     * Add object to database. Run getIdMethodIfValidForSave before running this.
+     * Removes object from database, without saving data.
      *
-     * @param obj      object to save
-     * @param idMethod getter method for object id
-     * @return id of new object
+     * @param obj object for deletion
+     * @return true if object removed or false otherwise
      */
-    private static long addToDatabase(Object obj, Method idMethod) {
-        long id = -1L;
+    static boolean removeObject(Object obj) {
         try {
-            id = (long) idMethod.invoke(obj);
+            if (obj == null)
+                return false;
 
             Class<?> objectClass = obj.getClass();
+            if (objectClass == null || getTable(objectClass.getName()) == null || isReadOnly())
+                return false;
 
-            if (id < 1 || !isValidId(objectClass.getName(), id)) {
-                id = generateId(objectClass.getName());
+            ClassMetadata metadata = getClassMetadata(objectClass);
+            if (!metadata.isValidForSave())
+                return false;
 
-                Method setId = getIdSetterMethod(objectClass);
-                if (setId != null) {
-                    setId.invoke(obj, id);
-                } else {
-                    handleException(new Exception("'setId(long)' function missing!"));
-                }
-            }
+            long id = metadata.getId(obj);
 
-            if (!storedData.containsKey(objectClass.getName())) {
-                storedData.put(objectClass.getName(), new HashMap<>());
+            if (storedData.get(objectClass.getName()).containsKey(id)) {
+                preserveForBackup(objectClass.getName(), id, storedData.get(objectClass.getName()));
+                storedData.get(objectClass.getName()).remove(id);
+                referenceIndex.remove(objectClass.getName(), id);
+                trackChange(objectClass.getName(), id);
+                removeExpiry(objectClass.getName(), id);
+                metrics.deleteCount.increment();
+                changeFeed.publish(ChangeEvent.Type.DELETE, objectClass.getName(), id, obj);
+                return true;
             }
-            storedData.get(objectClass.getName()).put(id, obj);
         } catch (Exception e) {
             handleException(e);
         }
-        return id;
+        return false;
     }
 
     /**
-     * Converts object to string line.
-     *
-     * @param obj object to convert
-     * @return Object as String
+     * Loads all data from local drive.
      */
-    private static String convertObjectToString(Object obj) {
-        StringBuilder objectStringBuilder = new StringBuilder();
+    public static void loadData() {
+        long start = System.nanoTime();
         try {
-            if (obj == null) {
-                return null;
-            }
+            Records records = new Records();
+            storageEngine.load(records, null);
+            records.flush();
+            loadExpiries();
+            metrics.loadDataLatency.record(System.nanoTime() - start);
+        } catch (Exception e) {
+            handleException(e);
+        }
+    }
 
-            Class<?> objectClass = obj.getClass();
-            Method idMethod = objectClass.getMethod("getId");
-            Object id = idMethod.invoke(obj);
+    /**
+     * Loads data of specified classes from local drive. Default engine uses index saved next to data file
+     * to read only sections of these classes. Without valid index (eg. file was changed by other tool)
+     * whole file is read, but only objects of these classes are created.
+     *
+     * @param classes classes to load
+     */
+    public static void loadData(Class<?>... classes) {
+        try {
+            Set<String> classNames = new HashSet<>();
+            for (Class<?> objectClass : classes) {
+                classNames.add(objectClass.getName());
+            }
+            // expiry times of loaded objects are kept as objects of their own class
+            classNames.add(EXPIRY_CLASS);
+            Records records = new Records();
+            storageEngine.load(records, classNames);
+            records.flush();
+            loadExpiries();
+        } catch (Exception e) {
+            handleException(e);
+        }
+    }
+
+    /**
+     * Manually saves all data to local drive.
+     */
+    public static void saveData() {
+        if (isReadOnly()) {
+            return;
+        }
+        long start = System.nanoTime();
+        metrics.flushQueueDepth.incrementAndGet();
+        // saves from many threads are done one after another, so they do not write the same file at once
+        synchronized (saveLock) {
+            Map<String, Set<Long>> changes = drainChanges();
+            Object flushEvent = flightRecording ? eventRecorder.beginFlush() : null;
+            long bytesWritten = flushEvent != null ? metrics.bytesWritten.sum() : 0;
+            try {
+                storageEngine.save(new Records(), changes);
+                actionsSinceLastSave.set(0);
+                metrics.saveDataLatency.record(System.nanoTime() - start);
+                if (flushEvent != null) {
+                    eventRecorder.endFlush(flushEvent, storageEngine.getClass().getSimpleName(),
+                            countSavedRecords(changes), metrics.bytesWritten.sum() - bytesWritten);
+                }
+            } catch (Exception e) {
+                // changes are saved with next save
+                for (Map.Entry<String, Set<Long>> entry : changes.entrySet()) {
+                    for (Long id : entry.getValue()) {
+                        trackChange(entry.getKey(), id);
+                    }
+                }
+                handleException(e);
+            } finally {
+                metrics.flushQueueDepth.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param changes changes saved by storage engine
+     * @return number of changes if storage engine saves only changes, otherwise number of all objects
+     */
+    private static long countSavedRecords(Map<String, Set<Long>> changes) {
+        long records = 0;
+        if (storageEngine.tracksChanges()) {
+            for (Set<Long> ids : changes.values()) {
+                records += ids.size();
+            }
+        } else {
+            for (Map<Long, Object> table : storedData.values()) {
+                records += table.size();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Writes all objects of specified class to stream, one object per line. Objects are converted in parallel
+     * in parts of a few thousand, only a few parts are kept in memory at once, so memory use does not depend
+     * on number of objects. Strings, numbers and booleans are written as values of format, other fields
+     * (dates, lists, children) as text used in data file. Stream is not closed.
+     *
+     * @param objectClass class of objects
+     * @param out         output stream
+     * @param format      format of lines
+     * @return number of written objects or -1 if export failed
+     */
+    public static long exportTo(Class<?> objectClass, OutputStream out, DataFormat format) {
+        if (!isValidForSave(objectClass)) {
+            return -1;
+        }
+        try {
+            ClassMetadata metadata = getClassMetadata(objectClass);
+            Map<Long, Object> table = getTable(objectClass.getName());
+            Deque<CompletableFuture<byte[]>> parts = new ArrayDeque<>();
+            int maxParts = Runtime.getRuntime().availableProcessors() * 2;
+            if (format == DataFormat.CSV) {
+                out.write(csvHeader(metadata).getBytes(StandardCharsets.UTF_8));
+            }
+            long count = 0;
+            List<Object> part = new ArrayList<>(SAVE_PARTITION_SIZE);
+            Iterator<Map.Entry<Long, Object>> iterator = table == null ? Collections.emptyIterator() : table.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Long, Object> entry = iterator.next();
+                if (isExpired(objectClass.getName(), entry.getKey())) {
+                    continue;
+                }
+                part.add(entry.getValue());
+                count++;
+                if (part.size() == SAVE_PARTITION_SIZE) {
+                    List<Object> objects = part;
+                    parts.add(CompletableFuture.supplyAsync(() -> exportPart(objects, metadata, format)));
+                    part = new ArrayList<>(SAVE_PARTITION_SIZE);
+                    if (parts.size() >= maxParts) {
+                        out.write(parts.poll().join());
+                    }
+                }
+            }
+            while (!parts.isEmpty()) {
+                out.write(parts.poll().join());
+            }
+            out.write(exportPart(part, metadata, format));
+            out.flush();
+            return count;
+        } catch (Exception e) {
+            handleException(e);
+            return -1;
+        }
+    }
+
+    /**
+     * Reads objects of specified class written by {@link #exportTo(Class, OutputStream, DataFormat)} (or other
+     * tool using the same field names) and adds them to database. Lines are parsed and converted in parallel
+     * in parts of a few thousand, parts are added in order they were read and ids of new objects are assigned
+     * once per part. Objects keep their ids, objects without id get new ones; object with id already in database
+     * replaces it. Data is saved at most once, after import, when autosave is enabled. Stream is not closed.
+     * Invalid lines (for example boolean other than true, false, 1 or 0) are passed to exception handler and
+     * skipped.
+     *
+     * @param objectClass class of objects
+     * @param in          input stream
+     * @param format      format of lines
+     * @return number of imported objects or -1 if import failed
+     */
+    public static long importFrom(Class<?> objectClass, InputStream in, DataFormat format) {
+        if (!isValidForSave(objectClass) || isReadOnly()) {
+            return -1;
+        }
+        try {
+            ClassMetadata metadata = getClassMetadata(objectClass);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+            Property[] columns = null;
+            if (format == DataFormat.CSV) {
+                String header = readCsvRecord(reader);
+                if (header == null) {
+                    return 0;
+                }
+                List<String> names = parseCsvRecord(header);
+                columns = new Property[names.size()];
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = importedProperty(metadata, names.get(i));
+                }
+            }
+            Property[] csvColumns = columns;
+            Deque<CompletableFuture<List<Object>>> parts = new ArrayDeque<>();
+            int maxParts = Runtime.getRuntime().availableProcessors() * 2;
+            long count = 0;
+            List<String> part = new ArrayList<>(SAVE_PARTITION_SIZE);
+            String record = format == DataFormat.CSV ? readCsvRecord(reader) : reader.readLine();
+            while (record != null) {
+                if (!record.isEmpty()) {
+                    part.add(record);
+                }
+                record = format == DataFormat.CSV ? readCsvRecord(reader) : reader.readLine();
+                if (part.size() == SAVE_PARTITION_SIZE || (record == null && !part.isEmpty())) {
+                    List<String> records = part;
+                    parts.add(CompletableFuture.supplyAsync(() -> importPart(records, metadata, csvColumns)));
+                    part = new ArrayList<>(SAVE_PARTITION_SIZE);
+                    if (parts.size() >= maxParts) {
+                        count += addImported(objectClass.getName(), parts.poll().join());
+                    }
+                }
+            }
+            while (!parts.isEmpty()) {
+                count += addImported(objectClass.getName(), parts.poll().join());
+            }
+            saveDataIfNeeded((int) Math.min(count, Integer.MAX_VALUE));
+            return count;
+        } catch (Exception e) {
+            handleException(e);
+            return -1;
+        }
+    }
+
+    /**
+     * Starts backup of all data to specified file while database keeps working. Backup contains data as it was
+     * when this method was called: objects saved or deleted while image of data is taken keep their previous
+     * state in it (save running at the moment of call can be partly included). Image is written in background
+     * at rate set by {@link #setBackupRateLimit(long)} to temporary file, which replaces target file when it is
+     * complete, and index is saved next to it. Backup is data file in rows layout, it is loaded like any other
+     * data file. Only one image is taken at once. Previous states of changed objects are kept in memory until
+     * image is written. In {@link StorageMode#HEAP} mode previous state is read from stored instance, so object
+     * got by {@link #get} and changed in place before {@code saveOrUpdate} is in backup with that change
+     * (unless it was changed after its class was written); in {@link StorageMode#OFF_HEAP} mode objects are
+     * copies and image is exact.
+     *
+     * @param target backup file, its folder should exist
+     * @return running backup or null if backup could not be started
+     */
+    public static Backup backup(Path target) {
+        try {
+            Backup backup = new Backup(target.toAbsolutePath());
+            BackupImage image = new BackupImage();
+            loadPendingSections();
+            synchronized (ULDB.class) {
+                if (backupImage != null) {
+                    throw new IllegalStateException("Image of data for other backup is being taken");
+                }
+                backupImage = image;
+            }
+            backup.thread = new Thread(() -> backup.run(image), "ULDB-backup");
+            backup.thread.setDaemon(true);
+            backup.thread.start();
+            return backup;
+        } catch (Exception e) {
+            handleException(e);
+            return null;
+        }
+    }
+
+    /**
+     * Sets how many bytes per second backup writes, so it does not take all throughput of disk. Default: 64MB.
+     * Put 0 to write backup at full speed.
+     *
+     * @param bytesPerSecond rate of backup writes
+     */
+    public static void setBackupRateLimit(long bytesPerSecond) {
+        ULDB.backupRateLimit = bytesPerSecond;
+    }
+
+    /**
+     * Sets the name of file where data should be stored.
+     * Can contain path, but all folders should exist.
+     *
+     * @param fileName name of file
+     */
+    public static void setFilename(String fileName) {
+        ULDB.fileName = fileName;
+    }
+
+    /**
+     * Deletes all data from memory and local drive.
+     */
+    public static void deleteAllData() {
+        try {
+            storageEngine.delete();
+        } catch (Exception e) {
+            handleException(e);
+        }
+        clearData();
+        loadData();
+    }
+
+    /**
+     * Removes data from memory only. Data stored on local drive will not be touched here.
+     */
+    public static void clearData() {
+        pendingSections.clear();
+        synchronized (changedIds) {
+            changedIds.clear();
+        }
+        storedData.clear();
+        lastId.clear();
+        expiries.clear();
+        expiryWheel.clear();
+        referenceIndex.clear();
+        decodedValues.clear();
+        encodedValues.clear();
+        actionsSinceLastSave.set(0);
+    }
+
+    /**
+     * Set charset encoding for saved data. Default: UTF-8.
+     *
+     * @param encoding charset encoding
+     */
+    public static void setEncoding(String encoding) {
+        ULDB.encoding = encoding;
+    }
+
+    /**
+     * Sets how many actions could be done before ULDB saves data to local drive. Default is 0.
+     * Put negative value to disable automatic save.
+     * Making auto-save occur less often can increase performance, but can lead to loss of data when application is closed without running manual save.
+     *
+     * @param actionLimitBeforeSaving number of actions (actions: object save or object delete)
+     */
+    public static void setActionLimitBeforeSaving(int actionLimitBeforeSaving) {
+        ULDB.actionLimitBeforeSaving = actionLimitBeforeSaving;
+    }
+
+    /**
+     * Sets how data is stored in file. Default: ROWS.
+     * Data saved with any layout can be loaded regardless of this setting.
+     *
+     * @param layout layout of saved data
+     */
+    public static void setLayout(Layout layout) {
+        ULDB.layout = layout;
+    }
+
+    /**
+     * Sets engine that saves and loads data. Default: {@link TextFileEngine} (one file set by setFilename).
+     * Engine should be set before loadData. Objects already in memory are saved by new engine with next save.
+     *
+     * @param storageEngine storage engine
+     */
+    public static void setStorageEngine(StorageEngine storageEngine) {
+        synchronized (saveLock) {
+            ULDB.storageEngine.close();
+            ULDB.storageEngine = storageEngine;
+            for (Map.Entry<String, Map<Long, Object>> entry : storedData.entrySet()) {
+                for (Long id : entry.getValue().keySet()) {
+                    trackChange(entry.getKey(), id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets loading of classes on first access. Default: false.
+     * When enabled and file has valid index, loadData only reads index and each class is loaded when it is
+     * used for the first time (get, getAll, count, saveOrUpdate, ...). saveData loads all classes before saving.
+     * Used by default {@link TextFileEngine} only.
+     *
+     * @param lazyLoading true to load classes on first access
+     */
+    public static void setLazyLoading(boolean lazyLoading) {
+        ULDB.lazyLoading = lazyLoading;
+    }
+
+    /**
+     * Sets where objects are kept in memory. Default: HEAP.
+     * Setting is used for classes added to memory after the change, so it should be set before loadData.
+     *
+     * @param storageMode storage mode
+     */
+    public static void setStorageMode(StorageMode storageMode) {
+        ULDB.storageMode = storageMode;
+    }
+
+    /**
+     * Sets how many distinct values (String, BigDecimal, LocalDate, LocalDateTime) are remembered during loading
+     * and saving. Loaded objects share one instance of each remembered value, which reduces memory used by
+     * repeated values (eg. colors or names). When limit is reached, values used least recently are forgotten.
+     * Saved texts longer than 128 characters are not remembered. Default: 100000. Put 0 to disable.
+     *
+     * @param valueDictionaryLimit maximum number of remembered values
+     */
+    public static void setValueDictionaryLimit(int valueDictionaryLimit) {
+        ULDB.valueDictionaryLimit = valueDictionaryLimit;
+    }
+
+    /**
+     * Returns metrics of database operations. Metrics are always collected and counted since application start.
+     *
+     * @return metrics of database
+     */
+    public static Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers metrics in platform MBean server as "com.ULDB:type=Metrics", so they can be read by JMX tools.
+     * Running it more than once has no effect.
+     */
+    public static void registerMetricsMBean() {
+        try {
+            ObjectName name = new ObjectName("com.ULDB:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            }
+        } catch (Exception e) {
+            handleException(e);
+        }
+    }
+
+    /**
+     * Estimates memory used by objects of class: objects with their values (strings, numbers, dates, lists),
+     * boxed ids and entries of map holding them. Children with id are counted in their own class. Objects of big
+     * classes are estimated from a sample of a few hundred objects. Values shared by many objects (eg. loaded
+     * repeated texts) are counted for each object, so estimate is rather upper bound.
+     *
+     * @param objectClass class of objects
+     * @return estimated memory of class, empty if class has no objects in memory
+     */
+    public static HeapFootprint getHeapFootprint(Class<?> objectClass) {
+        Map<Long, Object> table = storedData.get(objectClass.getName());
+        return table == null ? new HeapFootprint(objectClass.getName(), 0, 0, 0) : HeapEstimator.estimate(objectClass.getName(), table);
+    }
+
+    /**
+     * Estimates memory used by objects of each class in memory, see {@link #getHeapFootprint(Class)}.
+     *
+     * @return estimated memory by class name
+     */
+    public static Map<String, HeapFootprint> getHeapFootprints() {
+        Map<String, HeapFootprint> footprints = new TreeMap<>();
+        for (Map.Entry<String, Map<Long, Object>> entry : storedData.entrySet()) {
+            footprints.put(entry.getKey(), HeapEstimator.estimate(entry.getKey(), entry.getValue()));
+        }
+        return footprints;
+    }
+
+    /**
+     * Sets memory budget of class. Heap sampler (see {@link #setHeapSamplingInterval(long)}) calls listener set
+     * by {@link #setHeapBudgetListener(HeapBudgetListener)} and counts it in metrics when estimated memory of class
+     * (heap and off-heap) grows past budget. It is reported again only after it was under budget.
+     *
+     * @param objectClass class of objects
+     * @param bytes       budget in bytes, 0 or less removes budget
+     */
+    public static void setHeapBudget(Class<?> objectClass, long bytes) {
+        if (bytes > 0) {
+            heapBudgets.put(objectClass.getName(), bytes);
+        } else {
+            heapBudgets.remove(objectClass.getName());
+            exceededHeapBudgets.remove(objectClass.getName());
+        }
+    }
+
+    /**
+     * Sets listener called on heap sampler thread when class grows past its budget.
+     *
+     * @param listener listener or null
+     */
+    public static void setHeapBudgetListener(HeapBudgetListener listener) {
+        heapBudgetListener = listener;
+    }
+
+    /**
+     * Sets how often memory of classes is estimated in background. Last estimates are available in metrics
+     * and classes are checked against budgets. Default: 0 (disabled).
+     *
+     * @param intervalMillis interval in milliseconds, 0 or less stops sampler
+     */
+    public static synchronized void setHeapSamplingInterval(long intervalMillis) {
+        heapSamplingInterval = intervalMillis;
+        if (intervalMillis <= 0) {
+            if (heapSampler != null) {
+                heapSampler.interrupt();
+                heapSampler = null;
+            }
+            return;
+        }
+        if (heapSampler != null) {
+            return;
+        }
+        heapSampler = new Thread(() -> {
+            while (true) {
+                try {
+                    long interval = heapSamplingInterval;
+                    if (interval <= 0) {
+                        return;
+                    }
+                    Thread.sleep(interval);
+                    sampleHeap();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    handleException(e);
+                }
+            }
+        }, "ULDB-heap-sampler");
+        heapSampler.setDaemon(true);
+        heapSampler.start();
+    }
+
+    /**
+     * Estimates memory of all classes, keeps estimates in metrics and reports classes that grew past budget.
+     */
+    private static void sampleHeap() {
+        Map<String, HeapFootprint> footprints = getHeapFootprints();
+        Map<String, Long> sampled = new TreeMap<>();
+        for (HeapFootprint footprint : footprints.values()) {
+            sampled.put(footprint.getClassName(), footprint.getTotalBytes());
+        }
+        metrics.sampledHeapBytes = Collections.unmodifiableMap(sampled);
+        for (Map.Entry<String, Long> budget : heapBudgets.entrySet()) {
+            HeapFootprint footprint = footprints.get(budget.getKey());
+            if (footprint == null || footprint.getTotalBytes() <= budget.getValue()) {
+                exceededHeapBudgets.remove(budget.getKey());
+            } else if (exceededHeapBudgets.add(budget.getKey())) {
+                metrics.heapBudgetExceededCount.increment();
+                HeapBudgetListener listener = heapBudgetListener;
+                if (listener != null) {
+                    try {
+                        listener.onBudgetExceeded(footprint, budget.getValue());
+                    } catch (Exception e) {
+                        handleException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds object to database without any validation.
+     *
+     * @param obj object to save
+     */
+    private static void addToDatabase(Object obj) {
+        if (obj != null) {
+            addToDatabase(Collections.singletonList(obj), false);
+        }
+    }
+
+    /**
+     * Reads data saved in any layout and adds it to database.
+     * In rows layout class block can start with schema header, then rows are decoded by plan compiled from header.
+     * Rows of blocks without header (files saved by older versions) have names of properties in every line.
+     *
+     * @param br      reader of saved data
+     * @param classes names of classes to load or null to load all
+     * @throws IOException when data can not be read
+     */
+    static void readData(BufferedReader br, Set<String> classes) throws IOException {
+        String currentLine = br.readLine();
+
+        if (COLUMNS_HEADER.equals(currentLine)) {
+            loadColumns(br, classes);
+            currentLine = null;
+        }
+
+        String objectClass = null;
+        boolean skipped = false;
+        RowPlan plan = null;
+        List<Object> objects = new ArrayList<>();
+        while (currentLine != null) {
+            if (!currentLine.isEmpty()) {
+                char lineType = currentLine.charAt(0);
+                if (lineType == '#') {
+                    addToDatabase(objects, false);
+                    objects.clear();
+                    String[] data = currentLine.substring(1).split(":", -1);
+                    objectClass = data[0];
+                    skipped = classes != null && !classes.contains(objectClass);
+                    if (!skipped) {
+                        lastId.put(objectClass, Long.parseLong(data[1]));
+                    }
+                    plan = null;
+                } else if (skipped) {
+                    // line of class that is not loaded
+                } else if (lineType == '!') {
+                    plan = RowPlan.compile(objectClass, currentLine);
+                } else {
+                    Object object = plan != null ? plan.decode(currentLine) : convertToObject(currentLine);
+                    if (object != null) {
+                        objects.add(object);
+                    }
+                    if (objects.size() >= SAVE_PARTITION_SIZE) {
+                        addToDatabase(objects, false);
+                        objects.clear();
+                    }
+                }
+            }
+            currentLine = br.readLine();
+        }
+        addToDatabase(objects, false);
+    }
+
+    /**
+     * Adds objects collected by collectObjectsForSave to database.
+     * Objects without valid id get new ids assigned in one pass per class.
+     * All ids are assigned before any object is stored, so stored objects refer to children with their new ids.
+     *
+     * @param objects        objects to save, all valid for save
+     * @param publishChanges true if change events should be sent to subscribers
+     */
+    static void addToDatabase(List<Object> objects, boolean publishChanges) {
+        addToDatabase(objects, publishChanges, publishChanges);
+    }
+
+    /**
+     * @param applyTimeToLive true if time to live of class is set for saved objects (false for objects replicated
+     *                        from primary, their expiries are replicated too)
+     */
+    private static void addToDatabase(List<Object> objects, boolean publishChanges, boolean applyTimeToLive) {
+        Map<String, List<Object>> objectsByClass = new LinkedHashMap<>();
+        for (Object obj : objects) {
+            objectsByClass.computeIfAbsent(obj.getClass().getName(), k -> new ArrayList<>()).add(obj);
+        }
+
+        Iterator<Map.Entry<String, List<Object>>> iterator = objectsByClass.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, List<Object>> entry = iterator.next();
+            String objectClass = entry.getKey();
+            // saved objects of class are needed for ids and would be replaced by them later
+            ensureLoaded(objectClass);
+            List<Object> classObjects = entry.getValue();
+            ClassMetadata metadata = getClassMetadata(classObjects.get(0).getClass());
+            try {
+                List<Object> newObjects = new ArrayList<>();
+                for (Object obj : classObjects) {
+                    long id = metadata.getId(obj);
+                    if (id < 1 || !isValidId(objectClass, id)) {
+                        newObjects.add(obj);
+                    }
+                }
+
+                if (!newObjects.isEmpty()) {
+                    if (!metadata.canSetId()) {
+                        handleException(new Exception("'setId(long)' function missing!"));
+                        iterator.remove();
+                        continue;
+                    }
+                    long[] ids = generateIds(objectClass, newObjects.size());
+                    for (int i = 0; i < ids.length; i++) {
+                        metadata.setId(newObjects.get(i), ids[i]);
+                    }
+                }
+            } catch (Exception e) {
+                handleException(e);
+                iterator.remove();
+            }
+        }
+
+        for (Map.Entry<String, List<Object>> entry : objectsByClass.entrySet()) {
+            ClassMetadata metadata = getClassMetadata(entry.getValue().get(0).getClass());
+            Map<Long, Object> classData = getOrCreateTable(entry.getKey());
+            try {
+                for (Object obj : entry.getValue()) {
+                    long id = metadata.getId(obj);
+                    if (publishChanges) {
+                        preserveForBackup(entry.getKey(), id, classData);
+                    }
+                    if (publishChanges && changeFeed.isActive()) {
+                        ChangeEvent.Type type = classData.containsKey(id) ? ChangeEvent.Type.UPDATE : ChangeEvent.Type.INSERT;
+                        classData.put(id, obj);
+                        changeFeed.publish(type, entry.getKey(), id, obj);
+                    } else {
+                        classData.put(id, obj);
+                    }
+                    referenceIndex.update(entry.getKey(), id, obj, metadata);
+                    if (publishChanges) {
+                        trackChange(entry.getKey(), id);
+                    }
+                    if (applyTimeToLive) {
+                        Long classTimeToLive = timeToLive.isEmpty() ? null : timeToLive.get(entry.getKey());
+                        if (classTimeToLive != null) {
+                            setExpiry(entry.getKey(), id, System.currentTimeMillis() + classTimeToLive);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                handleException(e);
+            }
+        }
+    }
+
+    /**
+     * Returns map of objects of class, new map is created if class have no objects yet.
+     *
+     * @param objectClass name of class
+     * @return objects by id
+     */
+    private static Map<Long, Object> getOrCreateTable(String objectClass) {
+        return storedData.computeIfAbsent(objectClass,
+                k -> storageMode == StorageMode.OFF_HEAP ? new OffHeapTable() : new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Keeps previous state of object which is going to be changed or deleted while backup image is taken.
+     */
+    private static void preserveForBackup(String className, long id, Map<Long, Object> table) {
+        BackupImage image = backupImage;
+        if (image != null) {
+            image.preserve(className, id, table);
+        }
+    }
+
+    /**
+     * Walks object graph once and returns object with all children that should be added to database.
+     * Children are collected only if they are not yet in database (id is empty). Each object is visited once.
+     *
+     * @param root object for adding, valid for save
+     * @return root object followed by its new children
+     */
+    static List<Object> collectObjectsForSave(Object root) {
+        List<Object> objects = new ArrayList<>();
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Object> toVisit = new ArrayDeque<>();
+        visited.add(root);
+        toVisit.push(root);
+
+        while (!toVisit.isEmpty()) {
+            Object obj = toVisit.pop();
+            objects.add(obj);
+            List<Object> children = new ArrayList<>();
+            try {
+                for (Property property : getClassMetadata(obj.getClass()).properties) {
+                    Class<?> returnType = property.type;
+                    if (returnType == List.class || returnType == ArrayList.class) {
+                        Object returnObj = property.get(obj);
+                        if (returnObj == null) {
+                            continue;
+                        }
+                        for (Object listObject : (List<?>) returnObj) {
+                            if (listObject == null) {
+                                continue;
+                            }
+                            // collect object only if valid and it do not exists in database
+                            if (!isValidForSave(listObject.getClass())) {
+                                break;
+                            }
+                            if (getId(listObject) == 0 && visited.add(listObject)) {
+                                children.add(listObject);
+                            }
+                        }
+                    } else if (isValidForSave(returnType)) {
+                        Object returnObj = property.get(obj);
+                        // collect object only if it do not exists in database
+                        if (returnObj != null && getId(returnObj) == 0 && visited.add(returnObj)) {
+                            children.add(returnObj);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                handleException(e);
+            }
+            // children are pushed in reverse to keep order in which they were found
+            for (int i = children.size() - 1; i >= 0; i--) {
+                toVisit.push(children.get(i));
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * Converts object to string line.
+     *
+     * @param obj object to convert
+     * @return Object as String
+     */
+    static String convertObjectToString(Object obj) {
+        StringBuilder objectStringBuilder = new StringBuilder();
+        try {
+            if (obj == null) {
+                return null;
+            }
+
+            Class<?> objectClass = obj.getClass();
+            ClassMetadata metadata = getClassMetadata(objectClass);
+
+            objectStringBuilder.append(objectClass.getName());
+            objectStringBuilder.append(";Id:");
+            objectStringBuilder.append(metadata.getId(obj));
+
+            for (Property property : metadata.properties) {
+                Object returnObj = property.get(obj);
+                if (returnObj == null) {
+                    continue;
+                }
+
+                StringBuilder data = getDataAsString(returnObj);
+                if (data == null) {
+                    continue;
+                }
+
+                objectStringBuilder.append(";");
+                objectStringBuilder.append(property.name);
+                objectStringBuilder.append(":");
+                objectStringBuilder.append(data);
+            }
+        } catch (Exception e) {
+            handleException(e);
+        }
+        return objectStringBuilder.toString();
+    }
+
+    private static StringBuilder getDataAsString(Object returnObj) throws ReflectiveOperationException {
+        StringBuilder data = new StringBuilder();
+        Class returnType = returnObj.getClass();
+
+        if (returnType.isEnum()) {
+            Enum<?> e = (Enum<?>) returnObj;
+            data.append(encodeText(e.name()));
+        } else if (returnType == boolean.class || returnType == Boolean.class) {
+            Boolean trueOrFalse = (Boolean) returnObj;
+            if (trueOrFalse)
+                data.append("1");
+            else
+                data.append("0");
+        } else if (returnType == Integer.class || returnType == int.class
+                || returnType == Short.class || returnType == short.class
+                || returnType == Long.class || returnType == long.class
+                || returnType == BigDecimal.class) {
+            data.append(returnObj.toString());
+        } else if (returnType == String.class) {
+            data.append(encodeText(returnObj.toString()));
+        } else if (returnType == List.class || returnType == ArrayList.class) {
+            List<?> list = (List<?>) returnObj;
+            if (list.size() == 0) {
+                return null;
+            }
+
+            Object firstObject = list.get(0);
+            // do not save list of other collections
+            if (firstObject instanceof Collection) {
+                return null;
+            }
+
+            Class parameterClass = firstObject.getClass();
+            StringBuilder listData = new StringBuilder();
+
+            for (Object listObject : (List<?>) returnObj) {
+                if (parameterClass == null) {
+                    parameterClass = listObject.getClass();
+                }
+                listData.append(",");
+                if (isValidForSave(listObject)) {
+                    listData.append(getId(listObject));
+                } else {
+                    listData.append(getDataAsString(listObject));
+                }
+            }
+            data.append(parameterClass.getName());
+            data.append(listData);
+        } else if (returnType == Calendar.class) {
+            String sb = ((Calendar) returnObj).get(Calendar.YEAR) +
+                    "." +
+                    ((Calendar) returnObj).get(Calendar.MONTH) +
+                    "." +
+                    ((Calendar) returnObj).get(Calendar.DAY_OF_MONTH) +
+                    "." +
+                    ((Calendar) returnObj).get(Calendar.HOUR_OF_DAY) +
+                    "." +
+                    ((Calendar) returnObj).get(Calendar.MINUTE) +
+                    "." +
+                    ((Calendar) returnObj).get(Calendar.SECOND) +
+                    "." +
+                    ((Calendar) returnObj).get(Calendar.MILLISECOND);
+            data.append(replaceOtherChars(sb));
+        } else if (returnType == LocalDate.class) {
+            data.append(((LocalDate) returnObj).toEpochDay());
+        } else if (returnType == LocalDateTime.class) {
+            data.append(((LocalDateTime) returnObj).toEpochSecond(ZoneOffset.UTC));
+        } else if (isValidForSave(returnType)) {
+            data.append(getClassMetadata(returnType).getId(returnObj));
+        } else {
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * Converts all data into parts of file content. Objects are divided into partitions which are converted
+     * in parallel, parts are returned in the same order as they should be written.
+     *
+     * @param charset     charset of saved data
+     * @param layout      layout of saved data
+     * @param partClasses output for name of class of each part (null for file header), can be null
+     * @return parts of file content
+     */
+    static List<byte[]> serializeData(Charset charset, Layout layout, List<String> partClasses) {
+        List<Supplier<String>> parts = dataParts(layout, partClasses, null);
+        Stream<Supplier<String>> stream = parts.size() > 2 ? parts.parallelStream() : parts.stream();
+        return stream.map(part -> part.get().getBytes(charset)).collect(Collectors.toList());
+    }
+
+    /**
+     * Divides all data into parts of file content, which are converted when they are needed.
+     * With backup image objects changed since image was started are converted in their previous state and
+     * objects deleted before ids of their class were listed are added after other objects of their class.
+     * Image should be finished after all parts are converted.
+     *
+     * @param layout      layout of saved data, only rows layout is supported with backup image
+     * @param partClasses output for name of class of each part (null for file header), can be null
+     * @param image       backup image or null to convert current data
+     * @return parts of file content
+     */
+    private static List<Supplier<String>> dataParts(Layout layout, List<String> partClasses, BackupImage image) {
+        loadPendingSections();
+        List<Supplier<String>> parts = new ArrayList<>();
+        List<String> classes = partClasses != null ? partClasses : new ArrayList<>();
+        if (layout == Layout.COLUMNS) {
+            parts.add(() -> COLUMNS_HEADER + "\n");
+            classes.add(null);
+        }
+        for (String objectClass : storedData.keySet()) {
+            if (layout == Layout.COLUMNS) {
+                parts.add(() -> {
+                    StringBuilder sb = new StringBuilder();
+                    appendColumns(sb, objectClass);
+                    return sb.toString();
+                });
+                classes.add(objectClass);
+                continue;
+            }
+            Map<Long, Object> table = storedData.get(objectClass);
+            List<Long> ids = new ArrayList<>(table.keySet());
+            ClassMetadata metadata;
+            try {
+                metadata = getClassMetadata(classForName(objectClass));
+            } catch (ClassNotFoundException e) {
+                handleException(e);
+                continue;
+            }
+            String header = "#" + objectClass + ":" + lastId.get(objectClass) + "\n" + metadata.getRowHeader() + "\n";
+            parts.add(() -> header);
+            classes.add(objectClass);
+            for (int from = 0; from < ids.size(); from += SAVE_PARTITION_SIZE) {
+                List<Long> partition = ids.subList(from, Math.min(ids.size(), from + SAVE_PARTITION_SIZE));
+                parts.add(() -> appendRows(new StringBuilder(), objectClass, table, metadata, partition, image).toString());
+                classes.add(objectClass);
+            }
+            if (image != null) {
+                // object missing in ids was deleted before they were listed, so its previous state is already kept
+                parts.add(() -> image.appendDeleted(new StringBuilder(), objectClass, ids).toString());
+                classes.add(objectClass);
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Appends objects as lines of rows layout. Objects deleted in the meantime are skipped.
+     *
+     * @param sb          output
+     * @param objectClass name of class
+     * @param table       objects of class
+     * @param metadata    metadata of class
+     * @param ids         ids of appended objects
+     * @param image       backup image or null to append current objects
+     * @return output
+     */
+    private static StringBuilder appendRows(StringBuilder sb, String objectClass, Map<Long, Object> table,
+                                            ClassMetadata metadata, List<Long> ids, BackupImage image) {
+        for (Long id : ids) {
+            if (table instanceof OffHeapTable) {
+                String record = ((OffHeapTable) table).getRecord(id);
+                // previous state is checked after current one, so object changed in between is not missed
+                String previous = image == null ? null : image.getPrevious(objectClass, id);
+                if (previous != null) {
+                    appendPrevious(sb, previous);
+                } else if (record != null) {
+                    sb.append(record);
+                    sb.append("\n");
+                }
+            } else {
+                Object object = table.get(id);
+                String previous = image == null ? null : image.getPrevious(objectClass, id);
+                if (previous != null) {
+                    appendPrevious(sb, previous);
+                } else if (object != null) {
+                    appendRow(sb, metadata, object);
+                    sb.append("\n");
+                }
+            }
+        }
+        return sb;
+    }
+
+    /**
+     * Appends previous row of object kept by backup image. Empty row means that object did not exist.
+     */
+    private static void appendPrevious(StringBuilder sb, String previous) {
+        if (!previous.isEmpty()) {
+            sb.append(previous);
+            sb.append("\n");
+        }
+    }
+
+    /**
+     * Appends object as row with values in order of class row header ("Id" first). Null value is saved as "#".
+     *
+     * @param sb       output
+     * @param metadata metadata of object class
+     * @param obj      object to append
+     * @return output
+     */
+    static StringBuilder appendRow(StringBuilder sb, ClassMetadata metadata, Object obj) {
+        try {
+            sb.append(metadata.getId(obj));
+            for (Property property : metadata.properties) {
+                sb.append(";");
+                Object value = property.get(obj);
+                StringBuilder data = value == null ? null : getDataAsString(value);
+                sb.append(data == null ? NULL_VALUE : data);
+            }
+        } catch (Exception e) {
+            handleException(e);
+        }
+        return sb;
+    }
+
+    /**
+     * Returns objects of class, class is loaded first if it is waiting for lazy loading.
+     *
+     * @param objectClass name of class
+     * @return objects by id or null if there are no objects of class
+     */
+    private static Map<Long, Object> getTable(String objectClass) {
+        ensureLoaded(objectClass);
+        return storedData.get(objectClass);
+    }
+
+    /**
+     * Loads section of class if it is waiting for lazy loading. Section is removed from waiting sections
+     * after it is loaded, so other threads wait until objects are in memory.
+     *
+     * @param objectClass name of class
+     */
+    private static void ensureLoaded(String objectClass) {
+        // objects of section being loaded by this thread are added to database without loading it again
+        if (pendingSections.isEmpty() || !pendingSections.containsKey(objectClass) || Thread.holdsLock(pendingSections)) {
+            return;
+        }
+        synchronized (pendingSections) {
+            Section section = pendingSections.get(objectClass);
+            if (section != null) {
+                try {
+                    loadSection(objectClass, section);
+                } catch (Exception e) {
+                    handleException(e);
+                }
+                pendingSections.remove(objectClass);
+            }
+        }
+    }
+
+    private static void loadPendingSections() {
+        for (String objectClass : new ArrayList<>(pendingSections.keySet())) {
+            ensureLoaded(objectClass);
+        }
+    }
+
+    /**
+     * Reads one class section of data file and adds its objects to database.
+     *
+     * @param objectClass name of class
+     * @param section     section of data file
+     * @throws IOException when file can not be read
+     */
+    private static void loadSection(String objectClass, Section section) throws IOException {
+        Object loadEvent = flightRecording ? eventRecorder.beginLoadSection() : null;
+        int loaded = loadEvent != null ? storedData.getOrDefault(objectClass, Collections.emptyMap()).size() : 0;
+        byte[] data = new byte[(int) section.length];
+        try (RandomAccessFile file = new RandomAccessFile(section.file, "r")) {
+            file.seek(section.offset);
+            file.readFully(data);
+        }
+        metrics.bytesRead.add(data.length);
+        BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data), "UTF8"));
+        if (section.layout == Layout.COLUMNS) {
+            loadColumns(br, null);
+        } else {
+            readData(br, null);
+        }
+        if (loadEvent != null) {
+            int records = storedData.getOrDefault(objectClass, Collections.emptyMap()).size() - loaded;
+            eventRecorder.endLoadSection(loadEvent, objectClass, records, data.length);
+        }
+    }
+
+    /**
+     * Reads projected objects from section of class that is not loaded yet.
+     *
+     * @param section   section of class in data file
+     * @param metadata  metadata of class
+     * @param projected properties to decode
+     * @param objects   output for objects
+     * @throws IOException when file can not be read
+     */
+    private static void projectSection(Section section, ClassMetadata metadata, Set<Property> projected,
+                                       List<Object> objects) throws IOException {
+        byte[] data = new byte[(int) section.length];
+        try (RandomAccessFile file = new RandomAccessFile(section.file, "r")) {
+            file.seek(section.offset);
+            file.readFully(data);
+        }
+        metrics.bytesRead.add(data.length);
+        BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8));
+        String className = metadata.objectClass.getName();
+        int count = 0;
+        List<Property> header = new ArrayList<>();
+        List<String[]> columns = new ArrayList<>();
+        RowPlan plan = null;
+        String currentLine;
+        while ((currentLine = br.readLine()) != null) {
+            if (currentLine.isEmpty()) {
+                continue;
+            }
+            char lineType = currentLine.charAt(0);
+            if (lineType == '#') {
+                String[] values = currentLine.substring(1).split(":", -1);
+                count = section.layout == Layout.COLUMNS ? Integer.parseInt(values[2]) : 0;
+            } else if (lineType == '!') {
+                if (section.layout == Layout.COLUMNS) {
+                    for (String property : currentLine.substring(1).split(";")) {
+                        if (!property.isEmpty()) {
+                            String name = property.substring(0, property.indexOf(':'));
+                            Property p = name.equals("Id") ? metadata.idProperty : metadata.propertiesByName.get(name);
+                            header.add(projected.contains(p) ? p : null);
+                        }
+                    }
+                } else {
+                    plan = RowPlan.compile(className, currentLine).project(projected);
+                }
+            } else if (lineType == '=') {
+                // columns of other properties are not decoded
+                int column = columns.size();
+                columns.add(column < header.size() && header.get(column) != null ? readColumn(currentLine.substring(1), count) : null);
+            } else if (section.layout == Layout.ROWS) {
+                objects.add(plan != null ? plan.decode(currentLine) : convertToObject(currentLine, projected));
+            }
+        }
+        for (int row = 0; row < count; row++) {
+            Object object;
+            try {
+                object = metadata.newInstance();
+            } catch (ReflectiveOperationException e) {
+                handleException(e);
+                return;
+            }
+            for (int i = 0; i < header.size() && i < columns.size(); i++) {
+                if (header.get(i) != null && columns.get(i)[row] != null) {
+                    setValueToTargetObject(object, header.get(i), columns.get(i)[row]);
+                }
+            }
+            objects.add(object);
+        }
+    }
+
+    /**
+     * Saves index of data file: header "@ULDB:index:layout:file length:file modification time"
+     * and "class:offset:length" line for section of each class.
+     *
+     * @param file        saved data file
+     * @param parts       parts written to file
+     * @param partClasses name of class of each part
+     */
+    private static void writeIndex(File file, List<byte[]> parts, List<String> partClasses) {
+        writeIndex(file, layout, parts, partClasses);
+    }
+
+    private static void writeIndex(File file, Layout layout, List<byte[]> parts, List<String> partClasses) {
+        long[] partLengths = new long[parts.size()];
+        for (int i = 0; i < partLengths.length; i++) {
+            partLengths[i] = parts.get(i).length;
+        }
+        writeIndex(file, layout, partLengths, partClasses);
+    }
+
+    private static void writeIndex(File file, Layout layout, long[] partLengths, List<String> partClasses) {
+        Map<String, long[]> sections = new LinkedHashMap<>();
+        long offset = 0;
+        for (int i = 0; i < partLengths.length; i++) {
+            String objectClass = partClasses.get(i);
+            if (objectClass != null) {
+                long[] section = sections.computeIfAbsent(objectClass, k -> new long[2]);
+                if (section[1] == 0) {
+                    section[0] = offset;
+                }
+                section[1] += partLengths[i];
+            }
+            offset += partLengths[i];
+        }
+
+        StringBuilder sb = new StringBuilder(INDEX_HEADER);
+        sb.append(layout).append(":").append(file.length()).append(":").append(file.lastModified()).append("\n");
+        for (Map.Entry<String, long[]> section : sections.entrySet()) {
+            sb.append(section.getKey()).append(":").append(section.getValue()[0]).append(":").append(section.getValue()[1]).append("\n");
+        }
+        try (OutputStream out = new FileOutputStream(file.getPath() + INDEX_SUFFIX)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            handleException(e);
+        }
+    }
+
+    /**
+     * Reads index of data file. Index is valid only if data file has the same length and modification time
+     * as when index was saved.
+     *
+     * @param file data file
+     * @return sections by class name or null if there is no valid index
+     */
+    private static Map<String, Section> readIndex(File file) {
+        File indexFile = new File(file.getPath() + INDEX_SUFFIX);
+        if (!indexFile.exists()) {
+            return null;
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            String header = br.readLine();
+            if (header == null || !header.startsWith(INDEX_HEADER)) {
+                return null;
+            }
+            String[] data = header.substring(INDEX_HEADER.length()).split(":");
+            Layout indexLayout = Layout.valueOf(data[0]);
+            if (Long.parseLong(data[1]) != file.length() || Long.parseLong(data[2]) != file.lastModified()) {
+                return null;
+            }
+            Map<String, Section> sections = new HashMap<>();
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] section = line.split(":");
+                if (section.length == 3) {
+                    sections.put(section[0], new Section(file, indexLayout, Long.parseLong(section[1]), Long.parseLong(section[2])));
+                }
+            }
+            return sections;
+        } catch (Exception e) {
+            handleException(e);
+            return null;
+        }
+    }
+
+    /**
+     * Appends all objects of class as block of columns. Block starts with "#class:lastId:count" line,
+     * then header line "!Id:long;Name:type;..." and one "=" line for each header property.
+     * Column line starts with encoding:
+     * - "d:" - numbers saved as difference to previous value,
+     * - "c:" - dictionary of distinct values, then ":" and index of value for each object,
+     * - "l:" - list element class, then ":" and list values without class name,
+     * - "v:" - values as they are.
+     * Values are separated by ";" (dictionary indexes by ","), null value is saved as "#".
+     *
+     * @param sb          output
+     * @param objectClass name of saved class
+     */
+    private static void appendColumns(StringBuilder sb, String objectClass) {
+        List<Object> objects = new ArrayList<>();
+        TreeMap<Long, Object> sortedObjects = new TreeMap<>(storedData.get(objectClass));
+        objects.addAll(sortedObjects.values());
+
+        List<Property> properties = new ArrayList<>();
+        if (!objects.isEmpty()) {
+            ClassMetadata metadata = getClassMetadata(objects.get(0).getClass());
+            properties.add(metadata.idProperty);
+            properties.addAll(metadata.properties);
+        }
+
+        sb.append("#").append(objectClass).append(":").append(lastId.get(objectClass)).append(":").append(objects.size()).append("\n");
+        sb.append("!");
+        for (int i = 0; i < properties.size(); i++) {
+            if (i > 0) {
+                sb.append(";");
+            }
+            sb.append(properties.get(i).name).append(":").append(properties.get(i).type.getName());
+        }
+        sb.append("\n");
+
+        for (Property property : properties) {
+            String[] values = new String[objects.size()];
+            for (int i = 0; i < values.length; i++) {
+                try {
+                    Object value = property.get(objects.get(i));
+                    StringBuilder data = value == null ? null : getDataAsString(value);
+                    values[i] = data == null ? null : data.toString();
+                } catch (Exception e) {
+                    handleException(e);
+                }
+            }
+            sb.append("=");
+            appendColumn(sb, property.type, values);
+            sb.append("\n");
+        }
+    }
+
+    private static void appendColumn(StringBuilder sb, Class<?> type, String[] values) {
+        if (type == long.class || type == Long.class || type == int.class || type == Integer.class
+                || type == short.class || type == Short.class || type == LocalDate.class || type == LocalDateTime.class) {
+            sb.append("d:");
+            long previous = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    sb.append(";");
+                }
+                if (values[i] == null) {
+                    sb.append(NULL_VALUE);
+                } else {
+                    long value = Long.parseLong(values[i]);
+                    sb.append(value - previous);
+                    previous = value;
+                }
+            }
+            return;
+        }
+
+        if (type == String.class || type.isEnum() || type == Boolean.class || type == boolean.class) {
+            Map<String, Integer> dictionary = new LinkedHashMap<>();
+            for (String value : values) {
+                if (value != null && !dictionary.containsKey(value)) {
+                    if (dictionary.size() >= DICTIONARY_LIMIT || dictionary.size() * 2 >= values.length) {
+                        dictionary = null;
+                        break;
+                    }
+                    dictionary.put(value, dictionary.size());
+                }
+            }
+            if (dictionary != null) {
+                sb.append("c:");
+                sb.append(String.join(";", dictionary.keySet()));
+                sb.append(":");
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        sb.append(",");
+                    }
+                    sb.append(values[i] == null ? NULL_VALUE : dictionary.get(values[i]).toString());
+                }
+                return;
+            }
+        }
+
+        if (type == List.class || type == ArrayList.class) {
+            String elementClass = null;
+            for (String value : values) {
+                if (value == null) {
+                    continue;
+                }
+                String valueClass = value.substring(0, value.indexOf(',') < 0 ? value.length() : value.indexOf(','));
+                if (elementClass == null) {
+                    elementClass = valueClass;
+                } else if (!elementClass.equals(valueClass)) {
+                    elementClass = null;
+                    break;
+                }
+            }
+            if (elementClass != null) {
+                sb.append("l:").append(elementClass).append(":");
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        sb.append(";");
+                    }
+                    sb.append(values[i] == null ? NULL_VALUE : values[i].substring(elementClass.length()));
+                }
+                return;
+            }
+        }
+
+        sb.append("v:");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(";");
+            }
+            sb.append(values[i] == null ? NULL_VALUE : values[i]);
+        }
+    }
+
+    /**
+     * Loads data saved with columns layout. See appendColumns for format description.
+     *
+     * @param br      reader positioned after file header
+     * @param classes names of classes to load or null to load all
+     */
+    private static void loadColumns(BufferedReader br, Set<String> classes) throws IOException {
+        String objectClass = null;
+        boolean skipped = false;
+        int count = 0;
+        List<String> header = new ArrayList<>();
+        List<String[]> columns = new ArrayList<>();
+        String currentLine;
+
+        while ((currentLine = br.readLine()) != null) {
+            if (currentLine.isEmpty()) {
+                continue;
+            }
+            char lineType = currentLine.charAt(0);
+            if (lineType == '#') {
+                if (objectClass != null && !skipped) {
+                    addColumnsToDatabase(objectClass, count, header, columns);
+                }
+                String[] data = currentLine.substring(1).split(":", -1);
+                objectClass = data[0];
+                skipped = classes != null && !classes.contains(objectClass);
+                if (!skipped) {
+                    lastId.put(objectClass, Long.parseLong(data[1]));
+                }
+                count = Integer.parseInt(data[2]);
+                header.clear();
+                columns.clear();
+            } else if (skipped) {
+                // line of class that is not loaded
+            } else if (lineType == '!') {
+                for (String property : currentLine.substring(1).split(";")) {
+                    if (!property.isEmpty()) {
+                        header.add(property.substring(0, property.indexOf(':')));
+                    }
+                }
+            } else if (lineType == '=') {
+                columns.add(readColumn(currentLine.substring(1), count));
+            }
+        }
+        if (objectClass != null && !skipped) {
+            addColumnsToDatabase(objectClass, count, header, columns);
+        }
+    }
+
+    /**
+     * Decodes column line into values in the same form as they are saved in rows layout.
+     *
+     * @param column column line without "=" prefix
+     * @param count  number of values
+     * @return values, null for empty value
+     */
+    private static String[] readColumn(String column, int count) {
+        String[] values = new String[count];
+        if (count == 0) {
+            return values;
+        }
+        char encoding = column.charAt(0);
+        String data = column.substring(2);
+
+        if (encoding == 'd') {
+            String[] deltas = data.split(";", -1);
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                if (!NULL_VALUE.equals(deltas[i])) {
+                    previous += Long.parseLong(deltas[i]);
+                    values[i] = Long.toString(previous);
+                }
+            }
+        } else if (encoding == 'c') {
+            int separator = data.lastIndexOf(':');
+            String[] dictionary = data.substring(0, separator).split(";", -1);
+            String[] indexes = data.substring(separator + 1).split(",", -1);
+            for (int i = 0; i < count; i++) {
+                if (!NULL_VALUE.equals(indexes[i])) {
+                    values[i] = dictionary[Integer.parseInt(indexes[i])];
+                }
+            }
+        } else if (encoding == 'l') {
+            int separator = data.indexOf(':');
+            String elementClass = data.substring(0, separator);
+            String[] lists = data.substring(separator + 1).split(";", -1);
+            for (int i = 0; i < count; i++) {
+                if (!NULL_VALUE.equals(lists[i])) {
+                    values[i] = elementClass + lists[i];
+                }
+            }
+        } else {
+            String[] plain = data.split(";", -1);
+            for (int i = 0; i < count; i++) {
+                if (!NULL_VALUE.equals(plain[i])) {
+                    values[i] = plain[i];
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Creates objects from decoded columns and adds them to database.
+     * Properties from header that class do not have anymore are skipped.
+     */
+    private static void addColumnsToDatabase(String objectClass, int count, List<String> header, List<String[]> columns) {
+        ClassMetadata metadata;
+        try {
+            metadata = getClassMetadata(classForName(objectClass));
+        } catch (ClassNotFoundException e) {
+            handleException(e);
+            return;
+        }
+
+        Property[] properties = new Property[header.size()];
+        for (int i = 0; i < properties.length; i++) {
+            properties[i] = header.get(i).equals("Id") ? metadata.idProperty : metadata.propertiesByName.get(header.get(i));
+        }
+
+        List<Object> objects = new ArrayList<>(count);
+        for (int row = 0; row < count; row++) {
+            Object object;
+            try {
+                object = metadata.newInstance();
+            } catch (ReflectiveOperationException e) {
+                handleException(e);
+                return;
+            }
+            for (int i = 0; i < properties.length && i < columns.size(); i++) {
+                String value = columns.get(i)[row];
+                if (properties[i] != null && value != null) {
+                    setValueToTargetObject(object, properties[i], value);
+                }
+            }
+            objects.add(object);
+        }
+        getOrCreateTable(objectClass);
+        addToDatabase(objects, false);
+    }
+
+    /**
+     * Converts object saved as string into normal object.
+     *
+     * @param objectAsString object saved as string
+     * @return object with filled data
+     */
+    static Object convertToObject(String objectAsString) {
+        return convertToObject(objectAsString, null);
+    }
+
+    /**
+     * Converts object saved as string into object with only some properties filled.
+     * Values of other properties are skipped without copying them.
+     *
+     * @param objectAsString object saved as string
+     * @param projected      properties to fill or null for all
+     * @return object with filled data
+     */
+    private static Object convertToObject(String objectAsString, Set<Property> projected) {
+        if (objectAsString == null || objectAsString.isEmpty()) {
+            return null;
+        }
+        int end = objectAsString.indexOf(';');
+        if (end < 0) {
+            end = objectAsString.length();
+        }
+
+        // class name is the first value
+        ClassMetadata metadata;
+        Object object;
+        try {
+            metadata = getClassMetadata(classForName(objectAsString.substring(0, end)));
+            object = metadata.newInstance();
+        } catch (ReflectiveOperationException e) {
+            handleException(e);
+            return null;
+        }
+
+        // filling fields of new object
+        while (end < objectAsString.length()) {
+            int start = end + 1;
+            end = objectAsString.indexOf(';', start);
+            if (end < 0) {
+                end = objectAsString.length();
+            }
+            int separator = objectAsString.indexOf(':', start);
+            if (separator < 0 || separator > end) {
+                continue;
+            }
+            String name = objectAsString.substring(start, separator);
+            Property property = name.equals("Id") ? metadata.idProperty : metadata.propertiesByName.get(name);
+            if (property != null && (projected == null || projected.contains(property))) {
+                setValueToTargetObject(object, property, objectAsString.substring(separator + 1, end));
+            }
+        }
+        return object;
+    }
+
+    /**
+     * Returns class with given name. Classes are remembered, so each name is looked up only once.
+     *
+     * @param className name of class
+     * @return class
+     * @throws ClassNotFoundException when class do not exist
+     */
+    static Class<?> classForName(String className) throws ClassNotFoundException {
+        Class<?> objectClass = classesByName.get(className);
+        if (objectClass == null) {
+            objectClass = Class.forName(className);
+            classesByName.put(className, objectClass);
+        }
+        return objectClass;
+    }
+
+    private static void setValueToTargetObject(Object targetObject, Property property, String value) {
+        try {
+            Object parsedValue = parseValue(value, property.type);
+            // Boolean saved as other value than 0 or 1 is set to null
+            if (parsedValue != null || property.type == Boolean.class) {
+                property.set(targetObject, parsedValue);
+            }
+        } catch (Exception e) {
+            handleException(e);
+        }
+    }
+
+    /**
+     * Converts value saved as string into object of given type.
+     *
+     * @param value          value saved as string
+     * @param parameterClass type of value
+     * @return value or null if type is not supported
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object parseValue(String value, Class parameterClass) throws ReflectiveOperationException {
+        if (parameterClass.isEnum()) {
+            return Enum.valueOf((Class<? extends Enum>) parameterClass, value);
+        } else if (parameterClass == Boolean.class || parameterClass == boolean.class) {
+            switch (value) {
+                case "1":
+                    return true;
+                case "0":
+                    return false;
+                default:
+                    return parameterClass == boolean.class ? false : null;
+            }
+        } else if (parameterClass == Long.class || parameterClass == long.class) {
+            return Long.parseLong(value);
+        } else if (parameterClass == Integer.class || parameterClass == int.class) {
+            return Integer.parseInt(value);
+        } else if (parameterClass == Short.class || parameterClass == short.class) {
+            return Short.parseShort(value);
+        } else if (parameterClass == Double.class || parameterClass == double.class) {
+            return Double.parseDouble(value);
+        } else if (parameterClass == String.class) {
+            Object known = decodedValues.get(String.class, value);
+            return known != null ? known : decodedValues.put(String.class, value, replaceOtherCharsReverted(value));
+        } else if (parameterClass == BigDecimal.class) {
+            Object known = decodedValues.get(BigDecimal.class, value);
+            if (known != null) {
+                return known;
+            }
+            if (value.contains(".")) {
+                return decodedValues.put(BigDecimal.class, value, BigDecimal.valueOf(Double.parseDouble(value)));
+            } else {
+                return decodedValues.put(BigDecimal.class, value, BigDecimal.valueOf(Long.parseLong(value)));
+            }
+        } else if (parameterClass == ArrayList.class || parameterClass == List.class) {
+            List list = new ArrayList<>();
+            String[] dataStringArray = value.split(",");
+            Class collectionElementClass = classForName(dataStringArray[0]);
+            ClassMetadata elementMetadata = getClassMetadata(collectionElementClass);
+            for (int i = 1; i < dataStringArray.length; i++) {
+                try {
+                    if (elementMetadata.canSetId()) {
+                        Object newObject = elementMetadata.newInstance();
+                        elementMetadata.setId(newObject, Long.parseLong(replaceOtherCharsReverted(dataStringArray[i])));
+                        list.add(newObject);
+                    } else {
+                        list.add(parseValue(dataStringArray[i], collectionElementClass));
+                    }
+                } catch (Exception e) {
+                    handleException(e);
+                }
+            }
+            return list;
+        } else if (parameterClass == Calendar.class) {
+            String dataString = replaceOtherCharsReverted(value);
+            String[] dataStringArray = dataString.split("\\.");
+            Calendar date = GregorianCalendar.getInstance();
+            date.set(Calendar.YEAR, Integer.parseInt(dataStringArray[0]));
+            date.set(Calendar.MONTH, Integer.parseInt(dataStringArray[1]));
+            date.set(Calendar.DAY_OF_MONTH, Integer.parseInt(dataStringArray[2]));
+            date.set(Calendar.HOUR_OF_DAY, Integer.parseInt(dataStringArray[3]));
+            date.set(Calendar.MINUTE, Integer.parseInt(dataStringArray[4]));
+            date.set(Calendar.SECOND, Integer.parseInt(dataStringArray[5]));
+            date.set(Calendar.MILLISECOND, Integer.parseInt(dataStringArray[6]));
+            return date;
+        } else if (parameterClass == LocalDate.class) {
+            Object known = decodedValues.get(LocalDate.class, value);
+            return known != null ? known : decodedValues.put(LocalDate.class, value, LocalDate.ofEpochDay(Long.parseLong(value)));
+        } else if (parameterClass == LocalDateTime.class) {
+            Object known = decodedValues.get(LocalDateTime.class, value);
+            return known != null ? known
+                    : decodedValues.put(LocalDateTime.class, value, LocalDateTime.ofEpochSecond(Long.parseLong(value), 0, ZoneOffset.UTC));
+        } else if (isValidForSave(parameterClass)) {
+            ClassMetadata metadata = getClassMetadata(parameterClass);
+            if (metadata.canSetId()) {
+                Object newObject = metadata.newInstance();
+                metadata.setId(newObject, Long.parseLong(replaceOtherCharsReverted(value)));
+                return newObject;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns setter method for id or null if such do not exists.
+     */
+    @SuppressWarnings("unchecked")
+    private static Method getIdSetterMethod(Class objectClass) {
+        try {
+            return objectClass.getMethod("setId", long.class);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Generate new database ids for many objects of the same class at once.
+     *
+     * @param objectClass object class
+     * @param count       number of needed ids
+     * @return next ids that should be used for that class
+     */
+    private static long[] generateIds(String objectClass, int count) {
+        long[] ids = new long[count];
+        Map<Long, Object> classData = storedData.get(objectClass);
+        // ids are reserved atomically, so objects of one class saved from many threads never get the same id
+        lastId.compute(objectClass, (k, last) -> {
+            long id = last == null ? 0 : last;
+            for (int i = 0; i < count; i++) {
+                id++;
+                while (classData != null && classData.containsKey(id)) {
+                    id++;
+                }
+                ids[i] = id;
+            }
+            return id;
+        });
+
+        return ids;
+    }
+
+    private static boolean isValidId(String objectClass, Long id) {
+        if (!lastId.containsKey(objectClass)) {
+            return false;
+        }
+        long last = lastId.get(objectClass);
+        return last >= id;
+    }
+
+    /**
+     * Remove 'get' or 'is' prefix to get field name.
+     *
+     * @param method Method
+     * @return name of field
+     */
+    private static String removePerfix(Method method) {
+        String methodName = method.getName();
+        if (methodName.startsWith("get")) {
+            methodName = methodName.replaceFirst("get", "");
+        } else if (methodName.startsWith("is")) {
+            methodName = methodName.replaceFirst("is", "");
+        }
+        return methodName;
+    }
+
+    /**
+     * Returns text with special characters replaced, remembered texts are not replaced again.
+     * Long texts are rarely repeated, so they are not remembered.
+     */
+    private static String encodeText(String s) {
+        if (s.length() > MAX_REMEMBERED_TEXT_LENGTH) {
+            return replaceOtherChars(s);
+        }
+        Object known = encodedValues.get(String.class, s);
+        return known != null ? (String) known : encodedValues.put(String.class, s, replaceOtherChars(s));
+    }
+
+    //TODO temporary solution, could be done better for sure
+    private static String replaceOtherChars(String s) {
+        s = s.replaceAll("#", "XaFS");
+        s = s.replaceAll(":", "#x#");
+        s = s.replaceAll(";", "#y#");
+        s = s.replaceAll("\n", "#n#");
+        s = s.replaceAll("\t", "#t#");
+        s = s.replaceAll("<", "#1#");
+        s = s.replaceAll(">", "#2#");
+        s = s.replaceAll("&", "#l#");
+        return s;
+    }
+
+    private static String replaceOtherCharsReverted(String s) {
+        s = s.replaceAll("#x#", ":");
+        s = s.replaceAll("#y#", ";");
+        s = s.replaceAll("#n#", "\n");
+        s = s.replaceAll("#t#", "\t");
+        s = s.replaceAll("#1#", "<");
+        s = s.replaceAll("#2#", ">");
+        s = s.replaceAll("#l#", "&");
+        s = s.replaceAll("XaFS", "#");
+        return s;
+    }
+
+    /**
+     * Check does object is valid for save by ULDB.
+     *
+     * @param object object for validation
+     * @return true if object have id getter and setter
+     */
+    static boolean isValidForSave(Object object) {
+        if (object == null) {
+            return false;
+        }
+
+        return isValidForSave(object.getClass());
+    }
+
+    /**
+     * Check does class is valid for save by ULDB.
+     *
+     * @param objectClass Class of object for validation
+     * @return true if class have id getter and setter
+     */
+    static boolean isValidForSave(Class<?> objectClass) {
+
+        if (objectClass == null)
+            return false;
+
+        return getClassMetadata(objectClass).isValidForSave();
+    }
+
+    /**
+     * Returns cached metadata of class. Methods of class are scanned only once.
+     *
+     * @param objectClass class of object
+     * @return metadata of class
+     */
+    static ClassMetadata getClassMetadata(Class<?> objectClass) {
+        ClassMetadata metadata = classMetadata.get(objectClass);
+        if (metadata == null) {
+            metadata = new ClassMetadata(objectClass);
+            classMetadata.put(objectClass, metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * Gets id of object.
+     *
+     * @param obj checked object
+     * @return id of object
+     */
+    static long getId(Object obj) {
+        try {
+            ClassMetadata metadata = getClassMetadata(obj.getClass());
+            if (metadata.isValidForSave()) {
+                return metadata.getId(obj);
+            }
+            return (long) obj.getClass().getMethod("getId").invoke(obj);
+        } catch (Exception e) {
+            handleException(e);
+        }
+        return 0;
+    }
+
+    /**
+     * Return setter method name of getter name.
+     */
+    private static String getSetter(String s) {
+        if (s.startsWith("get")) {
+            return "set" + s.substring(3);
+        }
+        if (s.startsWith("is")) {
+            return "set" + s.substring(2);
+        }
+        return null;
+    }
+
+    /**
+     * Saves data if unsaved action counter is have bigger value then actionLimitBeforeSaving (default 0).
+     * Negative value of actionLimitBeforeSaving will disable automatic save.
+     */
+    private static void saveDataIfNeeded() {
+        saveDataIfNeeded(1);
+    }
+
+    /**
+     * Counts many actions at once and saves data at most one time.
+     *
+     * @param actions number of done actions
+     */
+    private static void saveDataIfNeeded(int actions) {
+        if (countActions(actions)) {
+            saveData();
+        }
+    }
+
+    /**
+     * Counts actions done since last save.
+     *
+     * @param actions number of done actions
+     * @return true if data should be saved now
+     */
+    private static boolean countActions(int actions) {
+        if (actionLimitBeforeSaving < 0) {
+            return false;
+        }
+
+        return actionsSinceLastSave.addAndGet(actions) > actionLimitBeforeSaving;
+    }
+
+    /**
+     * Remembers that object was saved or deleted, if storage engine saves only changes.
+     *
+     * @param objectClass name of class
+     * @param id          id of object
+     */
+    private static void trackChange(String objectClass, long id) {
+        if (storageEngine.tracksChanges()) {
+            synchronized (changedIds) {
+                changedIds.computeIfAbsent(objectClass, k -> new HashSet<>()).add(id);
+            }
+        }
+    }
+
+    private static Map<String, Set<Long>> drainChanges() {
+        synchronized (changedIds) {
+            Map<String, Set<Long>> changes = new HashMap<>(changedIds);
+            changedIds.clear();
+            return changes;
+        }
+    }
+
+    /**
+     * Finds references to object by its class name and id, see {@link #findReferrers(Object)}.
+     *
+     * @param className name of class of referenced object
+     * @param id        id of referenced object
+     * @return references ordered by class, id and property of owner
+     */
+    private static List<Reference> findReferrers(String className, long id) {
+        // owners can be in any class, all of them have to be loaded
+        loadPendingSections();
+        List<Reference> references = new ArrayList<>(referenceIndex.get(className, id));
+        references.sort(Comparator.comparing(Reference::getOwnerClass)
+                .thenComparingLong(Reference::getOwnerId)
+                .thenComparing(Reference::getProperty));
+        return references;
+    }
+
+    /**
+     * Converts part of exported objects to lines of format.
+     */
+    private static byte[] exportPart(List<Object> objects, ClassMetadata metadata, DataFormat format) {
+        StringBuilder sb = new StringBuilder(objects.size() * 64);
+        for (Object obj : objects) {
+            int start = sb.length();
+            try {
+                if (format == DataFormat.JSON_LINES) {
+                    sb.append("{\"Id\":").append(metadata.getId(obj));
+                    for (Property property : metadata.properties) {
+                        String value = exportedValue(property.get(obj));
+                        if (value == null) {
+                            continue;
+                        }
+                        sb.append(",\"");
+                        appendJsonText(sb, property.name);
+                        sb.append("\":");
+                        if (isJsonLiteral(property.type)) {
+                            sb.append(value);
+                        } else {
+                            sb.append('"');
+                            appendJsonText(sb, value);
+                            sb.append('"');
+                        }
+                    }
+                    sb.append("}\n");
+                } else {
+                    sb.append(metadata.getId(obj));
+                    for (Property property : metadata.properties) {
+                        sb.append(',');
+                        String value = exportedValue(property.get(obj));
+                        if (value != null) {
+                            appendCsvText(sb, value);
+                        }
+                    }
+                    sb.append('\n');
+                }
+            } catch (Exception e) {
+                handleException(e);
+                sb.setLength(start);
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns value of field as exported text, types other than String and boolean use text of data file.
+     */
+    private static String exportedValue(Object value) throws ReflectiveOperationException {
+        if (value == null) {
+            return null;
+        } else if (value instanceof String) {
+            return (String) value;
+        } else if (value instanceof Boolean) {
+            return value.toString();
+        }
+        StringBuilder data = getDataAsString(value);
+        return data == null ? null : data.toString();
+    }
+
+    private static boolean isJsonLiteral(Class<?> type) {
+        return type == int.class || type == Integer.class || type == long.class || type == Long.class
+                || type == short.class || type == Short.class || type == BigDecimal.class
+                || type == boolean.class || type == Boolean.class;
+    }
+
+    private static void appendJsonText(StringBuilder sb, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+    }
+
+    private static String csvHeader(ClassMetadata metadata) {
+        StringBuilder sb = new StringBuilder("Id");
+        for (Property property : metadata.properties) {
+            sb.append(',');
+            appendCsvText(sb, property.name);
+        }
+        return sb.append('\n').toString();
+    }
+
+    /**
+     * Appends value to CSV line. Value is quoted if it has separator, quote or new line; empty text is quoted,
+     * so it differs from null.
+     */
+    private static void appendCsvText(StringBuilder sb, String text) {
+        boolean quote = text.isEmpty();
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            sb.append(text);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Reads one CSV record, quoted values can contain new lines, so record can have many lines.
+     */
+    private static String readCsvRecord(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null || line.indexOf('"') < 0) {
+            return line;
+        }
+        StringBuilder record = new StringBuilder(line);
+        int quotes = countQuotes(line);
+        while (quotes % 2 != 0) {
+            line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Quoted CSV value is not closed");
+            }
+            record.append('\n').append(line);
+            quotes += countQuotes(line);
+        }
+        return record.toString();
+    }
+
+    private static int countQuotes(String line) {
+        int quotes = 0;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == '"') {
+                quotes++;
+            }
+        }
+        return quotes;
+    }
+
+    /**
+     * Splits CSV record into values, empty value that is not quoted is returned as null.
+     */
+    private static List<String> parseCsvRecord(String record) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    value.append(c);
+                } else if (i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == ',') {
+                values.add(value.length() == 0 && !wasQuoted ? null : value.toString());
+                value.setLength(0);
+                wasQuoted = false;
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.length() == 0 && !wasQuoted ? null : value.toString());
+        return values;
+    }
+
+    private static Property importedProperty(ClassMetadata metadata, String name) {
+        return name.equals("Id") ? metadata.idProperty : metadata.propertiesByName.get(name);
+    }
+
+    /**
+     * Converts part of imported lines to objects. Invalid lines are passed to exception handler and skipped.
+     *
+     * @param columns properties of CSV columns or null for JSON Lines
+     */
+    private static List<Object> importPart(List<String> records, ClassMetadata metadata, Property[] columns) {
+        List<Object> objects = new ArrayList<>(records.size());
+        for (String record : records) {
+            try {
+                Object obj = metadata.newInstance();
+                if (columns != null) {
+                    List<String> values = parseCsvRecord(record);
+                    for (int i = 0; i < values.size() && i < columns.length; i++) {
+                        setImportedValue(obj, columns[i], values.get(i));
+                    }
+                } else {
+                    new JsonLine(record).readObject(obj, metadata);
+                }
+                objects.add(obj);
+            } catch (Exception e) {
+                handleException(new IllegalArgumentException("Invalid line: " + record, e));
+            }
+        }
+        return objects;
+    }
+
+    private static void setImportedValue(Object obj, Property property, String value) throws ReflectiveOperationException {
+        if (property == null) {
+            return;
+        }
+        if (property.type == Boolean.class && (value == null || value.isEmpty())) {
+            property.set(obj, null);
+        } else if (value == null) {
+            return;
+        } else if (property.type == String.class) {
+            property.set(obj, value);
+        } else if (property.type == boolean.class || property.type == Boolean.class) {
+            // other values are not guessed, line is rejected like other invalid lines
+            switch (value) {
+                case "true":
+                case "1":
+                    property.set(obj, true);
+                    break;
+                case "false":
+                case "0":
+                    property.set(obj, false);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid boolean value " + value);
+            }
+        } else {
+            setValueToTargetObject(obj, property, value);
+        }
+    }
+
+    /**
+     * Adds imported objects to database. Ids of imported objects are reserved first, so they are kept
+     * and only objects without id get new ones.
+     *
+     * @return number of added objects
+     */
+    private static int addImported(String className, List<Object> objects) {
+        if (objects.isEmpty()) {
+            return 0;
+        }
+        ensureLoaded(className);
+        long maxId = 0;
+        for (Object obj : objects) {
+            maxId = Math.max(maxId, getId(obj));
+        }
+        if (maxId > 0) {
+            lastId.merge(className, maxId, Math::max);
+        }
+        addToDatabase(objects, true);
+        return objects.size();
+    }
+
+    /**
+     * Checks does object have expiry time that already passed. Objects of classes without expiry are checked
+     * with one map lookup.
+     */
+    private static boolean isExpired(String className, long id) {
+        Map<Long, Expiry> classExpiries = expiries.isEmpty() ? null : expiries.get(className);
+        if (classExpiries == null) {
+            return false;
+        }
+        Expiry expiry = classExpiries.get(id);
+        return expiry != null && expiry.getExpiresAt() <= System.currentTimeMillis();
+    }
+
+    /**
+     * Sets expiry time of stored object. Expiry is kept as object of its own class, so it is saved, loaded
+     * and replicated like other data, and scheduled in timing wheel of reaper.
+     */
+    private static void setExpiry(String className, long id, long expiresAt) {
+        synchronized (expiries) {
+            Map<Long, Expiry> classExpiries = expiries.computeIfAbsent(className, k -> new ConcurrentHashMap<>());
+            Expiry expiry = classExpiries.get(id);
+            ChangeEvent.Type type = expiry == null ? ChangeEvent.Type.INSERT : ChangeEvent.Type.UPDATE;
+            if (expiry == null) {
+                expiry = new Expiry();
+                expiry.setId(generateIds(EXPIRY_CLASS, 1)[0]);
+                expiry.setClassName(className);
+                expiry.setObjectId(id);
+                classExpiries.put(id, expiry);
+            }
+            preserveForBackup(EXPIRY_CLASS, expiry.getId(), getOrCreateTable(EXPIRY_CLASS));
+            expiry.setExpiresAt(expiresAt);
+            getOrCreateTable(EXPIRY_CLASS).put(expiry.getId(), expiry);
+            trackChange(EXPIRY_CLASS, expiry.getId());
+            changeFeed.publish(type, EXPIRY_CLASS, expiry.getId(), expiry);
+        }
+        expiryWheel.schedule(className, id, expiresAt);
+        startExpiryReaper();
+    }
+
+    private static void removeExpiry(String className, long id) {
+        Map<Long, Expiry> classExpiries = expiries.isEmpty() ? null : expiries.get(className);
+        if (classExpiries == null) {
+            return;
+        }
+        synchronized (expiries) {
+            Expiry expiry = classExpiries.remove(id);
+            if (expiry != null) {
+                preserveForBackup(EXPIRY_CLASS, expiry.getId(), storedData.get(EXPIRY_CLASS));
+                storedData.get(EXPIRY_CLASS).remove(expiry.getId());
+                trackChange(EXPIRY_CLASS, expiry.getId());
+                changeFeed.publish(ChangeEvent.Type.DELETE, EXPIRY_CLASS, expiry.getId(), expiry);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds expiry times and timing wheel from loaded expiry objects.
+     */
+    static void loadExpiries() {
+        ensureLoaded(EXPIRY_CLASS);
+        Map<Long, Object> table = storedData.get(EXPIRY_CLASS);
+        if (table == null) {
+            return;
+        }
+        synchronized (expiries) {
+            for (Object obj : table.values()) {
+                Expiry expiry = (Expiry) obj;
+                expiries.computeIfAbsent(expiry.getClassName(), k -> new ConcurrentHashMap<>()).put(expiry.getObjectId(), expiry);
+                expiryWheel.schedule(expiry.getClassName(), expiry.getObjectId(), expiry.getExpiresAt());
+            }
+        }
+        if (!table.isEmpty()) {
+            startExpiryReaper();
+        }
+    }
+
+    private static synchronized void startExpiryReaper() {
+        if (expiryReaper != null) {
+            return;
+        }
+        expiryReaper = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(EXPIRY_TICK_MILLIS);
+                    // wheel is not moved while follower runs, so timers are due when instance stops following
+                    if (replicationFollower == null) {
+                        reapExpired(expiryWheel.advance(System.currentTimeMillis()));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    handleException(e);
+                }
+            }
+        }, "ULDB-expiry");
+        expiryReaper.setDaemon(true);
+        expiryReaper.start();
+    }
+
+    /**
+     * Deletes objects whose time to live passed in one batch. Timers of objects that were saved again
+     * with new expiry or deleted in the meantime are ignored. Followers of replication do not delete objects,
+     * they receive deletions made by primary, so timers due when follower started are scheduled again.
+     *
+     * @param timers timers that are due
+     */
+    private static void reapExpired(List<TimingWheel.Timer> timers) {
+        if (timers.isEmpty()) {
+            return;
+        }
+        if (replicationFollower != null) {
+            for (TimingWheel.Timer timer : timers) {
+                expiryWheel.schedule(timer.className, timer.id, timer.expiresAt);
+            }
+            return;
+        }
+        int deleted = 0;
+        long now = System.currentTimeMillis();
+        for (TimingWheel.Timer timer : timers) {
+            Object obj;
+            synchronized (expiries) {
+                Map<Long, Expiry> classExpiries = expiries.get(timer.className);
+                Expiry expiry = classExpiries == null ? null : classExpiries.get(timer.id);
+                if (expiry == null || expiry.getExpiresAt() != timer.expiresAt || expiry.getExpiresAt() > now) {
+                    continue;
+                }
+                removeExpiry(timer.className, timer.id);
+                Map<Long, Object> table = storedData.get(timer.className);
+                if (table != null) {
+                    preserveForBackup(timer.className, timer.id, table);
+                }
+                obj = table == null ? null : table.remove(timer.id);
+            }
+            if (obj != null) {
+                referenceIndex.remove(timer.className, timer.id);
+                trackChange(timer.className, timer.id);
+                changeFeed.publish(ChangeEvent.Type.DELETE, timer.className, timer.id, obj);
+                metrics.expiredCount.increment();
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            saveDataIfNeeded(deleted);
+        }
+    }
+
+    /**
+     * Applies change from replication change log: "U" saves object given as text, "D" deletes object given
+     * as "class:id". Changes are published to subscribers like local ones.
+     */
+    static void applyReplicatedChange(char type, String change) {
+        if (type == 'D') {
+            int separator = change.lastIndexOf(':');
+            String objectClass = change.substring(0, separator);
+            long id = Long.parseLong(change.substring(separator + 1));
+            Map<Long, Object> table = storedData.get(objectClass);
+            if (table != null) {
+                preserveForBackup(objectClass, id, table);
+            }
+            Object removed = table == null ? null : table.remove(id);
+            if (removed != null) {
+                if (removed instanceof Expiry) {
+                    Expiry expiry = (Expiry) removed;
+                    Map<Long, Expiry> classExpiries = expiries.get(expiry.getClassName());
+                    if (classExpiries != null) {
+                        classExpiries.remove(expiry.getObjectId(), expiry);
+                    }
+                }
+                referenceIndex.remove(objectClass, id);
+                trackChange(objectClass, id);
+                changeFeed.publish(ChangeEvent.Type.DELETE, objectClass, id, removed);
+            }
+            return;
+        }
+        Object obj = convertToObject(change);
+        if (obj != null) {
+            lastId.merge(obj.getClass().getName(), getId(obj), Math::max);
+            // follower only mirrors primary, its own time to live would create expiries primary does not have
+            addToDatabase(Collections.singletonList(obj), true, false);
+            if (obj instanceof Expiry) {
+                Expiry expiry = (Expiry) obj;
+                expiries.computeIfAbsent(expiry.getClassName(), k -> new ConcurrentHashMap<>()).put(expiry.getObjectId(), expiry);
+                expiryWheel.schedule(expiry.getClassName(), expiry.getObjectId(), expiry.getExpiresAt());
+                startExpiryReaper();
+            }
+        }
+    }
+
+    /**
+     * Checks is database read-only because replication follower is running.
+     *
+     * @return true if changes are not allowed
+     */
+    static boolean isReadOnly() {
+        if (replicationFollower == null) {
+            return false;
+        }
+        handleException(new IllegalStateException("Database is read-only while replication follower is running"));
+        return true;
+    }
+
+    /**
+     * Exception handling method. Change this code or override this method to use custom made exception handling.
+     *
+     * @param e Exception
+     */
+    static void handleException(Exception e) {
+        metrics.errorCount.increment();
+        if (flightRecording) {
+            eventRecorder.exception(e);
+        }
+        e.printStackTrace();
+    }
+
+    /**
+     * Receives batches of changes. See {@link #subscribe(Class, ChangeListener)}.
+     *
+     * @param <T> class of changed objects
+     */
+    public interface ChangeListener<T> {
+
+        void onChanges(List<ChangeEvent<T>> events);
+    }
+
+    /**
+     * Change of object made by saveOrUpdate or delete.
+     *
+     * @param <T> class of changed object
+     */
+    public static final class ChangeEvent<T> {
+
+        public enum Type {
+            INSERT, UPDATE, DELETE
+        }
+
+        private final long sequence;
+        private final Type type;
+        private final String className;
+        private final long id;
+        private final T object;
+
+        private ChangeEvent(long sequence, Type type, String className, long id, T object) {
+            this.sequence = sequence;
+            this.type = type;
+            this.className = className;
+            this.id = id;
+            this.object = object;
+        }
+
+        /**
+         * @return number of change, each next change has bigger number
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return saved or deleted object
+         */
+        public T getObject() {
+            return object;
+        }
+
+        @Override
+        public String toString() {
+            return sequence + ":" + type + ":" + className + ":" + id;
+        }
+    }
+
+    /**
+     * Subscription to changes. See {@link #subscribe(Class, ChangeListener)}.
+     *
+     * @param <T> class of changed objects
+     */
+    public static final class Subscription<T> implements AutoCloseable {
+        private static final int QUEUE_SIZE = 16384;
+        private static final int BATCH_SIZE = 256;
+
+        private final String className;
+        private final ChangeListener<T> listener;
+        private final ArrayBlockingQueue<ChangeEvent<T>> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final LongAdder droppedEvents = new LongAdder();
+        private volatile boolean closed;
+
+        private Subscription(String className, ChangeListener<T> listener) {
+            this.className = className;
+            this.listener = listener;
+        }
+
+        /**
+         * @return number of events not delivered because listener was too slow
+         */
+        public long getDroppedEvents() {
+            return droppedEvents.sum();
+        }
+
+        /**
+         * Stops receiving events. Events already queued are not delivered.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            changeFeed.subscriptions.remove(this);
+            queue.clear();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void offer(ChangeEvent<?> event) {
+            if (className != null && !className.equals(event.className)) {
+                return;
+            }
+            if (!queue.offer((ChangeEvent<T>) event)) {
+                droppedEvents.increment();
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                changeFeed.executor().execute(this::deliver);
+            }
+        }
+
+        private void deliver() {
+            try {
+                List<ChangeEvent<T>> batch = new ArrayList<>(BATCH_SIZE);
+                while (!closed && queue.drainTo(batch, BATCH_SIZE) > 0) {
+                    try {
+                        listener.onChanges(Collections.unmodifiableList(batch));
+                    } catch (Exception e) {
+                        handleException(e);
+                    }
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            } finally {
+                scheduled.set(false);
+                if (!closed && !queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                    changeFeed.executor().execute(this::deliver);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cursor for reading changes. See {@link #openChangeCursor(Class)}.
+     */
+    public static final class ChangeCursor implements AutoCloseable {
+        private final String className;
+        private long next;
+        private long lostEvents;
+
+        private ChangeCursor(String className, long next) {
+            this.className = className;
+            this.next = next;
+        }
+
+        /**
+         * Returns changes not read yet, oldest first.
+         *
+         * @param maxEvents maximum number of returned events
+         * @return changes, empty list if there are no new changes
+         */
+        public synchronized List<ChangeEvent<Object>> poll(int maxEvents) {
+            return changeFeed.read(this, maxEvents);
+        }
+
+        /**
+         * @return sequence number of last event checked by this cursor
+         */
+        public synchronized long getPosition() {
+            return next - 1;
+        }
+
+        /**
+         * @return number of events removed from buffer before cursor read them
+         */
+        public synchronized long getLostEvents() {
+            return lostEvents;
+        }
+
+        @Override
+        public void close() {
+            changeFeed.cursors.remove(this);
+        }
+    }
+
+    /**
+     * Engine that saves data to local drive and loads it back. ULDB keeps all objects in memory,
+     * engine decides how they are stored. Set it with {@link #setStorageEngine(StorageEngine)}.
+     */
+    public interface StorageEngine {
+
+        /**
+         * Loads saved objects, called by loadData.
+         *
+         * @param records database records
+         * @param classes names of classes to load or null to load all
+         * @throws IOException when data can not be read
+         */
+        void load(Records records, Set<String> classes) throws IOException;
+
+        /**
+         * Saves data, called by saveData. It is never called by two threads at once.
+         *
+         * @param records database records
+         * @param changes ids of objects saved or deleted since last save by class name,
+         *                empty if engine does not track changes
+         * @throws IOException when data can not be saved, changes are given again with next save
+         */
+        void save(Records records, Map<String, Set<Long>> changes) throws IOException;
+
+        /**
+         * Deletes all saved data, called by deleteAllData.
+         *
+         * @throws IOException when data can not be deleted
+         */
+        void delete() throws IOException;
+
+        /**
+         * @return true if engine saves only changed objects, changes are not collected otherwise
+         */
+        default boolean tracksChanges() {
+            return false;
+        }
+
+        /**
+         * Releases resources, called when engine is replaced.
+         */
+        default void close() {
+        }
+    }
+
+    /**
+     * Objects of database as seen by storage engines. Objects are exchanged as record lines
+     * ("class;Id:1;Name:value;..."), so engine does not need to know classes of saved objects.
+     */
+    public static final class Records {
+        private final List<Object> loaded = new ArrayList<>();
+
+        private Records() {
+        }
+
+        public Set<String> getClassNames() {
+            return new HashSet<>(storedData.keySet());
+        }
+
+        public Set<Long> getIds(String className) {
+            Map<Long, Object> table = storedData.get(className);
+            return table == null ? Collections.emptySet() : new HashSet<>(table.keySet());
+        }
+
+        /**
+         * @return object as record line or null if object do not exist
+         */
+        public String get(String className, long id) {
+            Map<Long, Object> table = storedData.get(className);
+            Object object = table == null ? null : table.get(id);
+            return object == null ? null : convertObjectToString(object);
+        }
+
+        public long getLastId(String className) {
+            Long id = lastId.get(className);
+            return id == null ? 0 : id;
+        }
+
+        public void setLastId(String className, long id) {
+            lastId.put(className, id);
+        }
+
+        /**
+         * Adds loaded object to database.
+         *
+         * @param record object as record line
+         */
+        public void add(String record) {
+            Object object = convertToObject(record);
+            if (object != null) {
+                loaded.add(object);
+            }
+            if (loaded.size() >= SAVE_PARTITION_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            addToDatabase(loaded, false);
+            loaded.clear();
+        }
+    }
+
+    /**
+     * Default storage engine. All data is saved to one text file (see setFilename, setLayout) which is
+     * rewritten by every save, with index of class sections next to it (see setLazyLoading).
+     */
+    public static final class TextFileEngine implements StorageEngine {
+
+        @Override
+        public void load(Records records, Set<String> classes) throws IOException {
+            File f = new File(fileName);
+            if (!f.exists()) return;
+
+            Map<String, Section> index = classes != null || lazyLoading ? readIndex(f) : null;
+            if (index != null && classes == null) {
+                pendingSections.putAll(index);
+                return;
+            }
+            if (index == null) {
+                metrics.bytesRead.add(f.length());
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF8"))) {
+                    readData(br, classes);
+                }
+                return;
+            }
+            for (String className : classes) {
+                if (pendingSections.containsKey(className)) {
+                    ensureLoaded(className);
+                } else if (index.containsKey(className)) {
+                    loadSection(className, index.get(className));
+                }
+            }
+        }
+
+        @Override
+        public void save(Records records, Map<String, Set<Long>> changes) throws IOException {
+            List<String> partClasses = new ArrayList<>();
+            List<byte[]> parts = serializeData(Charset.forName(encoding), layout, partClasses);
+            long bytes = 0;
+            // file is replaced at once, so copy of it made at any time is complete
+            File temp = new File(fileName + TEMP_SUFFIX);
+            try (OutputStream out = new FileOutputStream(temp)) {
+                for (byte[] part : parts) {
+                    out.write(part);
+                    bytes += part.length;
+                }
+            }
+            Files.move(temp.toPath(), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writeIndex(new File(fileName), parts, partClasses);
+            metrics.bytesWritten.add(bytes);
+        }
+
+        @Override
+        public void delete() {
+            new File(fileName).delete();
+            new File(fileName + INDEX_SUFFIX).delete();
+        }
+    }
+
+    /**
+     * Log-structured storage engine. Save writes only objects changed since last save: they are appended
+     * to write-ahead log, which is forced to disk before save returns, and kept in sorted memtable. Full
+     * memtable is written as immutable sorted segment with sparse index and bloom filter. Segments are merged
+     * in background into levels, each level is ten times bigger than previous one and its segments do not
+     * overlap, so one key is in at most one segment per level. Save time does not depend on size of data and
+     * loading of one class reads only its key range. Objects are saved as record lines, key is "class:id"
+     * (id padded to 20 digits), "class:" keeps last id.
+     */
+    public static final class LsmEngine implements StorageEngine {
+        private final LsmTree tree;
+
+        /**
+         * @param directory directory for engine files, it is created if it does not exist
+         */
+        public LsmEngine(String directory) {
+            this.tree = new LsmTree(directory);
+        }
+
+        /**
+         * Sets size of memtable (in characters of saved records) written as new segment. Default: 4M.
+         *
+         * @param memtableLimit size of memtable
+         */
+        public void setMemtableLimit(long memtableLimit) {
+            tree.setMemtableLimit(memtableLimit);
+        }
+
+        @Override
+        public boolean tracksChanges() {
+            return true;
+        }
+
+        @Override
+        public void load(Records records, Set<String> classes) throws IOException {
+            tree.load(records, classes);
+        }
+
+        /**
+         * Reads one saved object from engine files. Bloom filters skip segments that do not have the object.
+         *
+         * @param className name of class
+         * @param id        id of object
+         * @return object as record line or null if object was not saved or was deleted
+         * @throws IOException when data can not be read
+         */
+        public String get(String className, long id) throws IOException {
+            return tree.get(className, id);
+        }
+
+        @Override
+        public void save(Records records, Map<String, Set<Long>> changes) throws IOException {
+            tree.save(records, changes);
+        }
+
+        /**
+         * Writes memtable as new segment of level 0, even if it is not full.
+         *
+         * @throws IOException when segment can not be written
+         */
+        public void flush() throws IOException {
+            tree.flush();
+        }
+
+        /**
+         * Waits until background compaction is finished.
+         */
+        public void awaitCompaction() {
+            tree.awaitCompaction();
+        }
+
+        /**
+         * @return number of segments on each level
+         */
+        public List<Integer> getSegmentCounts() {
+            return tree.getSegmentCounts();
+        }
+
+        @Override
+        public void delete() throws IOException {
+            tree.delete();
+        }
+
+        @Override
+        public void close() {
+            tree.close();
+        }
+    }
+
+    /**
+     * Primary instance of replication. See {@link #startReplicationPrimary(String)}.
+     * Change log line is "sequence;time;U;object" for saved object or "sequence;time;D;class:id" for deleted one.
+     */
+    public static final class ReplicationPrimary implements AutoCloseable {
+        private final ReplicationShipper shipper;
+
+        private ReplicationPrimary(ReplicationShipper shipper) {
+            this.shipper = shipper;
+        }
+
+        /**
+         * Writes snapshot of all data and starts new change log segment. Old segments are removed, except the
+         * last ones, so followers that are a bit behind can still continue without loading snapshot again.
+         */
+        public void snapshot() {
+            shipper.snapshot();
+        }
+
+        /**
+         * @return sequence number of last logged change
+         */
+        public long getLastSequence() {
+            return shipper.getLastSequence();
+        }
+
+        /**
+         * Stops shipping changes. Changes logged so far are written to change log.
+         */
+        @Override
+        public void close() {
+            shipper.close();
+        }
+    }
+
+    /**
+     * Read-only follower instance of replication. See {@link #startReplicationFollower(String, long)}.
+     */
+    public static final class ReplicationFollower implements AutoCloseable {
+        private final ReplicationApplier applier;
+
+        private ReplicationFollower(ReplicationApplier applier) {
+            this.applier = applier;
+        }
+
+        /**
+         * Applies all changes that are available in change log now. It is also done periodically in background.
+         *
+         * @return number of applied changes
+         */
+        public int catchUp() {
+            return applier.catchUp();
+        }
+
+        /**
+         * @return sequence number of last applied change
+         */
+        public long getAppliedSequence() {
+            return applier.getAppliedSequence();
+        }
+
+        /**
+         * @return number of changes in change log that are not applied yet
+         */
+        public long getLag() {
+            return applier.getLag();
+        }
+
+        /**
+         * @return time since last applied change was made on primary or 0 if there is no lag
+         */
+        public long getLagMillis() {
+            return applier.getLagMillis();
+        }
+
+        /**
+         * @return how many times snapshot was loaded
+         */
+        public long getSnapshotLoads() {
+            return applier.getSnapshotLoads();
+        }
+
+        /**
+         * Stops applying changes and makes database writable again, eg. when this instance becomes primary.
+         */
+        @Override
+        public void close() {
+            applier.close();
+        }
+    }
+
+    /**
+     * Server started by {@link #startServer(int)}. One thread runs non-blocking event loop: it accepts connections,
+     * reads all complete requests available on connection, executes them in order and writes their responses
+     * together. Clients can send next requests without waiting for responses (pipelining). Autosave of changed
+     * data is done on I/O thread of async lane, responses are sent without waiting for it. Connection is not read
+     * while its unsent responses are bigger than 4 MB, so client that does not read responses cannot fill server
+     * memory.
+     */
+    public static final class Server implements AutoCloseable {
+        private final ServerLoop loop;
+
+        private Server(ServerLoop loop) {
+            this.loop = loop;
+        }
+
+        /**
+         * @return port server listens on or -1 for unix domain socket
+         */
+        public int getPort() {
+            return loop.getPort();
+        }
+
+        /**
+         * @return number of requests executed by server
+         */
+        public long getRequestCount() {
+            return loop.getRequestCount();
+        }
+
+        /**
+         * @return number of connected clients
+         */
+        public int getConnectionCount() {
+            return loop.getConnectionCount();
+        }
+
+        @Override
+        public void close() {
+            loop.close();
+        }
+    }
+
+    /**
+     * Connection to database shared by {@link #startServer(int)}. It has the same methods as ULDB, objects are
+     * sent to server and returned objects are new copies (changes must be saved with saveOrUpdate).
+     * Client can be used by many threads at once, their requests are sent over one connection without waiting
+     * for previous responses and requests ready at the same time are written together.
+     */
+    public static final class Client implements AutoCloseable {
+        private final ClientConnection connection;
+
+        private Client(ClientConnection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Returns object from database.
+         *
+         * @param objectClass class of searched object
+         * @param id          id of object
+         * @return object filled with data or null if object do not exist
+         */
+        public <T> T get(Class<T> objectClass, Long id) {
+            return connection.get(objectClass, id);
+        }
+
+        /**
+         * Returns objects with given ids. All requests are sent before first response is read.
+         *
+         * @param objectClass class of searched objects
+         * @param ids         ids of objects
+         * @return objects in order of ids, null for objects that do not exist; empty list when request fails
+         */
+        public <T> List<T> get(Class<T> objectClass, Collection<Long> ids) {
+            return connection.get(objectClass, ids);
+        }
+
+        /**
+         * Returns all objects of specified class from database.
+         *
+         * @param objectClass class of object
+         * @return all objects of specified class
+         */
+        public <T> List<T> getAll(Class<T> objectClass) {
+            return connection.getAll(objectClass);
+        }
+
+        /**
+         * Add object to database or update existing one. New children are saved as well, like by
+         * {@link ULDB#saveOrUpdate(Object)}, and ids assigned by server are set to sent objects.
+         *
+         * @param obj object for adding
+         * @return id of saved object or -1 if object is not valid for save or request failed
+         */
+        public long saveOrUpdate(Object obj) {
+            return connection.saveOrUpdate(obj);
+        }
+
+        /**
+         * Saves many objects with one request.
+         *
+         * @param objects objects for adding
+         * @return ids of saved objects, -1 for objects not valid for save or all of them when request failed
+         */
+        public long[] saveOrUpdateAll(List<?> objects) {
+            return connection.saveOrUpdateAll(objects);
+        }
+
+        /**
+         * Deletes object from database.
+         *
+         * @param obj object for deletion
+         * @return true if object deleted or false otherwise
+         */
+        public boolean delete(Object obj) {
+            return connection.delete(obj);
+        }
+
+        @Override
+        public void close() {
+            connection.close();
+        }
+    }
+
+    /**
+     * Reference from property of stored object to other stored object. See {@link #findReferrers(Object)}.
+     */
+    public static final class Reference {
+        private final String ownerClass;
+        private final long ownerId;
+        private final String property;
+
+        private Reference(String ownerClass, long ownerId, String property) {
+            this.ownerClass = ownerClass;
+            this.ownerId = ownerId;
+            this.property = property;
+        }
+
+        /**
+         * @return name of class of object that refers
+         */
+        public String getOwnerClass() {
+            return ownerClass;
+        }
+
+        /**
+         * @return id of object that refers
+         */
+        public long getOwnerId() {
+            return ownerId;
+        }
+
+        /**
+         * @return name of property with reference (field or list)
+         */
+        public String getProperty() {
+            return property;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Reference)) {
+                return false;
+            }
+            Reference reference = (Reference) o;
+            return ownerId == reference.ownerId && ownerClass.equals(reference.ownerClass) && property.equals(reference.property);
+        }
+
+        @Override
+        public int hashCode() {
+            return (ownerClass.hashCode() * 31 + Long.hashCode(ownerId)) * 31 + property.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return ownerClass + ":" + ownerId + "." + property;
+        }
+    }
+
+    /**
+     * Index of references between stored objects. For each referenced object it keeps references to it and
+     * for each owner its outgoing links, so changed owner updates only links that were added or removed.
+     */
+    private static final class ReferenceIndex {
+        private final ConcurrentHashMap<String, ConcurrentHashMap<Long, Set<Reference>>> referrers = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, ConcurrentHashMap<Long, Set<Link>>> links = new ConcurrentHashMap<>();
+
+        /**
+         * Updates references of stored object. Classes without children and lists are skipped at once.
+         */
+        private void update(String ownerClass, long ownerId, Object owner, ClassMetadata metadata) {
+            List<Property> properties = metadata.getReferenceProperties();
+            if (properties.isEmpty()) {
+                return;
+            }
+            Set<Link> ownerLinks = new HashSet<>();
+            try {
+                for (Property property : properties) {
+                    Object value = property.get(owner);
+                    if (value instanceof List) {
+                        for (Object element : (List<?>) value) {
+                            if (element == null) {
+                                continue;
+                            }
+                            if (!isValidForSave(element.getClass())) {
+                                break;
+                            }
+                            addLink(ownerLinks, ownerClass, ownerId, property, element);
+                        }
+                    } else if (value != null && !(value instanceof Collection)) {
+                        addLink(ownerLinks, ownerClass, ownerId, property, value);
+                    }
+                }
+            } catch (ReflectiveOperationException e) {
+                handleException(e);
+            }
+            replace(ownerClass, ownerId, ownerLinks);
+        }
+
+        private void remove(String ownerClass, long ownerId) {
+            if (links.containsKey(ownerClass)) {
+                replace(ownerClass, ownerId, Collections.emptySet());
+            }
+        }
+
+        private Set<Reference> get(String targetClass, long targetId) {
+            Map<Long, Set<Reference>> classReferrers = referrers.get(targetClass);
+            Set<Reference> references = classReferrers == null ? null : classReferrers.get(targetId);
+            return references == null ? Collections.emptySet() : references;
+        }
+
+        private synchronized void clear() {
+            referrers.clear();
+            links.clear();
+        }
+
+        private static void addLink(Set<Link> ownerLinks, String ownerClass, long ownerId, Property property, Object target)
+                throws ReflectiveOperationException {
+            long targetId = getClassMetadata(target.getClass()).getId(target);
+            if (targetId > 0) {
+                ownerLinks.add(new Link(target.getClass().getName(), targetId, new Reference(ownerClass, ownerId, property.name)));
+            }
+        }
+
+        private synchronized void replace(String ownerClass, long ownerId, Set<Link> ownerLinks) {
+            ConcurrentHashMap<Long, Set<Link>> classLinks = links.get(ownerClass);
+            Set<Link> previous = classLinks == null ? null : classLinks.get(ownerId);
+            if (previous == null && ownerLinks.isEmpty()) {
+                return;
+            }
+            if (previous != null) {
+                for (Link link : previous) {
+                    if (!ownerLinks.contains(link)) {
+                        Map<Long, Set<Reference>> classReferrers = referrers.get(link.targetClass);
+                        Set<Reference> references = classReferrers.get(link.targetId);
+                        references.remove(link.reference);
+                        if (references.isEmpty()) {
+                            classReferrers.remove(link.targetId);
+                        }
+                    }
+                }
+            }
+            for (Link link : ownerLinks) {
+                if (previous == null || !previous.contains(link)) {
+                    referrers.computeIfAbsent(link.targetClass, k -> new ConcurrentHashMap<>())
+                            .computeIfAbsent(link.targetId, k -> ConcurrentHashMap.newKeySet())
+                            .add(link.reference);
+                }
+            }
+            if (ownerLinks.isEmpty()) {
+                classLinks.remove(ownerId);
+            } else {
+                links.computeIfAbsent(ownerClass, k -> new ConcurrentHashMap<>()).put(ownerId, ownerLinks);
+            }
+        }
+
+        private static final class Link {
+            private final String targetClass;
+            private final long targetId;
+            private final Reference reference;
+
+            private Link(String targetClass, long targetId, Reference reference) {
+                this.targetClass = targetClass;
+                this.targetId = targetId;
+                this.reference = reference;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Link)) {
+                    return false;
+                }
+                Link link = (Link) o;
+                return targetId == link.targetId && targetClass.equals(link.targetClass) && reference.equals(link.reference);
+            }
+
+            @Override
+            public int hashCode() {
+                return (targetClass.hashCode() * 31 + Long.hashCode(targetId)) * 31 + reference.hashCode();
+            }
+        }
+    }
+
+    /**
+     * Reader of one JSON Lines record: flat object with texts, numbers, booleans and nulls as values.
+     */
+    private static final class JsonLine {
+        private final String line;
+        private int position;
+
+        private JsonLine(String line) {
+            this.line = line;
+        }
+
+        private void readObject(Object obj, ClassMetadata metadata) throws ReflectiveOperationException {
+            expect('{');
+            skipSpaces();
+            if (peek() == '}') {
+                position++;
+                return;
+            }
+            while (true) {
+                skipSpaces();
+                String name = readText();
+                expect(':');
+                setImportedValue(obj, importedProperty(metadata, name), readValue());
+                skipSpaces();
+                char c = next();
+                if (c == '}') {
+                    return;
+                } else if (c != ',') {
+                    throw new IllegalArgumentException("Expected ',' or '}' at " + (position - 1));
+                }
+            }
+        }
+
+        private String readValue() {
+            skipSpaces();
+            char c = peek();
+            if (c == '"') {
+                return readText();
+            }
+            int start = position;
+            while (position < line.length() && ",} \t".indexOf(line.charAt(position)) < 0) {
+                position++;
+            }
+            String value = line.substring(start, position);
+            if (value.isEmpty() || c == '{' || c == '[') {
+                throw new IllegalArgumentException("Unsupported value at " + start);
+            }
+            return value.equals("null") ? null : value;
+        }
+
+        private String readText() {
+            expect('"');
+            StringBuilder sb = null;
+            int start = position;
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return sb == null ? line.substring(start, position - 1) : sb.toString();
+                }
+                if (sb == null && c == '\\') {
+                    sb = new StringBuilder(line.substring(start, position - 1));
+                }
+                if (sb == null) {
+                    continue;
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char escaped = next();
+                switch (escaped) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'u':
+                        sb.append((char) Integer.parseInt(line.substring(position, position + 4), 16));
+                        position += 4;
+                        break;
+                    default:
+                        sb.append(escaped);
+                }
+            }
+        }
+
+        private void expect(char expected) {
+            skipSpaces();
+            if (next() != expected) {
+                throw new IllegalArgumentException("Expected '" + expected + "' at " + (position - 1));
+            }
+        }
 
-            objectStringBuilder.append(objectClass.getName());
-            objectStringBuilder.append(";Id:");
-            objectStringBuilder.append(id.toString());
+        private void skipSpaces() {
+            while (position < line.length() && Character.isWhitespace(line.charAt(position))) {
+                position++;
+            }
+        }
 
-            for (Method method : objectClass.getMethods()) {
-                if (method.getReturnType() == null || method.equals(idMethod)) {
-                    continue;
+        private char peek() {
+            if (position >= line.length()) {
+                throw new IllegalArgumentException("Unexpected end of line");
+            }
+            return line.charAt(position);
+        }
+
+        private char next() {
+            char c = peek();
+            position++;
+            return c;
+        }
+    }
+
+    /**
+     * Expiry time of one stored object. See {@link #setTimeToLive(Class, long)}.
+     */
+    public static final class Expiry {
+        private long id;
+        private String className;
+        private long objectId;
+        private long expiresAt;
+
+        public long getId() {
+            return id;
+        }
+
+        public void setId(long id) {
+            this.id = id;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public void setClassName(String className) {
+            this.className = className;
+        }
+
+        public long getObjectId() {
+            return objectId;
+        }
+
+        public void setObjectId(long objectId) {
+            this.objectId = objectId;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        public void setExpiresAt(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Hierarchical timing wheel: 4 levels of 64 slots, slot of first level is one tick, slot of each next level
+     * is as long as whole previous level. Adding and removing timer takes constant time and only slots
+     * that are due are read, timers of upper levels are moved to lower levels when their slot is reached.
+     * Timers further than the last level are kept in its last slot and placed again when it is reached.
+     */
+    private static final class TimingWheel {
+        private static final int SLOT_BITS = 6;
+        private static final int SLOTS = 1 << SLOT_BITS;
+        private static final int LEVELS = 4;
+
+        private final long tickMillis;
+        private final List<List<List<Timer>>> levels = new ArrayList<>();
+        private long currentTick;
+
+        private TimingWheel(long tickMillis) {
+            this.tickMillis = tickMillis;
+            for (int i = 0; i < LEVELS; i++) {
+                List<List<Timer>> slots = new ArrayList<>();
+                for (int j = 0; j < SLOTS; j++) {
+                    slots.add(new ArrayList<>());
                 }
-                if (!method.getName().startsWith("get") && !method.getName().startsWith("is")) {
-                    continue;
+                levels.add(slots);
+            }
+            currentTick = System.currentTimeMillis() / tickMillis;
+        }
+
+        private synchronized void schedule(String className, long id, long expiresAt) {
+            add(new Timer(className, id, expiresAt, (expiresAt + tickMillis - 1) / tickMillis), null);
+        }
+
+        private synchronized void clear() {
+            for (List<List<Timer>> slots : levels) {
+                for (List<Timer> slot : slots) {
+                    slot.clear();
+                }
+            }
+        }
+
+        /**
+         * Moves wheel to given time.
+         *
+         * @param now current time in milliseconds
+         * @return timers that expired
+         */
+        private synchronized List<Timer> advance(long now) {
+            List<Timer> due = new ArrayList<>();
+            long tick = now / tickMillis;
+            while (currentTick < tick) {
+                currentTick++;
+                // slots of upper levels are spread to lower levels when lower level completes round
+                for (int level = 1; level < LEVELS; level++) {
+                    if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                        break;
+                    }
+                    List<Timer> slot = levels.get(level).get((int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)));
+                    List<Timer> timers = new ArrayList<>(slot);
+                    slot.clear();
+                    for (Timer timer : timers) {
+                        add(timer, due);
+                    }
+                }
+                List<Timer> slot = levels.get(0).get((int) (currentTick & (SLOTS - 1)));
+                due.addAll(slot);
+                slot.clear();
+            }
+            return due;
+        }
+
+        private void add(Timer timer, List<Timer> due) {
+            long delay = timer.tick - currentTick;
+            if (delay <= 0) {
+                if (due != null) {
+                    due.add(timer);
+                    return;
+                }
+                // already expired, it is returned with next tick
+                delay = 1;
+            }
+            long tick = currentTick + Math.min(delay, (1L << (SLOT_BITS * LEVELS)) - 1);
+            int level = 0;
+            while (level < LEVELS - 1 && delay >= 1L << (SLOT_BITS * (level + 1))) {
+                level++;
+            }
+            levels.get(level).get((int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1))).add(timer);
+        }
+
+        private static final class Timer {
+            private final String className;
+            private final long id;
+            private final long expiresAt;
+            private final long tick;
+
+            private Timer(String className, long id, long expiresAt, long tick) {
+                this.className = className;
+                this.id = id;
+                this.expiresAt = expiresAt;
+                this.tick = tick;
+            }
+        }
+    }
+
+    /**
+     * Estimated memory used by objects of one class, see {@link ULDB#getHeapFootprint(Class)}.
+     */
+    public static final class HeapFootprint {
+        private final String className;
+        private final long records;
+        private final long heapBytes;
+        private final long offHeapBytes;
+
+        private HeapFootprint(String className, long records, long heapBytes, long offHeapBytes) {
+            this.className = className;
+            this.records = records;
+            this.heapBytes = heapBytes;
+            this.offHeapBytes = offHeapBytes;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * @return number of objects in memory
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return estimated bytes of heap
+         */
+        public long getHeapBytes() {
+            return heapBytes;
+        }
+
+        /**
+         * @return bytes of direct memory reserved by records of class stored in OFF_HEAP mode
+         */
+        public long getOffHeapBytes() {
+            return offHeapBytes;
+        }
+
+        /**
+         * @return heap and off-heap bytes
+         */
+        public long getTotalBytes() {
+            return heapBytes + offHeapBytes;
+        }
+
+        /**
+         * @return average bytes of one object, with its share of map
+         */
+        public long getAverageRecordBytes() {
+            return records == 0 ? 0 : getTotalBytes() / records;
+        }
+
+        @Override
+        public String toString() {
+            return className + ": " + records + " records, " + heapBytes + " B heap, " + offHeapBytes + " B off-heap";
+        }
+    }
+
+    /**
+     * Receives classes that grew past their memory budget. See {@link ULDB#setHeapBudget(Class, long)}.
+     */
+    public interface HeapBudgetListener {
+
+        void onBudgetExceeded(HeapFootprint footprint, long budget);
+    }
+
+    /**
+     * Estimates sizes of objects in heap of 64-bit JVM with compressed references: 12 bytes of object header,
+     * 4 bytes per reference and sizes aligned to 8 bytes. Fields of classes that are not part of JDK are read
+     * by reflection, JDK values (strings, numbers, dates, collections) are estimated by their known layout.
+     */
+    static final class HeapEstimator {
+        static final int OBJECT_HEADER = 12;
+        private static final int ARRAY_HEADER = 16;
+        private static final int REFERENCE = 4;
+        // ConcurrentHashMap node with boxed id
+        private static final int MAP_ENTRY = 32 + 24;
+        private static final int CALENDAR = 448;
+        private static final int MAX_DEPTH = 8;
+        private static final ConcurrentHashMap<Class<?>, Field[]> referenceFields = new ConcurrentHashMap<>();
+        private static final ConcurrentHashMap<Class<?>, Long> shallowSizes = new ConcurrentHashMap<>();
+
+        private static HeapFootprint estimate(String className, Map<Long, Object> table) {
+            if (table instanceof OffHeapTable) {
+                OffHeapTable offHeapTable = (OffHeapTable) table;
+                return new HeapFootprint(className, offHeapTable.size(), offHeapTable.heapBytes(), offHeapTable.reservedBytes());
+            }
+            long records = table.size();
+            long sampledBytes = 0;
+            int sampled = 0;
+            for (Object obj : table.values()) {
+                if (sampled == HEAP_SAMPLE_SIZE) {
+                    break;
+                }
+                sampledBytes += objectBytes(obj, true, 0);
+                sampled++;
+            }
+            long objectsBytes = sampled == 0 ? 0 : sampledBytes * records / sampled;
+            // map with its table of bins, sized for load factor 0.75
+            long bins = Math.max(16, Long.highestOneBit(Math.max(1, records * 4 / 3)) << 1);
+            long mapBytes = 64 + arrayBytes(bins, REFERENCE) + records * MAP_ENTRY;
+            return new HeapFootprint(className, records, mapBytes + objectsBytes, 0);
+        }
+
+        private static long align(long bytes) {
+            return (bytes + 7) & ~7L;
+        }
+
+        static long arrayBytes(long length, int elementBytes) {
+            return align(ARRAY_HEADER + length * elementBytes);
+        }
+
+        /**
+         * @param value object or value
+         * @param root  true for stored object, false for value of its field
+         * @param depth depth of value in object
+         * @return estimated bytes of value with values it refers to, 0 for children with id and shared values
+         */
+        private static long objectBytes(Object value, boolean root, int depth) {
+            if (value == null || value instanceof Enum || value instanceof Class || depth > MAX_DEPTH) {
+                return 0;
+            }
+            if (value instanceof String) {
+                String text = (String) value;
+                boolean latin1 = true;
+                for (int i = 0; i < text.length() && latin1; i++) {
+                    latin1 = text.charAt(i) < 256;
+                }
+                return align(OBJECT_HEADER + 12) + arrayBytes(text.length(), latin1 ? 1 : 2);
+            }
+            if (value instanceof Long || value instanceof Double) {
+                return 24;
+            }
+            if (value instanceof Number && !(value instanceof BigDecimal) || value instanceof Boolean || value instanceof Character) {
+                return 16;
+            }
+            if (value instanceof BigDecimal) {
+                // unscaled values up to 18 digits are kept in long field, bigger ones in BigInteger
+                BigDecimal decimal = (BigDecimal) value;
+                return 40 + (decimal.precision() > 18 ? 40 + arrayBytes(decimal.precision() / 9 + 1, 4) : 0);
+            }
+            if (value instanceof LocalDate || value instanceof LocalTime || value instanceof Date) {
+                return 24;
+            }
+            if (value instanceof LocalDateTime) {
+                return 72;
+            }
+            if (value instanceof Calendar) {
+                return CALENDAR;
+            }
+            if (value instanceof Collection) {
+                Collection<?> collection = (Collection<?>) value;
+                long bytes = 24 + arrayBytes(collection.size(), REFERENCE);
+                for (Object element : collection) {
+                    bytes += objectBytes(element, false, depth + 1);
+                }
+                return bytes;
+            }
+            if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                long bytes = 48 + arrayBytes(map.size() * 2L, REFERENCE) + map.size() * 32L;
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    bytes += objectBytes(entry.getKey(), false, depth + 1) + objectBytes(entry.getValue(), false, depth + 1);
+                }
+                return bytes;
+            }
+            Class<?> valueClass = value.getClass();
+            if (valueClass.isArray()) {
+                int length = Array.getLength(value);
+                Class<?> componentType = valueClass.getComponentType();
+                if (componentType.isPrimitive()) {
+                    return arrayBytes(length, primitiveBytes(componentType));
+                }
+                long bytes = arrayBytes(length, REFERENCE);
+                for (int i = 0; i < length; i++) {
+                    bytes += objectBytes(Array.get(value, i), false, depth + 1);
+                }
+                return bytes;
+            }
+            if (!root && isValidForSave(valueClass)) {
+                // child with id is counted in its own class
+                return 0;
+            }
+            if (valueClass.getName().startsWith("java.")) {
+                return align(OBJECT_HEADER + 4);
+            }
+            long bytes = shallowSizes.computeIfAbsent(valueClass, HeapEstimator::shallowBytes);
+            for (Field field : referenceFields.computeIfAbsent(valueClass, HeapEstimator::referenceFields)) {
+                try {
+                    bytes += objectBytes(field.get(value), false, depth + 1);
+                } catch (IllegalAccessException e) {
+                    handleException(e);
+                }
+            }
+            return bytes;
+        }
+
+        private static long shallowBytes(Class<?> objectClass) {
+            long bytes = OBJECT_HEADER;
+            for (Class<?> c = objectClass; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        bytes += field.getType().isPrimitive() ? primitiveBytes(field.getType()) : REFERENCE;
+                    }
+                }
+            }
+            return align(bytes);
+        }
+
+        private static Field[] referenceFields(Class<?> objectClass) {
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> c = objectClass; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()) && !field.getType().isPrimitive()) {
+                        try {
+                            field.setAccessible(true);
+                            fields.add(field);
+                        } catch (RuntimeException e) {
+                            // field of class in module that is not open is not counted
+                        }
+                    }
+                }
+            }
+            return fields.toArray(new Field[0]);
+        }
+
+        private static int primitiveBytes(Class<?> type) {
+            if (type == long.class || type == double.class) {
+                return 8;
+            }
+            if (type == int.class || type == float.class) {
+                return 4;
+            }
+            if (type == short.class || type == char.class) {
+                return 2;
+            }
+            return 1;
+        }
+    }
+
+    /**
+     * Recorder of Java Flight Recorder events. Implementation {@code com.FlightRecorderEvents} is compiled only
+     * by JDK with Flight Recorder (profile in pom) and loaded by name, so ULDB itself compiles and runs on Java 8.
+     * Events are created only while a recording is running, otherwise call sites read one volatile flag.
+     */
+    interface EventRecorder {
+
+        Object beginFlush();
+
+        void endFlush(Object flushEvent, String engine, long records, long bytes);
+
+        Object beginLoadSection();
+
+        void endLoadSection(Object loadEvent, String objectClass, long records, long bytes);
+
+        Object beginSaveCascade();
+
+        void endSaveCascade(Object cascadeEvent, String objectClass, int graphSize);
+
+        void exception(Exception e);
+    }
+
+    /**
+     * Executors of asynchronous API. Work with data in memory runs on virtual threads (cached daemon threads
+     * before Java 21), file work runs one at a time on I/O thread. Save requested while other save is still
+     * waiting for I/O thread joins it, so many concurrent writes are saved at once. Queue of I/O thread is
+     * bounded, caller waits when it is full.
+     */
+    private static final class AsyncLane {
+        private static final int IO_QUEUE_SIZE = 64;
+        private ExecutorService executor;
+        private ExecutorService io;
+        private CompletableFuture<Void> pendingSave;
+
+        private synchronized ExecutorService executor() {
+            if (executor == null) {
+                try {
+                    // Java 21 API, called by reflection to stay compatible with Java 8
+                    executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    executor = Executors.newCachedThreadPool(runnable -> {
+                        Thread thread = new Thread(runnable, "ULDB-async");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+            return executor;
+        }
+
+        private synchronized ExecutorService io() {
+            if (io == null) {
+                io = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(IO_QUEUE_SIZE), runnable -> {
+                    Thread thread = new Thread(runnable, "ULDB-io");
+                    thread.setDaemon(true);
+                    return thread;
+                }, (runnable, pool) -> {
+                    // running on caller thread would break one at a time file work, so caller waits for free place
+                    try {
+                        pool.getQueue().put(runnable);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for I/O queue", e);
+                    }
+                });
+            }
+            return io;
+        }
+
+        private synchronized CompletableFuture<Void> save() {
+            if (pendingSave == null) {
+                CompletableFuture<Void> save = new CompletableFuture<>();
+                pendingSave = save;
+                io().execute(() -> {
+                    // changes done from now on are saved by next save
+                    synchronized (this) {
+                        pendingSave = null;
+                    }
+                    try {
+                        saveData();
+                        save.complete(null);
+                    } catch (Throwable e) {
+                        save.completeExceptionally(e);
+                    }
+                });
+            }
+            return pendingSave;
+        }
+    }
+
+    /**
+     * Backup started by {@link ULDB#backup(Path)}. Image of data is written to file in background,
+     * progress of writing can be checked or waited for.
+     */
+    public static final class Backup {
+        private final Path target;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final AtomicLong bytesWritten = new AtomicLong();
+        private volatile long totalBytes = -1;
+        private volatile int partsWritten;
+        private volatile int partCount;
+        private volatile boolean succeeded;
+        private volatile boolean cancelled;
+        private Thread thread;
+
+        private Backup(Path target) {
+            this.target = target;
+        }
+
+        /**
+         * @return backup file
+         */
+        public Path getTarget() {
+            return target;
+        }
+
+        /**
+         * @return bytes of image written so far
+         */
+        public long getBytesWritten() {
+            return bytesWritten.get();
+        }
+
+        /**
+         * @return size of backup in bytes or -1 until it is written (parts of image are converted while it is written)
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * @return part of backup written so far, from 0 to 1, counted by parts of a few thousand objects
+         */
+        public double getProgress() {
+            if (succeeded) {
+                return 1;
+            }
+            int count = partCount;
+            return count == 0 ? 0 : Math.min(1, (double) partsWritten / count);
+        }
+
+        /**
+         * @return true if backup is finished, written or not
+         */
+        public boolean isDone() {
+            return finished.getCount() == 0;
+        }
+
+        /**
+         * Stops writing of backup. Target file is not changed.
+         */
+        public void cancel() {
+            cancelled = true;
+            thread.interrupt();
+        }
+
+        /**
+         * Waits until backup is finished.
+         *
+         * @return true if backup was written to target file
+         */
+        public boolean await() {
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return succeeded;
+        }
+
+        private void run(BackupImage image) {
+            File temp = new File(target + TEMP_SUFFIX);
+            try {
+                List<String> partClasses = new ArrayList<>();
+                List<Supplier<String>> parts = dataParts(Layout.ROWS, partClasses, image);
+                long[] partLengths = new long[parts.size()];
+                partCount = parts.size();
+                boolean written;
+                try (OutputStream out = new FileOutputStream(temp)) {
+                    written = write(out, parts, partLengths, image);
+                }
+                if (!written) {
+                    temp.delete();
+                    return;
+                }
+                totalBytes = bytesWritten.get();
+                Files.move(temp.toPath(), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                writeIndex(target.toFile(), Layout.ROWS, partLengths, partClasses);
+                succeeded = true;
+            } catch (Exception e) {
+                temp.delete();
+                if (!cancelled) {
+                    handleException(e);
+                }
+            } finally {
+                image.finish();
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Converts parts in parallel, a few at once, so only they are kept in memory, and writes them in order.
+         * Image is finished when last part is converted. Parts are written in chunks, after chunk written ahead
+         * of rate limit it waits until the rate is met.
+         *
+         * @return false if backup was cancelled
+         */
+        private boolean write(OutputStream out, List<Supplier<String>> parts, long[] partLengths, BackupImage image)
+                throws IOException, InterruptedException {
+            Charset charset = Charset.forName(encoding);
+            int maxParts = Runtime.getRuntime().availableProcessors() * 2;
+            Deque<CompletableFuture<byte[]>> converted = new ArrayDeque<>();
+            int next = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < parts.size(); i++) {
+                while (next < parts.size() && converted.size() < maxParts) {
+                    Supplier<String> part = parts.get(next++);
+                    converted.add(CompletableFuture.supplyAsync(() -> part.get().getBytes(charset)));
+                }
+                byte[] part;
+                try {
+                    part = converted.poll().join();
+                } catch (CompletionException e) {
+                    throw new IOException(e.getCause());
+                }
+                if (converted.isEmpty()) {
+                    image.finish();
+                }
+                for (int offset = 0; offset < part.length; offset += BACKUP_CHUNK_SIZE) {
+                    if (cancelled) {
+                        return false;
+                    }
+                    int length = Math.min(BACKUP_CHUNK_SIZE, part.length - offset);
+                    out.write(part, offset, length);
+                    long written = bytesWritten.addAndGet(length);
+                    long rate = backupRateLimit;
+                    if (rate > 0) {
+                        long ahead = (long) (written * 1e9 / rate) - (System.nanoTime() - start);
+                        if (ahead > 0) {
+                            Thread.sleep(ahead / 1_000_000, (int) (ahead % 1_000_000));
+                        }
+                    }
+                }
+                partLengths[i] = part.length;
+                partsWritten = i + 1;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Point-in-time image of data taken while data keeps changing. Until all objects are converted, object
+     * changed or deleted for the first time keeps here its row from before the change (empty row if object
+     * did not exist) and the row is written to backup instead of current state of object.
+     */
+    private static final class BackupImage {
+        private final ConcurrentHashMap<String, ConcurrentHashMap<Long, String>> previous = new ConcurrentHashMap<>();
+
+        private void preserve(String className, long id, Map<Long, Object> table) {
+            previous.computeIfAbsent(className, k -> new ConcurrentHashMap<>()).computeIfAbsent(id, k -> {
+                Object obj = table.get(k);
+                return obj == null ? "" : appendRow(new StringBuilder(), getClassMetadata(obj.getClass()), obj).toString();
+            });
+        }
+
+        /**
+         * @return row of object from before the change, empty if object did not exist
+         * or null if object was not changed
+         */
+        private String getPrevious(String className, long id) {
+            Map<Long, String> classPrevious = previous.get(className);
+            return classPrevious == null ? null : classPrevious.get(id);
+        }
+
+        /**
+         * Stops keeping of previous states, image of data is converted.
+         */
+        private void finish() {
+            synchronized (ULDB.class) {
+                if (backupImage == this) {
+                    backupImage = null;
                 }
-                // do not save data that do not have setter
-                if (!haveSetter(objectClass, method.getName())) {
+            }
+        }
+
+        /**
+         * Appends rows of objects deleted before ids of their class were listed.
+         *
+         * @param sb        output
+         * @param className name of class
+         * @param ids       ids of written objects of class
+         * @return output
+         */
+        private StringBuilder appendDeleted(StringBuilder sb, String className, List<Long> ids) {
+            Map<Long, String> classPrevious = previous.get(className);
+            if (classPrevious == null) {
+                return sb;
+            }
+            Set<Long> written = null;
+            for (Map.Entry<Long, String> entry : classPrevious.entrySet()) {
+                if (entry.getValue().isEmpty()) {
                     continue;
                 }
+                if (written == null) {
+                    written = new HashSet<>(ids);
+                }
+                if (!written.contains(entry.getKey())) {
+                    appendPrevious(sb, entry.getValue());
+                }
+            }
+            return sb;
+        }
+    }
+
+    /**
+     * Aggregations over all objects of one class. Property is given by field name (eg. "weight" or "Weight").
+     * Null values are skipped, objects whose time to live passed are not aggregated. Methods return null (or 0)
+     * and pass exception to exception handler when property do not exist or has not supported type.
+     *
+     * @param <T> class of object
+     */
+    public static final class Aggregation<T> {
+        private static final long PARALLELISM_THRESHOLD = 1024;
+
+        private final Class<T> objectClass;
+
+        private Aggregation(Class<T> objectClass) {
+            this.objectClass = objectClass;
+            ensureLoaded(objectClass.getName());
+        }
+
+        /**
+         * @return number of objects, like {@link ULDB#count(Class)} it includes expired objects until they are deleted
+         */
+        public long count() {
+            return ULDB.count(objectClass);
+        }
+
+        /**
+         * Sums values of number property (int, long, short, double, BigDecimal and their wrappers).
+         * Values of primitive properties are read without boxing. Sum of integers that does not fit
+         * in long is counted again as BigDecimal.
+         *
+         * @param property name of property
+         * @return sum of values
+         */
+        public BigDecimal sum(String property) {
+            Property p = findProperty(property);
+            if (p == null) {
+                return null;
+            }
+            if (isIntegerType(p.type)) {
+                ToLongFunction<Object> transformer = p.type.isPrimitive() ? value -> readLong(p, value) : value -> {
+                    Object v = read(p, value);
+                    return v == null ? 0 : ((Number) v).longValue();
+                };
+                try {
+                    return BigDecimal.valueOf(reduceToLong(transformer, Math::addExact));
+                } catch (ArithmeticException e) {
+                    BigDecimal sum = reduce(value -> BigDecimal.valueOf(transformer.applyAsLong(value)), BigDecimal::add);
+                    return sum == null ? BigDecimal.ZERO : sum;
+                }
+            } else if (p.type == double.class || p.type == Double.class) {
+                return BigDecimal.valueOf(reduceToDouble(p.type.isPrimitive() ? value -> readDouble(p, value) : value -> {
+                    Object v = read(p, value);
+                    return v == null ? 0 : ((Number) v).doubleValue();
+                }));
+            } else if (p.type == BigDecimal.class) {
+                BigDecimal sum = reduce(value -> (BigDecimal) read(p, value), BigDecimal::add);
+                return sum == null ? BigDecimal.ZERO : sum;
+            }
+            handleException(new IllegalArgumentException("Property " + property + " is not a number"));
+            return null;
+        }
+
+        /**
+         * Returns average of number property values.
+         *
+         * @param property name of property
+         * @return average of values or null if there are no values
+         */
+        public BigDecimal avg(String property) {
+            BigDecimal sum = sum(property);
+            Property p = findProperty(property);
+            if (sum == null || p == null) {
+                return null;
+            }
+            long count = reduceToLong(p.type.isPrimitive() ? value -> 1 : value -> read(p, value) == null ? 0 : 1, Long::sum);
+            return count == 0 ? null : sum.divide(BigDecimal.valueOf(count), MathContext.DECIMAL64);
+        }
+
+        /**
+         * Returns the smallest value of property. Property type must be Comparable (numbers, String, dates, enums).
+         *
+         * @param property name of property
+         * @return the smallest value or null if there are no values
+         */
+        public <V> V min(String property) {
+            return extreme(property, -1);
+        }
+
+        /**
+         * Returns the biggest value of property. Property type must be Comparable (numbers, String, dates, enums).
+         *
+         * @param property name of property
+         * @return the biggest value or null if there are no values
+         */
+        public <V> V max(String property) {
+            return extreme(property, 1);
+        }
 
-                Object returnObj = method.invoke(obj, (Object[]) null);
-                if (returnObj == null) {
-                    continue;
+        /**
+         * Counts objects for each value of property.
+         *
+         * @param property name of property
+         * @return number of objects by value of property (null key for objects without value)
+         */
+        public Map<Object, Long> groupBy(String property) {
+            Property p = findProperty(property);
+            if (p == null) {
+                return null;
+            }
+            ConcurrentHashMap<Object, LongAdder> counts = new ConcurrentHashMap<>();
+            LongAdder nullCount = new LongAdder();
+            forEach(value -> {
+                Object v = read(p, value);
+                if (v == null) {
+                    nullCount.increment();
+                } else {
+                    counts.computeIfAbsent(v, k -> new LongAdder()).increment();
                 }
+            });
 
-                StringBuilder data = getDataAsString(returnObj);
-                if (data == null) {
-                    continue;
-                }
+            Map<Object, Long> result = new HashMap<>();
+            for (Map.Entry<Object, LongAdder> entry : counts.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().sum());
+            }
+            if (nullCount.sum() > 0) {
+                result.put(null, nullCount.sum());
+            }
+            return result;
+        }
 
-                if (objectStringBuilder.length() > 0) {
-                    objectStringBuilder.append(";");
-                }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private <V> V extreme(String property, int direction) {
+            Property p = findProperty(property);
+            if (p == null) {
+                return null;
+            }
+            if (!p.type.isPrimitive() && !Comparable.class.isAssignableFrom(p.type)) {
+                handleException(new IllegalArgumentException("Property " + property + " is not comparable"));
+                return null;
+            }
+            return (V) reduce(value -> read(p, value),
+                    (a, b) -> ((Comparable) a).compareTo(b) * direction >= 0 ? a : b);
+        }
 
-                objectStringBuilder.append(removePerfix(method));
-                objectStringBuilder.append(":");
-                objectStringBuilder.append(data);
+        private Property findProperty(String property) {
+            ClassMetadata metadata = getClassMetadata(objectClass);
+            String name = property.isEmpty() ? property : Character.toUpperCase(property.charAt(0)) + property.substring(1);
+            Property p = name.equals("Id") ? metadata.idProperty : metadata.propertiesByName.get(name);
+            if (p == null) {
+                handleException(new IllegalArgumentException("Property " + property + " not found in " + objectClass.getName()));
             }
-        } catch (Exception e) {
-            handleException(e);
+            return p;
         }
-        return objectStringBuilder.toString();
-    }
 
-    private static StringBuilder getDataAsString(Object returnObj) throws InvocationTargetException, IllegalAccessException {
-        StringBuilder data = new StringBuilder();
-        Class returnType = returnObj.getClass();
-        Method tmpIdMethod;
+        private static Object read(Property property, Object object) {
+            try {
+                return property.get(object);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
 
-        if (returnType.isEnum()) {
-            Enum<?> e = (Enum<?>) returnObj;
-            data.append(replaceOtherChars(e.name()));
-        } else if (returnType == boolean.class || returnType == Boolean.class) {
-            Boolean trueOrFalse = (Boolean) returnObj;
-            if (trueOrFalse)
-                data.append("1");
-            else
-                data.append("0");
-        } else if (returnType == Integer.class || returnType == int.class
-                || returnType == Short.class || returnType == short.class
-                || returnType == Long.class || returnType == long.class
-                || returnType == BigDecimal.class) {
-            data.append(returnObj.toString());
-        } else if (returnType == String.class) {
-            data.append(replaceOtherChars(returnObj.toString()));
-        } else if (returnType == List.class || returnType == ArrayList.class) {
-            List<?> list = (List<?>) returnObj;
-            if (list.size() == 0) {
-                return null;
+        private static long readLong(Property property, Object object) {
+            try {
+                return property.getLong(object);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
             }
+        }
 
-            Object firstObject = list.get(0);
-            // do not save list of other collections
-            if (firstObject instanceof Collection) {
-                return null;
+        private static double readDouble(Property property, Object object) {
+            try {
+                return property.getDouble(object);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
             }
+        }
 
-            Class parameterClass = firstObject.getClass();
-            StringBuilder listData = new StringBuilder();
+        private static boolean isIntegerType(Class<?> type) {
+            return type == int.class || type == Integer.class || type == long.class || type == Long.class
+                    || type == short.class || type == Short.class;
+        }
 
-            for (Object listObject : (List<?>) returnObj) {
-                if (parameterClass == null) {
-                    parameterClass = listObject.getClass();
+        /**
+         * Filter of ids of objects that are not expired. Expired objects are skipped though reaper has not
+         * deleted them yet, like in {@link ULDB#get(Class, Long)}.
+         */
+        private LongPredicate notExpired() {
+            Map<Long, Expiry> classExpiries = expiries.isEmpty() ? null : expiries.get(objectClass.getName());
+            if (classExpiries == null || classExpiries.isEmpty()) {
+                return id -> true;
+            }
+            long now = System.currentTimeMillis();
+            return id -> {
+                Expiry expiry = classExpiries.get(id);
+                return expiry == null || expiry.getExpiresAt() > now;
+            };
+        }
+
+        private long reduceToLong(ToLongFunction<Object> transformer, LongBinaryOperator reducer) {
+            Map<Long, Object> table = storedData.get(objectClass.getName());
+            LongPredicate notExpired = notExpired();
+            if (table instanceof ConcurrentHashMap) {
+                return ((ConcurrentHashMap<Long, Object>) table).reduceToLong(PARALLELISM_THRESHOLD,
+                        (id, value) -> notExpired.test(id) ? transformer.applyAsLong(value) : 0L, 0L, reducer);
+            }
+            long result = 0;
+            if (table != null) {
+                for (Map.Entry<Long, Object> entry : table.entrySet()) {
+                    if (notExpired.test(entry.getKey())) {
+                        result = reducer.applyAsLong(result, transformer.applyAsLong(entry.getValue()));
+                    }
                 }
-                listData.append(",");
-                Method getIdMethod = getIdMethodIfValidForSave(listObject);
-                if (getIdMethod != null) {
-                    Long listObjectId = (Long) getIdMethod.invoke(listObject, (Object[]) null);
-                    listData.append(listObjectId);
-                } else {
-                    listData.append(getDataAsString(listObject));
+            }
+            return result;
+        }
+
+        private double reduceToDouble(ToDoubleFunction<Object> transformer) {
+            Map<Long, Object> table = storedData.get(objectClass.getName());
+            LongPredicate notExpired = notExpired();
+            if (table instanceof ConcurrentHashMap) {
+                return ((ConcurrentHashMap<Long, Object>) table).reduceToDouble(PARALLELISM_THRESHOLD,
+                        (id, value) -> notExpired.test(id) ? transformer.applyAsDouble(value) : 0.0, 0.0, Double::sum);
+            }
+            double result = 0;
+            if (table != null) {
+                for (Map.Entry<Long, Object> entry : table.entrySet()) {
+                    if (notExpired.test(entry.getKey())) {
+                        result += transformer.applyAsDouble(entry.getValue());
+                    }
                 }
             }
-            data.append(parameterClass.getName());
-            data.append(listData);
-        } else if (returnType == Calendar.class) {
-            String sb = ((Calendar) returnObj).get(Calendar.YEAR) +
-                    "." +
-                    ((Calendar) returnObj).get(Calendar.MONTH) +
-                    "." +
-                    ((Calendar) returnObj).get(Calendar.DAY_OF_MONTH) +
-                    "." +
-                    ((Calendar) returnObj).get(Calendar.HOUR_OF_DAY) +
-                    "." +
-                    ((Calendar) returnObj).get(Calendar.MINUTE) +
-                    "." +
-                    ((Calendar) returnObj).get(Calendar.SECOND) +
-                    "." +
-                    ((Calendar) returnObj).get(Calendar.MILLISECOND);
-            data.append(replaceOtherChars(sb));
-        } else if (returnType == LocalDate.class) {
-            data.append(((LocalDate) returnObj).toEpochDay());
-        } else if (returnType == LocalDateTime.class) {
-            data.append(((LocalDateTime) returnObj).toEpochSecond(ZoneOffset.UTC));
-        } else if ((tmpIdMethod = getIdMethodIfValidForSave(returnType)) != null) {
-            Long returnObjectId = (Long) tmpIdMethod.invoke(returnObj, (Object[]) null);
-            data.append(returnObjectId);
-        } else {
-            return null;
+            return result;
         }
-        return data;
-    }
 
-    private static boolean haveSetter(Class className, String methodName) {
-        if (methodName.startsWith("get")) {
-            String setterName = "set" + methodName.substring(3);
-            return haveMethod(className, setterName);
-        } else if (methodName.startsWith("is")) {
-            String setterName = "set" + methodName.substring(2);
-            return haveMethod(className, setterName);
+        /**
+         * Reduces values returned by transformer, null values are skipped.
+         */
+        private <V> V reduce(Function<Object, V> transformer, BiFunction<V, V, V> reducer) {
+            Map<Long, Object> table = storedData.get(objectClass.getName());
+            LongPredicate notExpired = notExpired();
+            if (table instanceof ConcurrentHashMap) {
+                return ((ConcurrentHashMap<Long, Object>) table).reduce(PARALLELISM_THRESHOLD,
+                        (id, value) -> notExpired.test(id) ? transformer.apply(value) : null, reducer);
+            }
+            V result = null;
+            if (table != null) {
+                for (Map.Entry<Long, Object> entry : table.entrySet()) {
+                    V v = notExpired.test(entry.getKey()) ? transformer.apply(entry.getValue()) : null;
+                    if (v != null) {
+                        result = result == null ? v : reducer.apply(result, v);
+                    }
+                }
+            }
+            return result;
+        }
+
+        private void forEach(Consumer<Object> action) {
+            Map<Long, Object> table = storedData.get(objectClass.getName());
+            LongPredicate notExpired = notExpired();
+            if (table instanceof ConcurrentHashMap) {
+                ((ConcurrentHashMap<Long, Object>) table).forEach(PARALLELISM_THRESHOLD, (id, value) -> {
+                    if (notExpired.test(id)) {
+                        action.accept(value);
+                    }
+                });
+            } else if (table != null) {
+                for (Map.Entry<Long, Object> entry : table.entrySet()) {
+                    if (notExpired.test(entry.getKey())) {
+                        action.accept(entry.getValue());
+                    }
+                }
+            }
         }
-        return false;
     }
 
     /**
-     * Converts object saved as string into normal object.
+     * Layout of data in saved file.
+     */
+    public enum Layout {
+        /**
+         * Header with names of fields for each class, then one line for each object.
+         */
+        ROWS,
+        /**
+         * One block for each class with one line for each field, smaller file for many objects of the same class.
+         */
+        COLUMNS
+    }
+
+    /**
+     * Format of lines written by exportTo and read by importFrom.
+     */
+    public enum DataFormat {
+        /**
+         * One JSON object per line, names of fields as in data file (eg. "Id", "Color").
+         */
+        JSON_LINES,
+        /**
+         * Comma separated values with header line of field names (RFC 4180 quoting).
+         */
+        CSV
+    }
+
+    /**
+     * Place where stored objects are kept.
+     */
+    public enum StorageMode {
+        /**
+         * Objects are kept as they are. get returns the same object that was saved.
+         */
+        HEAP,
+        /**
+         * Objects are kept serialized in direct memory, outside of Java heap, so many objects do not slow down
+         * garbage collector. get returns new object decoded from memory on every call,
+         * changes of that object are stored only after saveOrUpdate.
+         */
+        OFF_HEAP
+    }
+
+    /**
+     * Marks class for EntityCodecProcessor (com.processor package), which generates codec class for it during compilation.
+     * ULDB uses generated codec instead of reflection when codec is available. Class is saved the same way without codec.
+     */
+    @Retention(RetentionPolicy.CLASS)
+    @Target(ElementType.TYPE)
+    public @interface Entity {
+    }
+
+    /**
+     * Reads and writes fields of objects without reflection. Implementations are generated by EntityCodecProcessor
+     * for classes marked with {@link Entity} and named after class with "ULDBCodec" suffix (eg. AppleULDBCodec).
+     * Property names are field names without "get", "is" or "set" prefix, the same as in saved data.
      *
-     * @param objectAsString object saved as string
-     * @return object with filled data
+     * @param <T> class of object
      */
-    @SuppressWarnings({"unchecked", "rawtypes"})
-    private static Object convertToObject(String objectAsString) {
-        if (objectAsString == null || objectAsString.isEmpty()) {
-            return null;
+    public interface Codec<T> {
+
+        T newInstance();
+
+        long getId(T object);
+
+        void setId(T object, long id);
+
+        String[] getPropertyNames();
+
+        Class<?>[] getPropertyTypes();
+
+        Object get(T object, int property);
+
+        void set(T object, int property, Object value);
+
+        /**
+         * Reads property of primitive integer type (int, long, short, byte) without boxing.
+         */
+        default long getLong(T object, int property) {
+            return ((Number) get(object, property)).longValue();
+        }
+
+        /**
+         * Reads property of primitive number type without boxing.
+         */
+        default double getDouble(T object, int property) {
+            return ((Number) get(object, property)).doubleValue();
         }
-        String[] data = objectAsString.split(";", -1);
+    }
 
-        Class<?> objectClass = null;
-        HashMap<String, String> methodsWithValues = new HashMap<>();
+    /**
+     * Methods of class used by ULDB, scanned once per class.
+     * When generated codec for class exists it is used instead of reflection.
+     */
+    static final class ClassMetadata {
+        private final Class<?> objectClass;
+        private final Codec<Object> codec;
+        private final Method idGetter;
+        private final Method idSetter;
+        private final Property idProperty;
+        final List<Property> properties = new ArrayList<>();
+        private final Map<String, Property> propertiesByName = new HashMap<>();
+        private String rowHeader;
+        private RowPlan rowPlan;
+        private List<Property> referenceProperties;
 
-        for (String s : data) {
-            if (s == null || s.isEmpty()) {
-                continue;
+        private ClassMetadata(Class<?> objectClass) {
+            this.objectClass = objectClass;
+            this.codec = findCodec(objectClass);
+            this.idProperty = new Property("Id", long.class, this);
+
+            if (codec != null) {
+                this.idGetter = null;
+                this.idSetter = null;
+                String[] names = codec.getPropertyNames();
+                Class<?>[] types = codec.getPropertyTypes();
+                for (int i = 0; i < names.length; i++) {
+                    addProperty(new Property(names[i], types[i], codec, i));
+                }
+                return;
             }
 
-            String[] field = s.split(":", -1);
+            Method getIdMethod = null;
+            boolean hasSetMethod = false;
+            Map<String, Method> setters = new HashMap<>();
+            Method[] methods = objectClass.getMethods();
 
-            if (field.length < 1) {
-                continue;
+            for (Method method : methods) {
+                if (method.getName().equals("getId")) {
+                    if (method.getReturnType() == long.class || method.getReturnType() == Long.class) {
+                        getIdMethod = method;
+                    }
+                } else if (method.getName().equals("setId")) {
+                    if (method.getParameterTypes().length == 1
+                            && (method.getParameterTypes()[0] == Long.class || method.getParameterTypes()[0] == long.class)) {
+                        hasSetMethod = true;
+                    }
+                }
+                if (method.getName().startsWith("set") && method.getParameterTypes().length == 1) {
+                    setters.put(method.getName(), method);
+                }
             }
+            this.idGetter = hasSetMethod ? getIdMethod : null;
+            this.idSetter = getIdSetterMethod(objectClass);
 
-            if (field.length == 1) { // class name
-                try {
-                    objectClass = Class.forName(field[0]);
-                } catch (ClassNotFoundException e) {
-                    handleException(e);
-                    return null;
+            for (Method method : methods) {
+                if (method.getParameterTypes().length != 0 || method.getName().equals("getId")) {
+                    continue;
+                }
+                String setterMethodName = getSetter(method.getName());
+                if (setterMethodName == null || !setters.containsKey(setterMethodName)) {
+                    continue;
+                }
+                String name = removePerfix(method);
+                Property known = propertiesByName.get(name);
+                if (known != null) {
+                    // class with getX and isX has one property read by getX, like in generated codecs
+                    if (!method.getName().startsWith("get")) {
+                        continue;
+                    }
+                    properties.remove(known);
                 }
-            } else if (field.length == 2) { // data name and value
-                methodsWithValues.put(addSetPrefix(field[0]), field[1]);
+                addProperty(new Property(name, method, setters.get(setterMethodName)));
             }
         }
 
-        if (objectClass == null)
-            return null;
+        private void addProperty(Property property) {
+            properties.add(property);
+            propertiesByName.put(property.name, property);
+        }
 
-        // init new object
-        Object object;
-        try {
-            object = objectClass.newInstance();
-        } catch (InstantiationException | IllegalAccessException e) {
-            handleException(e);
-            return null;
+        private boolean isValidForSave() {
+            return codec != null || idGetter != null;
         }
 
-        // filling fields of new object
-        for (Method method : objectClass.getMethods()) {
+        /**
+         * Returns schema header of rows layout: "!Id:long;Name:type;..." with properties in order of row values.
+         */
+        private String getRowHeader() {
+            if (rowHeader == null) {
+                StringBuilder sb = new StringBuilder("!Id:long");
+                for (Property property : properties) {
+                    sb.append(";").append(property.name).append(":").append(property.type.getName());
+                }
+                rowHeader = sb.toString();
+            }
+            return rowHeader;
+        }
 
-            if (!methodsWithValues.containsKey(method.getName())) {
-                continue;
+        /**
+         * Returns properties that can refer to other stored objects: children and lists.
+         */
+        private List<Property> getReferenceProperties() {
+            if (referenceProperties == null) {
+                List<Property> found = new ArrayList<>();
+                for (Property property : properties) {
+                    if (property.type == List.class || property.type == ArrayList.class || ULDB.isValidForSave(property.type)) {
+                        found.add(property);
+                    }
+                }
+                referenceProperties = found;
             }
+            return referenceProperties;
+        }
 
-            String value = methodsWithValues.get(method.getName());
+        /**
+         * Returns plan for decoding rows appended by appendRow in this application run.
+         */
+        RowPlan getRowPlan() {
+            if (rowPlan == null) {
+                List<Property> rowProperties = new ArrayList<>();
+                rowProperties.add(idProperty);
+                rowProperties.addAll(properties);
+                rowPlan = new RowPlan(this, rowProperties.toArray(new Property[0]));
+            }
+            return rowPlan;
+        }
 
-            Class<?>[] parameters = method.getParameterTypes();
-            if (parameters.length != 1) {
-                continue;
+        private boolean canSetId() {
+            return codec != null || idSetter != null;
+        }
+
+        private long getId(Object obj) throws ReflectiveOperationException {
+            if (codec != null) {
+                return codec.getId(obj);
             }
+            return (long) idGetter.invoke(obj);
+        }
 
-            Class<?> parameterClass = parameters[0];
+        void setId(Object obj, long id) throws ReflectiveOperationException {
+            if (codec != null) {
+                codec.setId(obj, id);
+            } else {
+                idSetter.invoke(obj, id);
+            }
+        }
 
-            setValueToTargetObject(object, method, value, parameterClass);
+        @SuppressWarnings("deprecation")
+        private Object newInstance() throws ReflectiveOperationException {
+            if (codec != null) {
+                return codec.newInstance();
+            }
+            return objectClass.newInstance();
         }
-        return object;
-    }
 
-    @SuppressWarnings("unchecked")
-    private static void setValueToTargetObject(Object targetObject, Method setterMethod, String value, Class parameterClass) {
-        if (parameterClass.isEnum()) {
+        /**
+         * Returns generated codec of class or null if class has no codec.
+         */
+        @SuppressWarnings("unchecked")
+        private static Codec<Object> findCodec(Class<?> objectClass) {
+            String packageName = objectClass.getPackage() == null ? "" : objectClass.getPackage().getName();
+            String className = objectClass.getName().substring(packageName.isEmpty() ? 0 : packageName.length() + 1);
+            String codecName = (packageName.isEmpty() ? "" : packageName + ".") + className.replace('$', '_') + "ULDBCodec";
             try {
-                Class<? extends Enum> enumClass = (Class<? extends Enum>) parameterClass;
-                setterMethod.invoke(targetObject, Enum.valueOf(enumClass, value));
-            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+                Class<?> codecClass = Class.forName(codecName, true, objectClass.getClassLoader());
+                return (Codec<Object>) codecClass.getConstructor().newInstance();
+            } catch (ClassNotFoundException | NoClassDefFoundError e) {
+                return null;
+            } catch (Exception e) {
                 handleException(e);
+                return null;
             }
-        } else if (parameterClass == Boolean.class) {
-            try {
-                switch (value) {
-                    case "1":
-                        setterMethod.invoke(targetObject, true);
-                        break;
-                    case "0":
-                        setterMethod.invoke(targetObject, false);
-                        break;
-                    default:
-                        setterMethod.invoke(targetObject, (Object) null);
-                        break;
-                }
-            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                handleException(e);
+        }
+    }
+
+    /**
+     * Byte range of one class in data file.
+     */
+    private static final class Section {
+        private final File file;
+        private final Layout layout;
+        private final long offset;
+        private final long length;
+
+        private Section(File file, Layout layout, long offset, long length) {
+            this.file = file;
+            this.layout = layout;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Decoder of rows layout compiled from schema header once per class block.
+     * Each row value is set by its position, properties from header that class do not have anymore are skipped
+     * and properties that header do not have keep their default values.
+     */
+    static final class RowPlan {
+        private final ClassMetadata metadata;
+        private final Property[] properties;
+        private final int decodedLength;
+
+        private RowPlan(ClassMetadata metadata, Property[] properties) {
+            this.metadata = metadata;
+            this.properties = properties;
+            int length = properties.length;
+            while (length > 0 && properties[length - 1] == null) {
+                length--;
             }
-        } else if (parameterClass == boolean.class) {
+            // values after last decoded property are not read
+            this.decodedLength = length;
+        }
+
+        /**
+         * Compiles plan from header line "!Id:long;Name:type;...".
+         *
+         * @param objectClass name of class
+         * @param header      header line
+         * @return plan, it decodes nothing if class do not exist
+         */
+        private static RowPlan compile(String objectClass, String header) {
+            ClassMetadata metadata;
             try {
-                if ("1".equals(value)) {
-                    setterMethod.invoke(targetObject, true);
-                } else {
-                    setterMethod.invoke(targetObject, false);
-                }
-            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+                metadata = getClassMetadata(classForName(objectClass));
+            } catch (ClassNotFoundException e) {
                 handleException(e);
+                return new RowPlan(null, new Property[0]);
             }
-        } else if (parameterClass == Long.class || parameterClass == long.class) {
-            try {
-                setterMethod.invoke(targetObject, Long.parseLong(value));
-            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                handleException(e);
+            if (metadata.getRowHeader().equals(header)) {
+                return metadata.getRowPlan();
             }
-        } else if (parameterClass == Integer.class || parameterClass == int.class) {
-            try {
-                setterMethod.invoke(targetObject, Integer.parseInt(value));
-            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                handleException(e);
+
+            String[] names = header.substring(1).split(";");
+            Property[] properties = new Property[names.length];
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i].substring(0, names[i].indexOf(':'));
+                properties[i] = name.equals("Id") ? metadata.idProperty : metadata.propertiesByName.get(name);
             }
-        } else if (parameterClass == Short.class || parameterClass == short.class) {
-            try {
-                setterMethod.invoke(targetObject, Short.parseShort(value));
-            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                handleException(e);
+            return new RowPlan(metadata, properties);
+        }
+
+        Object decode(String row) {
+            if (metadata == null) {
+                return null;
             }
-        } else if (parameterClass == Double.class || parameterClass == double.class) {
+            Object object;
             try {
-                setterMethod.invoke(targetObject, Double.parseDouble(value));
-            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+                object = metadata.newInstance();
+            } catch (ReflectiveOperationException e) {
                 handleException(e);
+                return null;
+            }
+            int start = 0;
+            for (int i = 0; i < decodedLength && start <= row.length(); i++) {
+                int end = row.indexOf(';', start);
+                if (end < 0) {
+                    end = row.length();
+                }
+                boolean isNull = end - start == 1 && row.charAt(start) == NULL_VALUE.charAt(0);
+                if (properties[i] != null && !isNull) {
+                    setValueToTargetObject(object, properties[i], row.substring(start, end));
+                }
+                start = end + 1;
+            }
+            return object;
+        }
+
+        /**
+         * Returns plan that decodes only given properties, values of other properties are skipped.
+         */
+        private RowPlan project(Set<Property> projected) {
+            Property[] kept = new Property[properties.length];
+            for (int i = 0; i < kept.length; i++) {
+                kept[i] = projected.contains(properties[i]) ? properties[i] : null;
+            }
+            return new RowPlan(metadata, kept);
+        }
+    }
+
+    /**
+     * Field of object with getter and setter, accessed by reflection or by generated codec.
+     */
+    static final class Property {
+        private final String name;
+        final Class<?> type;
+        private final Method getter;
+        private final Method setter;
+        private final Codec<Object> codec;
+        private final int index;
+        private final ClassMetadata idOf;
+        private final MethodHandle longGetter;
+        private final MethodHandle doubleGetter;
+
+        private Property(String name, Method getter, Method setter) {
+            this(name, setter.getParameterTypes()[0], getter, setter, null, -1, null);
+        }
+
+        private Property(String name, Class<?> type, Codec<Object> codec, int index) {
+            this(name, type, null, null, codec, index, null);
+        }
+
+        private Property(String name, Class<?> type, ClassMetadata idOf) {
+            this(name, type, null, null, null, -1, idOf);
+        }
+
+        private Property(String name, Class<?> type, Method getter, Method setter, Codec<Object> codec, int index, ClassMetadata idOf) {
+            this.name = name;
+            this.type = type;
+            this.getter = getter;
+            this.setter = setter;
+            this.codec = codec;
+            this.index = index;
+            this.idOf = idOf;
+            this.longGetter = primitiveGetter(getter, long.class);
+            this.doubleGetter = primitiveGetter(getter, double.class);
+        }
+
+        /**
+         * Getter of primitive value converted to long or double, null when getter is not primitive
+         * or its value can not be widened.
+         */
+        private static MethodHandle primitiveGetter(Method getter, Class<?> resultType) {
+            if (getter == null || !getter.getReturnType().isPrimitive() || getter.getReturnType() == boolean.class
+                    || getter.getReturnType() == char.class
+                    || resultType == long.class && (getter.getReturnType() == float.class || getter.getReturnType() == double.class)) {
+                return null;
             }
-        } else if (parameterClass == String.class) {
             try {
-                setterMethod.invoke(targetObject, replaceOtherCharsReverted(value));
-            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                handleException(e);
+                return MethodHandles.publicLookup().unreflect(getter).asType(MethodType.methodType(resultType, Object.class));
+            } catch (IllegalAccessException e) {
+                return null;
             }
-        } else if (parameterClass == BigDecimal.class) {
-            try {
-                if (value.contains(".")) {
-                    setterMethod.invoke(targetObject, BigDecimal.valueOf(Double.parseDouble(value)));
-                } else {
-                    setterMethod.invoke(targetObject, BigDecimal.valueOf(Long.parseLong(value)));
-                }
-            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                handleException(e);
+        }
+
+        /**
+         * Reads property of primitive integer type without boxing.
+         */
+        private long getLong(Object obj) throws ReflectiveOperationException {
+            if (idOf != null) {
+                return idOf.getId(obj);
             }
-        } else if (parameterClass == ArrayList.class || parameterClass == List.class) {
-            List list = new ArrayList<>();
-            String[] dataStringArray = value.split(",");
-            Class collectionElementClass;
-            try {
-                collectionElementClass = Class.forName(dataStringArray[0]);
-            } catch (Exception e) {
-                handleException(e);
-                return;
+            if (codec != null) {
+                return codec.getLong(obj, index);
             }
-            for (int i = 1; i < dataStringArray.length; i++) {
-                try {
-                    Method setIdMethod;
-                    setIdMethod = getIdSetterMethod(collectionElementClass);
-                    if (setIdMethod != null) {
-                        Long generatedId = Long.parseLong(replaceOtherCharsReverted(dataStringArray[i]));
-                        Object newObject = collectionElementClass.newInstance();
-                        setIdMethod.invoke(newObject, generatedId);
-                        list.add(newObject);
-                    } else {
-                        Method listAddMethod = parameterClass.getMethod("add", Object.class);
-                        setValueToTargetObject(list, listAddMethod, dataStringArray[i], collectionElementClass);
-                    }
-                } catch (Exception e) {
-                    handleException(e);
-                }
+            if (longGetter == null) {
+                return ((Number) getter.invoke(obj)).longValue();
             }
             try {
-                setterMethod.invoke(targetObject, list);
-            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                handleException(e);
+                return (long) longGetter.invokeExact(obj);
+            } catch (RuntimeException | Error | ReflectiveOperationException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new InvocationTargetException(e);
             }
-        } else if (parameterClass == Calendar.class) {
-            String dataString = replaceOtherCharsReverted(value);
-            String[] dataStringArray = dataString.split("\\.");
-            Calendar date = GregorianCalendar.getInstance();
-            date.set(Calendar.YEAR, Integer.parseInt(dataStringArray[0]));
-            date.set(Calendar.MONTH, Integer.parseInt(dataStringArray[1]));
-            date.set(Calendar.DAY_OF_MONTH, Integer.parseInt(dataStringArray[2]));
-            date.set(Calendar.HOUR_OF_DAY, Integer.parseInt(dataStringArray[3]));
-            date.set(Calendar.MINUTE, Integer.parseInt(dataStringArray[4]));
-            date.set(Calendar.SECOND, Integer.parseInt(dataStringArray[5]));
-            date.set(Calendar.MILLISECOND, Integer.parseInt(dataStringArray[6]));
-            try {
-                setterMethod.invoke(targetObject, date);
-            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                handleException(e);
+        }
+
+        /**
+         * Reads property of primitive number type without boxing.
+         */
+        private double getDouble(Object obj) throws ReflectiveOperationException {
+            if (idOf != null) {
+                return idOf.getId(obj);
             }
-        } else if (parameterClass == LocalDate.class) {
-            long epochDay = Long.parseLong(value);
-            LocalDate date = LocalDate.ofEpochDay(epochDay);
-            try {
-                setterMethod.invoke(targetObject, date);
-            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                handleException(e);
+            if (codec != null) {
+                return codec.getDouble(obj, index);
             }
-        } else if (parameterClass == LocalDateTime.class) {
-            long epochSecond = Long.parseLong(value);
-            LocalDateTime dateAndTime = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
-            try {
-                setterMethod.invoke(targetObject, dateAndTime);
-            } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                handleException(e);
+            if (doubleGetter == null) {
+                return ((Number) getter.invoke(obj)).doubleValue();
             }
-        } else {
             try {
-                Method getIdMethod = getIdMethodIfValidForSave(parameterClass);
+                return (double) doubleGetter.invokeExact(obj);
+            } catch (RuntimeException | Error | ReflectiveOperationException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new InvocationTargetException(e);
+            }
+        }
 
-                if (getIdMethod != null) {
-                    Object newObject = parameterClass.newInstance();
-                    Method setIdMethod = parameterClass.getMethod("setId", long.class);
-                    if (setIdMethod != null) {
-                        Long id = Long.parseLong(replaceOtherCharsReverted(value));
-                        setIdMethod.invoke(newObject, id);
-                        setterMethod.invoke(targetObject, newObject);
-                    }
-                }
-            } catch (Exception e) {
-                handleException(e);
+        Object get(Object obj) throws ReflectiveOperationException {
+            if (idOf != null) {
+                return idOf.getId(obj);
+            }
+            if (codec != null) {
+                return codec.get(obj, index);
+            }
+            return getter.invoke(obj);
+        }
+
+        void set(Object obj, Object value) throws ReflectiveOperationException {
+            if (idOf != null) {
+                idOf.setId(obj, (Long) value);
+            } else if (codec != null) {
+                codec.set(obj, index, value);
+            } else {
+                setter.invoke(obj, value);
             }
         }
     }
 
     /**
-     * Returns setter method for id or null if such do not exists.
+     * Metrics available by JMX. See {@link Metrics}.
      */
-    @SuppressWarnings("unchecked")
-    private static Method getIdSetterMethod(Class objectClass) {
-        try {
-            return objectClass.getMethod("setId", long.class);
-        } catch (NoSuchMethodException ex) {
-            return null;
-        }
+    public interface MetricsMXBean {
+
+        Map<String, Integer> getObjectCounts();
+
+        long getSaveOrUpdateCount();
+
+        long getGetCount();
+
+        long getDeleteCount();
+
+        LatencyHistogram getSaveDataLatency();
+
+        LatencyHistogram getLoadDataLatency();
+
+        long getBytesWritten();
+
+        long getBytesRead();
+
+        int getPendingActions();
+
+        int getFlushQueueDepth();
+
+        long getErrorCount();
+
+        long getOffHeapBytes();
+
+        long getExpiredCount();
+
+        Map<String, Long> getSampledHeapBytes();
+
+        long getHeapBudgetExceededCount();
     }
 
     /**
-     * Generate new database id for object.
-     *
-     * @param objectClass object class
-     * @return next id that should be used for that class
+     * Counters of database operations. All counters grow from application start, rates can be calculated by
+     * comparing two reads. Counters are striped (LongAdder), so they are cheap to update from many threads.
      */
-    private static long generateId(String objectClass) {
-        long id = 1;
-        if (lastId.containsKey(objectClass)) {
-            id = lastId.get(objectClass) + 1;
-            while (storedData.get(objectClass) != null && storedData.get(objectClass).containsKey(id)) {
-                id++;
+    public static final class Metrics implements MetricsMXBean {
+        final LongAdder saveOrUpdateCount = new LongAdder();
+        private final LongAdder getCount = new LongAdder();
+        private final LongAdder deleteCount = new LongAdder();
+        final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder errorCount = new LongAdder();
+        private final LongAdder expiredCount = new LongAdder();
+        private final LongAdder heapBudgetExceededCount = new LongAdder();
+        private volatile Map<String, Long> sampledHeapBytes = Collections.emptyMap();
+        private final AtomicInteger flushQueueDepth = new AtomicInteger();
+        private final LatencyHistogram saveDataLatency = new LatencyHistogram();
+        private final LatencyHistogram loadDataLatency = new LatencyHistogram();
+
+        private Metrics() {
+        }
+
+        /**
+         * @return number of objects stored in memory per class name
+         */
+        @Override
+        public Map<String, Integer> getObjectCounts() {
+            Map<String, Integer> counts = new TreeMap<>();
+            for (Map.Entry<String, Map<Long, Object>> entry : storedData.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue().size());
             }
+            return counts;
         }
-        lastId.put(objectClass, id);
 
-        return id;
-    }
+        /**
+         * @return number of saveOrUpdate calls
+         */
+        @Override
+        public long getSaveOrUpdateCount() {
+            return saveOrUpdateCount.sum();
+        }
 
-    private static boolean isValidId(String objectClass, Long id) {
-        if (!lastId.containsKey(objectClass)) {
-            return false;
+        /**
+         * @return number of get calls
+         */
+        @Override
+        public long getGetCount() {
+            return getCount.sum();
         }
-        long last = lastId.get(objectClass);
-        return last >= id;
-    }
 
-    /**
-     * Remove 'get' or 'is' prefix to get field name.
-     *
-     * @param method Method
-     * @return name of field
-     */
-    private static String removePerfix(Method method) {
-        String methodName = method.getName();
-        if (methodName.startsWith("get")) {
-            methodName = methodName.replaceFirst("get", "");
-        } else if (methodName.startsWith("is")) {
-            methodName = methodName.replaceFirst("is", "");
+        /**
+         * @return number of deleted objects
+         */
+        @Override
+        public long getDeleteCount() {
+            return deleteCount.sum();
         }
-        return methodName;
-    }
 
-    /**
-     * Adds 'set' prefix to get setter method name.
-     *
-     * @return setter method name
-     */
-    private static String addSetPrefix(String s) {
-        return "set" + s;
-    }
+        /**
+         * @return duration of successful saveData calls
+         */
+        @Override
+        public LatencyHistogram getSaveDataLatency() {
+            return saveDataLatency;
+        }
 
-    //TODO temporary solution, could be done better for sure
-    private static String replaceOtherChars(String s) {
-        s = s.replaceAll("#", "XaFS");
-        s = s.replaceAll(":", "#x#");
-        s = s.replaceAll(";", "#y#");
-        s = s.replaceAll("\n", "#n#");
-        s = s.replaceAll("\t", "#t#");
-        s = s.replaceAll("<", "#1#");
-        s = s.replaceAll(">", "#2#");
-        s = s.replaceAll("&", "#l#");
-        return s;
-    }
+        /**
+         * @return duration of successful loadData calls
+         */
+        @Override
+        public LatencyHistogram getLoadDataLatency() {
+            return loadDataLatency;
+        }
 
-    private static String replaceOtherCharsReverted(String s) {
-        s = s.replaceAll("#x#", ":");
-        s = s.replaceAll("#y#", ";");
-        s = s.replaceAll("#n#", "\n");
-        s = s.replaceAll("#t#", "\t");
-        s = s.replaceAll("#1#", "<");
-        s = s.replaceAll("#2#", ">");
-        s = s.replaceAll("#l#", "&");
-        s = s.replaceAll("XaFS", "#");
-        return s;
-    }
+        /**
+         * @return bytes written to local drive
+         */
+        @Override
+        public long getBytesWritten() {
+            return bytesWritten.sum();
+        }
 
-    /**
-     * Check does object is valid for save by ULDB.
-     *
-     * @param object Class of object for validation
-     * @return method for getting id of object
-     */
-    private static Method getIdMethodIfValidForSave(Object object) {
-        if (object == null) {
-            return null;
+        /**
+         * @return bytes read from local drive
+         */
+        @Override
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        /**
+         * @return number of actions not yet saved to local drive
+         */
+        @Override
+        public int getPendingActions() {
+            return actionsSinceLastSave.get();
+        }
+
+        /**
+         * @return number of saveData calls currently running or waiting
+         */
+        @Override
+        public int getFlushQueueDepth() {
+            return flushQueueDepth.get();
+        }
+
+        /**
+         * @return number of exceptions passed to exception handler
+         */
+        @Override
+        public long getErrorCount() {
+            return errorCount.sum();
+        }
+
+        /**
+         * @return bytes of direct memory reserved by classes stored in OFF_HEAP mode
+         */
+        @Override
+        public long getOffHeapBytes() {
+            long bytes = 0;
+            for (Map<Long, Object> table : storedData.values()) {
+                if (table instanceof OffHeapTable) {
+                    bytes += ((OffHeapTable) table).reservedBytes();
+                }
+            }
+            return bytes;
+        }
+
+        /**
+         * @return number of objects deleted because their time to live passed
+         */
+        @Override
+        public long getExpiredCount() {
+            return expiredCount.sum();
+        }
+
+        /**
+         * @return estimated memory (heap and off-heap) per class name from last run of heap sampler,
+         * empty when sampler is not running
+         */
+        @Override
+        public Map<String, Long> getSampledHeapBytes() {
+            return sampledHeapBytes;
         }
 
-        return getIdMethodIfValidForSave(object.getClass());
+        /**
+         * @return number of times class grew past its memory budget
+         */
+        @Override
+        public long getHeapBudgetExceededCount() {
+            return heapBudgetExceededCount.sum();
+        }
     }
 
     /**
-     * Check does class is valid for save by ULDB.
-     *
-     * @param objectClass Class of object for validation
-     * @return method for getting id of object
+     * Histogram of durations. Values are kept in buckets with four sub-buckets per power of two,
+     * so reported percentiles are upper bounds with at most 25% error.
      */
-    private static Method getIdMethodIfValidForSave(Class<?> objectClass) {
+    public static final class LatencyHistogram {
+        private static final int BUCKETS = 248;
 
-        if (objectClass == null)
-            return null;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
 
-        boolean hasSetMethod = false;
-        boolean hasGetMethod = false;
-        Method getIdMethod = null;
+        /**
+         * Records one duration.
+         *
+         * @param nanos duration in nanoseconds
+         */
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
 
-        for (Method method : objectClass.getMethods()) {
-            if (method.getName().equals("getId")) {
-                if (method.getReturnType() != null && method.getReturnType() == long.class || method.getReturnType() == Long.class) {
-                    getIdMethod = method;
-                    hasGetMethod = true;
-                }
-            } else if (method.getName().equals("setId")) {
-                if (method.getParameterTypes() != null && method.getParameterTypes().length == 1
-                        && (method.getParameterTypes()[0] == Long.class || method.getParameterTypes()[0] == long.class)) {
-                    hasSetMethod = true;
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMeanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / (double) n / 1_000_000;
+        }
+
+        public double getP50Millis() {
+            return getPercentileMillis(50);
+        }
+
+        public double getP99Millis() {
+            return getPercentileMillis(99);
+        }
+
+        public double getP999Millis() {
+            return getPercentileMillis(99.9);
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1_000_000.0;
+        }
+
+        /**
+         * Returns duration that given percent of recorded values do not exceed.
+         *
+         * @param percentile percentile (0-100)
+         * @return duration in milliseconds
+         */
+        public double getPercentileMillis(double percentile) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && snapshot[i] > 0) {
+                    return Math.min(upperBound(i), maxNanos.get()) / 1_000_000.0;
                 }
             }
-            if (hasSetMethod && hasGetMethod) {
-                return getIdMethod;
+            return getMaxMillis();
+        }
+
+        private static int bucket(long nanos) {
+            if (nanos < 4) {
+                return (int) nanos;
             }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int subBucket = (int) ((nanos >>> (exponent - 2)) & 3);
+            return (exponent - 1) * 4 + subBucket;
         }
-        return null;
-    }
 
-    private static boolean haveMethod(Class<?> objectClass, String methodName) {
-        for (Method m : objectClass.getMethods()) {
-            if (m.getName().equals(methodName)) {
-                return true;
+        private static long upperBound(int bucket) {
+            if (bucket < 4) {
+                return bucket;
             }
+            int exponent = bucket / 4 + 1;
+            long lowerBound = (4L + bucket % 4) << (exponent - 2);
+            return lowerBound + (1L << (exponent - 2)) - 1;
         }
-        return false;
     }
 
     /**
-     * Gets id of object.
-     *
-     * @param obj checked object
-     * @return id of object
+     * Remembers values by text they were created from, up to valueDictionaryLimit values in total.
+     * Values are kept in two generations of half of limit: when recent generation is full it becomes previous
+     * one and previous one is dropped. Value found in previous generation is moved to recent one, so values
+     * that are used keep being remembered (approximation of least recently used eviction).
      */
-    private static long getId(Object obj) {
-        try {
-            Method idMethod = obj.getClass().getMethod("getId");
-            return (long) idMethod.invoke(obj);
-        } catch (Exception e) {
-            handleException(e);
+    private static final class ValueDictionary {
+        private volatile Generation recent = new Generation();
+        private volatile Generation previous = new Generation();
+
+        private Object get(Class<?> type, String text) {
+            Object known = recent.get(type, text);
+            if (known == null) {
+                known = previous.get(type, text);
+                if (known != null) {
+                    known = put(type, text, known);
+                }
+            }
+            return known;
         }
-        return 0;
-    }
 
-    /**
-     * Return setter method name of getter name.
-     */
-    private static String getSetter(String s) {
-        if (s.startsWith("get")) {
-            return "set" + s.substring(3);
+        /**
+         * Remembers value, when dictionary is full the least recently used values are forgotten.
+         *
+         * @return remembered value for text (the given one or one remembered before)
+         */
+        @SuppressWarnings("unchecked")
+        private <T> T put(Class<?> type, String text, T value) {
+            int generationLimit = valueDictionaryLimit / 2;
+            if (generationLimit <= 0) {
+                return value;
+            }
+            // equal text and value are kept as one instance
+            String key = text.equals(value) ? (String) value : text;
+            while (true) {
+                Generation generation = recent;
+                // place is reserved before value is added, so generation never has more values than its limit
+                if (generation.size.incrementAndGet() > generationLimit) {
+                    generation.size.decrementAndGet();
+                    rotate(generation);
+                    continue;
+                }
+                Object known = generation.values.computeIfAbsent(type, k -> new ConcurrentHashMap<>()).putIfAbsent(key, value);
+                if (known != null) {
+                    generation.size.decrementAndGet();
+                    return (T) known;
+                }
+                return value;
+            }
         }
-        if (s.startsWith("is")) {
-            return "set" + s.substring(2);
+
+        private synchronized void rotate(Generation full) {
+            if (recent == full) {
+                previous = full;
+                recent = new Generation();
+            }
         }
-        return null;
-    }
 
-    /**
-     * Saves data if unsaved action counter is have bigger value then actionLimitBeforeSaving (default 0).
-     * Negative value of actionLimitBeforeSaving will disable automatic save.
-     */
-    private static void saveDataIfNeeded() {
-        if (actionLimitBeforeSaving < 0) {
-            return;
+        private synchronized void clear() {
+            recent = new Generation();
+            previous = new Generation();
         }
 
-        actionsSinceLastSave++;
-        if (actionsSinceLastSave > actionLimitBeforeSaving) {
-            saveData();
+        private static final class Generation {
+            private final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Object>> values = new ConcurrentHashMap<>();
+            private final AtomicInteger size = new AtomicInteger();
+
+            private Object get(Class<?> type, String text) {
+                ConcurrentHashMap<String, Object> typeValues = values.get(type);
+                return typeValues == null ? null : typeValues.get(text);
+            }
         }
     }
 
     /**
-     * Exception handling method. Change this code or override this method to use custom made exception handling.
-     *
-     * @param e Exception
+     * Numbers and distributes changes. Events are created only when there is any subscription or cursor.
+     * Recent events are kept in ring buffer for cursors.
      */
-    private static void handleException(Exception e) {
-        e.printStackTrace();
+    static final class ChangeFeed {
+        private static final int BUFFER_SIZE = 65536;
+
+        private final List<Subscription<?>> subscriptions = new CopyOnWriteArrayList<>();
+        private final List<ChangeCursor> cursors = new CopyOnWriteArrayList<>();
+        final ChangeEvent<?>[] buffer = new ChangeEvent<?>[BUFFER_SIZE];
+        private long sequence;
+        private ExecutorService executor;
+        volatile ReplicationShipper replicationPrimary;
+
+        private boolean isActive() {
+            return !subscriptions.isEmpty() || !cursors.isEmpty() || replicationPrimary != null;
+        }
+
+        private void publish(ChangeEvent.Type type, String className, long id, Object object) {
+            if (!isActive()) {
+                return;
+            }
+            // numbering and distribution are done together, so every subscriber gets events in order
+            synchronized (buffer) {
+                ChangeEvent<Object> event = new ChangeEvent<>(++sequence, type, className, id, object);
+                if (!cursors.isEmpty()) {
+                    buffer[(int) (event.sequence % BUFFER_SIZE)] = event;
+                }
+                for (Subscription<?> subscription : subscriptions) {
+                    subscription.offer(event);
+                }
+                if (replicationPrimary != null) {
+                    replicationPrimary.append(event);
+                }
+            }
+        }
+
+        private ChangeCursor openCursor(String className) {
+            synchronized (buffer) {
+                ChangeCursor cursor = new ChangeCursor(className, sequence + 1);
+                cursors.add(cursor);
+                return cursor;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<ChangeEvent<Object>> read(ChangeCursor cursor, int maxEvents) {
+            List<ChangeEvent<Object>> events = new ArrayList<>();
+            synchronized (buffer) {
+                long oldest = Math.max(1, sequence - BUFFER_SIZE + 1);
+                if (cursor.next < oldest) {
+                    cursor.lostEvents += oldest - cursor.next;
+                    cursor.next = oldest;
+                }
+                while (cursor.next <= sequence && events.size() < maxEvents) {
+                    ChangeEvent<Object> event = (ChangeEvent<Object>) buffer[(int) (cursor.next % BUFFER_SIZE)];
+                    // buffer can keep old events from time when no cursor was open
+                    if (event == null || event.sequence != cursor.next++) {
+                        continue;
+                    }
+                    if (cursor.className == null || cursor.className.equals(event.className)) {
+                        events.add(event);
+                    }
+                }
+            }
+            return events;
+        }
+
+        private synchronized ExecutorService executor() {
+            if (executor == null) {
+                executor = Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "ULDB-changes");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return executor;
+        }
     }
 }
@@ -0,0 +1,49 @@
+package com.examples;
+
+import com.ULDB;
+import com.examples.model.Apple;
+
+public class ReplicationExample {
+
+    // Run "primary <directory>" in one JVM and "follower <directory>" in others.
+    public static void main(String[] args) throws InterruptedException {
+        String directory = args.length > 1 ? args[1] : "replication";
+        if (args.length > 0 && args[0].equals("follower")) {
+            runFollower(directory);
+        } else {
+            runPrimary(directory);
+        }
+    }
+
+    static void runPrimary(String directory) throws InterruptedException {
+        // Primary is normal database that also writes its changes to shared directory.
+        ULDB.setFilename("primary.txt");
+        ULDB.loadData();
+        ULDB.ReplicationPrimary primary = ULDB.startReplicationPrimary(directory);
+
+        for (int i = 0; ; i++) {
+            Apple apple = new Apple();
+            apple.setColor(i % 2 == 0 ? "Green" : "Red");
+            apple.setWeight(100 + i);
+            ULDB.saveOrUpdate(apple);
+
+            // New snapshot lets log be shorter and new followers start faster.
+            if (i % 100 == 99) {
+                primary.snapshot();
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    static void runFollower(String directory) throws InterruptedException {
+        // Follower loads snapshot and applies changes from primary, data can be read but not changed.
+        ULDB.ReplicationFollower follower = ULDB.startReplicationFollower(directory, 50);
+
+        while (true) {
+            System.out.println("Apples: " + ULDB.count(Apple.class)
+                    + ", applied: " + follower.getAppliedSequence()
+                    + ", lag: " + follower.getLag() + " (" + follower.getLagMillis() + " ms)");
+            Thread.sleep(1000);
+        }
+    }
+}
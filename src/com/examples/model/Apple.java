@@ -1,5 +1,8 @@
 package com.examples.model;
 
+import com.ULDB;
+
+@ULDB.Entity
 public class Apple {
 
     private long id;
@@ -1,7 +1,10 @@
 package com.examples.model;
 
+import com.ULDB;
+
 import java.math.BigDecimal;
 
+@ULDB.Entity
 public class ApplePackage {
 
     private long id;
@@ -1,8 +1,11 @@
 package com.examples.model;
 
+import com.ULDB;
+
 import java.util.ArrayList;
 import java.util.List;
 
+@ULDB.Entity
 public class Basket {
 
     private long id;
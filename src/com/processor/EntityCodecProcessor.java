@@ -0,0 +1,216 @@
+package com.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Generates ULDB.Codec implementation for each class marked with ULDB.Entity.
+ * Codec of class com.example.Apple is generated as com.example.AppleULDBCodec and is used by ULDB instead of reflection.
+ * Codec contains the same fields that ULDB saves with reflection: all fields with public getter and setter.
+ */
+@SupportedAnnotationTypes("com.ULDB.Entity")
+public class EntityCodecProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) {
+                    error(element, "ULDB.Entity can be used only on classes");
+                    continue;
+                }
+                try {
+                    generateCodec((TypeElement) element);
+                } catch (IOException e) {
+                    error(element, "Codec could not be generated: " + e.getMessage());
+                }
+            }
+        }
+        return true;
+    }
+
+    private void generateCodec(TypeElement type) throws IOException {
+        if (type.getModifiers().contains(Modifier.ABSTRACT) || !type.getModifiers().contains(Modifier.PUBLIC)) {
+            error(type, "ULDB.Entity class must be public and not abstract");
+            return;
+        }
+        if (!hasPublicConstructor(type)) {
+            error(type, "ULDB.Entity class must have public constructor without parameters");
+            return;
+        }
+
+        Map<String, ExecutableElement> getters = new TreeMap<>();
+        Map<String, ExecutableElement> setters = new HashMap<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            Set<Modifier> modifiers = method.getModifiers();
+            if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.STATIC)) {
+                continue;
+            }
+            String name = method.getSimpleName().toString();
+            if (method.getParameters().isEmpty() && method.getReturnType().getKind() != TypeKind.VOID) {
+                if (name.startsWith("get") && name.length() > 3) {
+                    getters.put(name.substring(3), method);
+                } else if (name.startsWith("is") && name.length() > 2) {
+                    getters.putIfAbsent(name.substring(2), method);
+                }
+            } else if (method.getParameters().size() == 1 && name.startsWith("set") && name.length() > 3) {
+                setters.put(name.substring(3), method);
+            }
+        }
+
+        ExecutableElement getId = getters.remove("Id");
+        ExecutableElement setId = setters.get("Id");
+        if (getId == null || setId == null || !isLong(getId.getReturnType()) || !isLong(setId.getParameters().get(0).asType())) {
+            error(type, "ULDB.Entity class must have 'long getId()' and 'setId(long)' methods");
+            return;
+        }
+
+        List<String> names = new ArrayList<>();
+        List<ExecutableElement> propertyGetters = new ArrayList<>();
+        List<TypeMirror> propertyTypes = new ArrayList<>();
+        for (Map.Entry<String, ExecutableElement> getter : getters.entrySet()) {
+            ExecutableElement setter = setters.get(getter.getKey());
+            if (setter == null) {
+                continue;
+            }
+            names.add(getter.getKey());
+            propertyGetters.add(getter.getValue());
+            propertyTypes.add(processingEnv.getTypeUtils().erasure(setter.getParameters().get(0).asType()));
+        }
+
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String codecName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1))
+                .replace('$', '_') + "ULDBCodec";
+        String typeName = type.getQualifiedName().toString();
+
+        StringBuilder code = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            code.append("package ").append(packageName).append(";\n\n");
+        }
+        code.append("/**\n * Generated by EntityCodecProcessor from ").append(type.getSimpleName()).append(". Do not edit.\n */\n");
+        code.append("public final class ").append(codecName).append(" implements com.ULDB.Codec<").append(typeName).append("> {\n\n");
+
+        code.append("    private static final String[] PROPERTY_NAMES = {");
+        for (int i = 0; i < names.size(); i++) {
+            code.append(i == 0 ? "" : ", ").append('"').append(names.get(i)).append('"');
+        }
+        code.append("};\n");
+        code.append("    private static final Class<?>[] PROPERTY_TYPES = {");
+        for (int i = 0; i < propertyTypes.size(); i++) {
+            code.append(i == 0 ? "" : ", ").append(propertyTypes.get(i)).append(".class");
+        }
+        code.append("};\n\n");
+
+        code.append("    @Override\n    public ").append(typeName).append(" newInstance() {\n");
+        code.append("        return new ").append(typeName).append("();\n    }\n\n");
+        code.append("    @Override\n    public long getId(").append(typeName).append(" object) {\n");
+        code.append("        return object.getId();\n    }\n\n");
+        code.append("    @Override\n    public void setId(").append(typeName).append(" object, long id) {\n");
+        code.append("        object.setId(id);\n    }\n\n");
+        code.append("    @Override\n    public String[] getPropertyNames() {\n");
+        code.append("        return PROPERTY_NAMES.clone();\n    }\n\n");
+        code.append("    @Override\n    public Class<?>[] getPropertyTypes() {\n");
+        code.append("        return PROPERTY_TYPES.clone();\n    }\n\n");
+
+        code.append("    @Override\n    public Object get(").append(typeName).append(" object, int property) {\n");
+        code.append("        switch (property) {\n");
+        for (int i = 0; i < names.size(); i++) {
+            code.append("            case ").append(i).append(":\n");
+            code.append("                return object.").append(propertyGetters.get(i).getSimpleName()).append("();\n");
+        }
+        code.append("            default:\n");
+        code.append("                throw new IllegalArgumentException(\"Unknown property: \" + property);\n");
+        code.append("        }\n    }\n\n");
+
+        appendPrimitiveGetter(code, typeName, "long", "getLong", names, propertyGetters, propertyTypes);
+        appendPrimitiveGetter(code, typeName, "double", "getDouble", names, propertyGetters, propertyTypes);
+
+        code.append("    @Override\n    @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+        code.append("    public void set(").append(typeName).append(" object, int property, Object value) {\n");
+        code.append("        switch (property) {\n");
+        for (int i = 0; i < names.size(); i++) {
+            code.append("            case ").append(i).append(":\n");
+            code.append("                object.set").append(names.get(i)).append("((").append(castType(propertyTypes.get(i))).append(") value);\n");
+            code.append("                break;\n");
+        }
+        code.append("            default:\n");
+        code.append("                throw new IllegalArgumentException(\"Unknown property: \" + property);\n");
+        code.append("        }\n    }\n}\n");
+
+        String qualifiedCodecName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+        try (Writer writer = processingEnv.getFiler().createSourceFile(qualifiedCodecName, type).openWriter()) {
+            writer.write(code.toString());
+        }
+    }
+
+    /**
+     * Generates getter of number properties that returns primitive value without boxing,
+     * other properties are read by default method of Codec.
+     */
+    private void appendPrimitiveGetter(StringBuilder code, String typeName, String resultType, String methodName,
+                                       List<String> names, List<ExecutableElement> getters, List<TypeMirror> types) {
+        StringBuilder cases = new StringBuilder();
+        for (int i = 0; i < names.size(); i++) {
+            TypeKind kind = types.get(i).getKind();
+            boolean integer = kind == TypeKind.INT || kind == TypeKind.LONG || kind == TypeKind.SHORT || kind == TypeKind.BYTE;
+            if (integer || resultType.equals("double") && (kind == TypeKind.FLOAT || kind == TypeKind.DOUBLE)) {
+                cases.append("            case ").append(i).append(":\n");
+                cases.append("                return object.").append(getters.get(i).getSimpleName()).append("();\n");
+            }
+        }
+        if (cases.length() == 0) {
+            return;
+        }
+        code.append("    @Override\n    public ").append(resultType).append(' ').append(methodName).append('(')
+                .append(typeName).append(" object, int property) {\n");
+        code.append("        switch (property) {\n");
+        code.append(cases);
+        code.append("            default:\n");
+        code.append("                return com.ULDB.Codec.super.").append(methodName).append("(object, property);\n");
+        code.append("        }\n    }\n\n");
+    }
+
+    private boolean hasPublicConstructor(TypeElement type) {
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isLong(TypeMirror type) {
+        return type.getKind() == TypeKind.LONG || type.toString().equals("java.lang.Long");
+    }
+
+    /**
+     * Primitive values are passed as wrappers, so cast is done to wrapper type.
+     */
+    private String castType(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+        }
+        return type.toString();
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
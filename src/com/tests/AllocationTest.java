@@ -0,0 +1,171 @@
+package com.tests;
+
+import com.ULDB;
+import com.examples.model.Apple;
+import com.examples.model.ApplePackage;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Checks bytes allocated by core operations against budgets, so allocations removed from hot paths
+ * do not come back unnoticed. Operations run in own fork join pool, so parallel work (saveData converts data
+ * in parallel streams) runs on its workers, and allocations of calling thread and of all workers are counted,
+ * including workers that ended during measurement.
+ * Budget can be changed with system property, eg. -Duldb.allocation.get=64.
+ */
+public class AllocationTest {
+
+    private static final int RECORDS = 20_000;
+    private static final int ROUNDS = 5;
+
+    private static final Set<Thread> workers = new HashSet<>();
+    private static long endedWorkersBytes;
+    private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+            MeasuredWorker::new, null, false);
+
+    /**
+     * Maximum bytes allocated per operation.
+     */
+    private static final Map<String, Long> BUDGETS = new LinkedHashMap<>();
+
+    static {
+        BUDGETS.put("get", 48L);
+        BUDGETS.put("saveOrUpdate", 2_048L);
+        BUDGETS.put("saveData", 512L);
+        BUDGETS.put("loadData", 5_120L);
+    }
+
+    public static void main(String... args) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            System.out.println("Allocation tests skipped, allocated memory of threads is not measured by this JVM");
+            return;
+        }
+        ((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+
+        ULDB.setFilename("tmp-allocation.txt");
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.deleteAllData();
+        ULDB.clearData();
+        for (int i = 0; i < RECORDS; i++) {
+            Apple apple = new Apple();
+            apple.setColor(i % 2 == 0 ? "red" : "green");
+            apple.setWeight(i);
+            ApplePackage applePackage = new ApplePackage();
+            applePackage.setApple(apple);
+            applePackage.setPrice(BigDecimal.valueOf(i, 2));
+            ULDB.saveOrUpdate(applePackage);
+        }
+
+        // ids are boxed in measured loops, as they are by callers passing long to get
+        Map<String, Long> results = new LinkedHashMap<>();
+        results.put("get", measure(RECORDS, () -> {
+            for (long id = 1; id <= RECORDS; id++) {
+                ULDB.get(Apple.class, id);
+            }
+        }));
+        results.put("saveOrUpdate", measure(RECORDS, () -> {
+            for (long id = 1; id <= RECORDS; id++) {
+                ULDB.saveOrUpdate(ULDB.get(ApplePackage.class, id));
+            }
+        }));
+        // one record is one apple or one package
+        results.put("saveData", measure(RECORDS * 2, ULDB::saveData));
+        results.put("loadData", measure(RECORDS * 2, () -> {
+            ULDB.clearData();
+            ULDB.loadData();
+        }));
+
+        pool.shutdown();
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.deleteAllData();
+        ULDB.clearData();
+
+        boolean passed = true;
+        for (Map.Entry<String, Long> result : results.entrySet()) {
+            long budget = Long.getLong("uldb.allocation." + result.getKey(), BUDGETS.get(result.getKey()));
+            boolean withinBudget = result.getValue() <= budget;
+            passed &= withinBudget;
+            System.out.printf("%-14s %8d B/op (budget %d B/op)%s%n", result.getKey(), result.getValue(), budget,
+                    withinBudget ? "" : " OVER BUDGET");
+        }
+        if (!passed) {
+            throw new AssertionError("Allocation budget exceeded");
+        }
+        System.out.println("All allocation tests passed");
+    }
+
+    /**
+     * Runs operation a few times to let JIT compile it, then returns the lowest bytes allocated per operation
+     * of next rounds (lowest is the least disturbed by background threads).
+     *
+     * @param operations number of operations done by one run
+     * @param run        run of operations
+     * @return bytes per operation
+     */
+    private static long measure(int operations, Runnable run) {
+        for (int i = 0; i < ROUNDS; i++) {
+            pool.submit(run).join();
+        }
+        long lowest = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long before = allocatedBytes();
+            pool.submit(run).join();
+            lowest = Math.min(lowest, (allocatedBytes() - before) / operations);
+        }
+        return lowest;
+    }
+
+    /**
+     * Returns bytes allocated so far by calling thread and by workers of pool, live and ended.
+     */
+    private static long allocatedBytes() {
+        synchronized (workers) {
+            long bytes = endedWorkersBytes + allocatedBytes(Thread.currentThread());
+            for (Thread worker : workers) {
+                bytes += allocatedBytes(worker);
+            }
+            return bytes;
+        }
+    }
+
+    private static long allocatedBytes(Thread thread) {
+        return Math.max(0, ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(thread.getId()));
+    }
+
+    /**
+     * Worker that adds bytes it allocated to ended workers when it ends.
+     */
+    private static final class MeasuredWorker extends ForkJoinWorkerThread {
+
+        private MeasuredWorker(ForkJoinPool pool) {
+            super(pool);
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            synchronized (workers) {
+                workers.add(this);
+            }
+        }
+
+        @Override
+        protected void onTermination(Throwable exception) {
+            synchronized (workers) {
+                endedWorkersBytes += allocatedBytes(this);
+                workers.remove(this);
+            }
+            super.onTermination(exception);
+        }
+    }
+}
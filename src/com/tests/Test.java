@@ -2,22 +2,82 @@ package com.tests;
 
 import com.ULDB;
 import com.examples.model.Apple;
+import com.examples.model.ApplePackage;
 import com.examples.model.Basket;
 import com.examples.model.Train;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class Test {
 
     public static void main(String... args) {
+        if (args.length == 2 && args[0].equals("replicationFollower")) {
+            System.exit(replicationFollower(args[1]) ? 0 : 1);
+        }
         simpleObjectTest();
         objectOfObjectTest();
         listTest();
         listInListTest();
+        sharedChildTest();
+        metricsTest();
+        codecTest();
+        columnsLayoutTest();
+        offHeapTest();
+        valueDictionaryTest();
+        aggregationTest();
+        parallelSaveTest();
+        changeFeedTest();
+        replicationTest();
+        schemaHeaderTest();
+        sectionIndexTest();
+        lsmEngineTest();
+        serverTest();
+        timeToLiveTest();
+        importExportTest();
+        referrersTest();
+        projectionTest();
+        backupTest();
+        asyncTest();
+        runIfCompiled("com.tests.FlightRecorderTest");
+        heapFootprintTest();
         System.out.println("All tests passed");
     }
 
+    /**
+     * Runs test compiled only by some JDKs (eg. Flight Recorder test, see profile in pom).
+     */
+    private static void runIfCompiled(String testClass) {
+        try {
+            Class.forName(testClass).getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+        } catch (ClassNotFoundException e) {
+            System.out.println(testClass + " skipped, it is not compiled by this JDK");
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e.getCause());
+        }
+    }
+
     private static void assertThat(boolean isValid) {
         if (!isValid) throw new AssertionError();
     }
@@ -42,6 +102,7 @@ public class Test {
         assertThat(newApple.getId() == 1);
         assertThat(newApple.getColor().equals("GREEN"));
         assertThat(newApple.getWeight() == 150);
+        assertThat(ULDB.get(Apple.class, null) == null);
 
         ULDB.deleteAllData();
     }
@@ -121,5 +182,1142 @@ public class Test {
 
         ULDB.deleteAllData();
     }
-}
 
+    private static void sharedChildTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.loadData();
+
+        Apple apple = new Apple();
+        apple.setColor("GREEN");
+
+        Basket basket = new Basket();
+        basket.getApples().add(apple);
+        basket.getApples().add(apple);
+
+        ApplePackage applePackage = new ApplePackage();
+        applePackage.setApple(apple);
+
+        ULDB.saveOrUpdate(basket);
+        ULDB.saveOrUpdate(applePackage);
+        ULDB.clearData();
+        ULDB.loadData();
+
+        assertThat(ULDB.getAll(Apple.class).size() == 1);
+        Basket newBasket = ULDB.get(Basket.class, 1L);
+        assertThat(newBasket.getApples().size() == 2);
+        assertThat(newBasket.getApples().get(1).getId() == 1);
+        assertThat(ULDB.get(ApplePackage.class, 1L).getApple().getId() == 1);
+
+        ULDB.deleteAllData();
+    }
+
+    private static void metricsTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.loadData();
+        ULDB.Metrics metrics = ULDB.getMetrics();
+        long saves = metrics.getSaveOrUpdateCount();
+        long flushes = metrics.getSaveDataLatency().getCount();
+
+        Basket basket = new Basket();
+        basket.getApples().add(new Apple());
+        basket.getApples().add(new Apple());
+        ULDB.saveOrUpdate(basket);
+        ULDB.get(Basket.class, 1L);
+
+        assertThat(metrics.getSaveOrUpdateCount() == saves + 1);
+        assertThat(metrics.getSaveDataLatency().getCount() == flushes + 1);
+        assertThat(metrics.getObjectCounts().get(Apple.class.getName()) == 2);
+        assertThat(metrics.getBytesWritten() > 0);
+        assertThat(metrics.getPendingActions() == 0);
+
+        ULDB.registerMetricsMBean();
+        ULDB.deleteAllData();
+    }
+
+    private static void codecTest() {
+        try {
+            Class.forName("com.examples.model.ApplePackageULDBCodec");
+        } catch (ClassNotFoundException e) {
+            throw new AssertionError("Codec was not generated");
+        }
+
+        ULDB.setFilename("tmp.txt");
+        ULDB.loadData();
+
+        Apple apple = new Apple();
+        apple.setColor("RED");
+        apple.setWeight(120);
+
+        ApplePackage applePackage = new ApplePackage();
+        applePackage.setApple(apple);
+        applePackage.setPrice(new BigDecimal("2.55"));
+
+        ULDB.saveOrUpdate(applePackage);
+        ULDB.clearData();
+        ULDB.loadData();
+
+        ApplePackage newPackage = ULDB.get(ApplePackage.class, 1L);
+        assertThat(newPackage.getPrice().compareTo(new BigDecimal("2.55")) == 0);
+        assertThat(newPackage.getApple().getId() == 1);
+        assertThat(ULDB.loadObject(newPackage.getApple()).getWeight() == 120);
+        ULDB.deleteAllData();
+
+        // class without codec is read by reflection the same way: getX is used when isX exists too,
+        // Boolean saved as other value than 0 or 1 is loaded as null
+        Harvest harvest = new Harvest();
+        harvest.setRipe(false);
+        ULDB.saveOrUpdate(harvest);
+        try {
+            List<String> lines = Files.readAllLines(Paths.get("tmp.txt"), StandardCharsets.UTF_8);
+            assertThat(lines.contains("!Id:long;Ripe:java.lang.Boolean") && lines.contains("1;0"));
+            String legacy = "#com.tests.Test$Harvest:1\n"
+                    + "com.tests.Test$Harvest;Id:1;Ripe:yes\n";
+            Files.write(Paths.get("tmp.txt"), legacy.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        ULDB.clearData();
+        ULDB.loadData();
+        assertThat(ULDB.get(Harvest.class, 1L).getRipe() == null);
+
+        ULDB.deleteAllData();
+    }
+
+    private static void columnsLayoutTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.setLayout(ULDB.Layout.COLUMNS);
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.loadData();
+
+        for (int i = 0; i < 10; i++) {
+            Basket basket = new Basket();
+            Apple apple = new Apple();
+            apple.setColor(i % 3 == 0 ? null : (i % 2 == 0 ? "GREEN" : "RED;"));
+            apple.setWeight(100 + i);
+            basket.getApples().add(apple);
+            basket.getCollectors().add("Adam " + i);
+            ULDB.saveOrUpdate(basket);
+        }
+        ULDB.saveData();
+        ULDB.clearData();
+        ULDB.setLayout(ULDB.Layout.ROWS);
+        ULDB.loadData();
+
+        assertThat(ULDB.getAll(Basket.class).size() == 10);
+        Apple apple = ULDB.get(Apple.class, 6L);
+        assertThat(apple.getColor().equals("RED;"));
+        assertThat(apple.getWeight() == 105);
+        assertThat(ULDB.get(Apple.class, 4L).getColor() == null);
+        Basket basket = ULDB.get(Basket.class, 10L);
+        assertThat(basket.getApples().get(0).getId() == 10);
+        assertThat(basket.getCollectors().get(0).equals("Adam 9"));
+
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.deleteAllData();
+    }
+
+    private static void offHeapTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.setStorageMode(ULDB.StorageMode.OFF_HEAP);
+        ULDB.loadData();
+
+        for (int i = 0; i < 100; i++) {
+            Basket basket = new Basket();
+            Apple apple = new Apple();
+            apple.setColor("GREEN");
+            apple.setWeight(i);
+            basket.getApples().add(apple);
+            ULDB.saveOrUpdate(basket);
+        }
+        assertThat(ULDB.getMetrics().getOffHeapBytes() > 0);
+
+        Apple apple = ULDB.get(Apple.class, 50L);
+        assertThat(apple.getWeight() == 49);
+        assertThat(ULDB.get(Basket.class, 50L).getApples().get(0).getId() == 50);
+        apple.setColor("GREEN AND A LITTLE BIT RED, LONGER THAN BEFORE");
+        ULDB.saveOrUpdate(apple);
+        assertThat(ULDB.get(Apple.class, 50L).getColor().startsWith("GREEN AND"));
+        assertThat(ULDB.delete(ULDB.get(Apple.class, 10L)));
+        assertThat(ULDB.get(Apple.class, 10L) == null);
+
+        ULDB.clearData();
+        ULDB.loadData();
+        assertThat(ULDB.getAll(Apple.class).size() == 99);
+        assertThat(ULDB.get(Apple.class, 50L).getColor().startsWith("GREEN AND"));
+
+        ULDB.setStorageMode(ULDB.StorageMode.HEAP);
+        ULDB.deleteAllData();
+    }
+
+    private static void valueDictionaryTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.loadData();
+
+        for (int i = 0; i < 3; i++) {
+            Apple apple = new Apple();
+            apple.setColor("GREEN: " + (i < 2 ? "light" : "dark"));
+            ULDB.saveOrUpdate(apple);
+        }
+        ULDB.clearData();
+        ULDB.loadData();
+
+        assertThat(ULDB.get(Apple.class, 1L).getColor().equals("GREEN: light"));
+        assertThat(ULDB.get(Apple.class, 1L).getColor() == ULDB.get(Apple.class, 2L).getColor());
+        assertThat(ULDB.get(Apple.class, 3L).getColor().equals("GREEN: dark"));
+        ULDB.deleteAllData();
+
+        // full dictionary forgets old values and keeps remembering new ones
+        ULDB.setValueDictionaryLimit(4);
+        for (int i = 0; i < 12; i++) {
+            Apple apple = new Apple();
+            apple.setColor(i < 10 ? "color " + i : "RED: late");
+            ULDB.saveOrUpdate(apple);
+        }
+        ULDB.clearData();
+        ULDB.loadData();
+        assertThat(ULDB.get(Apple.class, 11L).getColor() == ULDB.get(Apple.class, 12L).getColor());
+        assertThat(ULDB.get(Apple.class, 1L).getColor().equals("color 0"));
+
+        ULDB.setValueDictionaryLimit(100_000);
+        ULDB.deleteAllData();
+    }
+
+    private static void aggregationTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.loadData();
+
+        for (int i = 1; i <= 3000; i++) {
+            Apple apple = new Apple();
+            apple.setColor(i % 3 == 0 ? "RED" : "GREEN");
+            apple.setWeight(i);
+            ApplePackage applePackage = new ApplePackage();
+            applePackage.setApple(apple);
+            applePackage.setPrice(i % 2 == 0 ? new BigDecimal("1.25") : null);
+            ULDB.saveOrUpdate(applePackage);
+        }
+
+        assertThat(ULDB.count(Apple.class) == 3000);
+        assertThat(ULDB.exists(Apple.class, 3000L));
+        assertThat(!ULDB.exists(Apple.class, 3001L));
+        ULDB.Aggregation<Apple> apples = ULDB.aggregate(Apple.class);
+        assertThat(apples.count() == 3000);
+        assertThat(apples.sum("weight").longValue() == 3000L * 3001 / 2);
+        assertThat(apples.avg("Weight").compareTo(new BigDecimal("1500.5")) == 0);
+        assertThat((Integer) apples.min("weight") == 1);
+        assertThat((Integer) apples.max("weight") == 3000);
+        assertThat(apples.max("color").equals("RED"));
+        Map<Object, Long> colors = apples.groupBy("color");
+        assertThat(colors.get("RED") == 1000 && colors.get("GREEN") == 2000);
+        assertThat(ULDB.aggregate(ApplePackage.class).sum("price").compareTo(new BigDecimal("1875.00")) == 0);
+        assertThat(ULDB.aggregate(ApplePackage.class).groupBy("price").get(null) == 1500);
+
+        // expired object is not aggregated before reaper deletes it
+        assertThat(ULDB.expireAfter(ULDB.get(Apple.class, 3000L), 1));
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        assertThat(apples.sum("weight").longValue() == 2999L * 3000 / 2 && (Integer) apples.max("weight") == 2999);
+        assertThat(apples.avg("weight").compareTo(new BigDecimal("1500")) == 0);
+        assertThat(apples.groupBy("color").get("RED") == 999);
+
+        // sum that does not fit in long is exact
+        try {
+            String data = "#com.examples.model.Apple:" + Long.MAX_VALUE + "\n"
+                    + "com.examples.model.Apple;Id:" + Long.MAX_VALUE + ";Weight:1\n"
+                    + "com.examples.model.Apple;Id:" + (Long.MAX_VALUE - 1) + ";Weight:2\n";
+            Files.write(Paths.get("tmp.txt"), data.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        ULDB.clearData();
+        ULDB.loadData();
+        BigDecimal maxId = BigDecimal.valueOf(Long.MAX_VALUE);
+        assertThat(ULDB.aggregate(Apple.class).sum("id").equals(maxId.add(maxId).subtract(BigDecimal.ONE)));
+
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.deleteAllData();
+    }
+
+    private static void parallelSaveTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.loadData();
+
+        for (int i = 1; i <= 20000; i++) {
+            Basket basket = new Basket();
+            basket.getCollectors().add("Collector " + i);
+            ULDB.saveOrUpdate(basket);
+        }
+        ULDB.saveData();
+        ULDB.clearData();
+        ULDB.loadData();
+
+        assertThat(ULDB.count(Basket.class) == 20000);
+        for (long id = 1; id <= 20000; id += 997) {
+            assertThat(ULDB.get(Basket.class, id).getCollectors().get(0).equals("Collector " + id));
+        }
+
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.deleteAllData();
+    }
+
+    private static void changeFeedTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.loadData();
+
+        BlockingQueue<ULDB.ChangeEvent<Apple>> received = new LinkedBlockingQueue<>();
+        ULDB.Subscription<Apple> subscription = ULDB.subscribe(Apple.class, received::addAll);
+        ULDB.ChangeCursor cursor = ULDB.openChangeCursor(null);
+
+        Apple apple = new Apple();
+        ULDB.saveOrUpdate(apple);
+        apple.setColor("RED");
+        ULDB.saveOrUpdate(apple);
+        ULDB.saveOrUpdate(new Basket());
+        ULDB.delete(apple);
+
+        List<ULDB.ChangeEvent<Apple>> events = new ArrayList<>();
+        try {
+            while (events.size() < 3) {
+                ULDB.ChangeEvent<Apple> event = received.poll(5, TimeUnit.SECONDS);
+                assertThat(event != null);
+                events.add(event);
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        assertThat(events.get(0).getType() == ULDB.ChangeEvent.Type.INSERT);
+        assertThat(events.get(1).getType() == ULDB.ChangeEvent.Type.UPDATE);
+        assertThat(events.get(1).getObject().getColor().equals("RED"));
+        assertThat(events.get(2).getType() == ULDB.ChangeEvent.Type.DELETE);
+        assertThat(events.get(0).getSequence() < events.get(1).getSequence());
+
+        List<ULDB.ChangeEvent<Object>> allEvents = cursor.poll(10);
+        assertThat(allEvents.size() == 4);
+        assertThat(allEvents.get(2).getClassName().equals(Basket.class.getName()));
+        assertThat(cursor.poll(10).isEmpty());
+
+        for (int i = 0; i < 70000; i++) {
+            ULDB.saveOrUpdate(new Basket());
+        }
+        assertThat(cursor.poll(100000).size() == 65536);
+        assertThat(cursor.getLostEvents() == 70000 - 65536);
+
+        subscription.close();
+        cursor.close();
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.deleteAllData();
+    }
+
+    private static void replicationTest() {
+        File directory = new File("replication");
+        deleteDirectory(directory);
+        ULDB.setFilename("tmp.txt");
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.loadData();
+
+        List<Apple> apples = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Apple apple = new Apple();
+            apple.setColor("GREEN");
+            ULDB.saveOrUpdate(apple);
+            apples.add(apple);
+        }
+        // deleted by reaper of primary while follower runs, follower does not count its expiry twice
+        Apple expiring = new Apple();
+        ULDB.saveOrUpdate(expiring);
+        assertThat(ULDB.expireAfter(expiring, 1000));
+        // expiry in snapshot is cleared by primary after follower started
+        assertThat(ULDB.expireAfter(apples.get(3), 600_000));
+        long expiredCount = ULDB.getMetrics().getExpiredCount();
+        ULDB.ReplicationPrimary primary = ULDB.startReplicationPrimary(directory.getPath());
+        assertThat(primary != null);
+        assertThat(ULDB.startReplicationPrimary(directory.getPath()) == null);
+
+        try {
+            // follower runs in another JVM, it has its own database
+            Process follower = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                    "-cp", System.getProperty("java.class.path"), Test.class.getName(),
+                    "replicationFollower", directory.getPath())
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File("replication-follower.log"))
+                    .start();
+            File ready = new File(directory, "ready");
+            for (int i = 0; i < 200 && !ready.exists(); i++) {
+                Thread.sleep(50);
+            }
+            assertThat(ready.exists());
+
+            for (int i = 0; i < 5; i++) {
+                ULDB.saveOrUpdate(new Apple());
+            }
+            assertThat(ULDB.expireAfter(apples.get(2), 600_000) && ULDB.expireAfter(apples.get(3), 0));
+            primary.snapshot();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (ULDB.getMetrics().getExpiredCount() == expiredCount && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            ULDB.delete(apples.get(0));
+            apples.get(1).setColor("RED");
+            ULDB.saveOrUpdate(apples.get(1));
+
+            assertThat(follower.waitFor(30, TimeUnit.SECONDS));
+            assertThat(follower.exitValue() == 0);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        assertThat(primary.getLastSequence() == 11);
+
+        primary.close();
+        deleteDirectory(directory);
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.deleteAllData();
+    }
+
+    private static boolean replicationFollower(String directory) {
+        // replicated objects do not get expiry of follower
+        ULDB.setTimeToLive(Apple.class, 60_000);
+        ULDB.ReplicationFollower follower = ULDB.startReplicationFollower(directory, 10);
+        if (follower == null || ULDB.count(Apple.class) < 100) {
+            return false;
+        }
+        try {
+            new File(directory, "ready").createNewFile();
+            for (int i = 0; i < 500; i++) {
+                Apple changed = ULDB.get(Apple.class, 2L);
+                if (ULDB.count(Apple.class) == 104 && !ULDB.exists(Apple.class, 1) && changed.getColor().equals("RED")
+                        && ULDB.getAll(Apple.class).size() == 104 && ULDB.getExpiryTime(Apple.class, 3L) > 0
+                        && ULDB.getExpiryTime(Apple.class, 4L) == 0 && ULDB.exists(Apple.class, 4)
+                        && ULDB.getExpiryTime(Apple.class, 2L) == 0 && ULDB.getExpiryTime(Apple.class, 106L) == 0) {
+                    // changes are rejected while instance is follower
+                    return ULDB.saveOrUpdate(new Apple()) == -1 && follower.getLag() == 0;
+                }
+                Thread.sleep(50);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static void schemaHeaderTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.loadData();
+
+        Apple apple = new Apple();
+        apple.setColor("GREEN");
+        apple.setWeight(150);
+        ULDB.saveOrUpdate(apple);
+
+        try {
+            List<String> lines = Files.readAllLines(Paths.get("tmp.txt"), StandardCharsets.UTF_8);
+            assertThat(lines.get(1).equals("!Id:long;Color:java.lang.String;Weight:int"));
+            assertThat(lines.get(2).equals("1;GREEN;150"));
+
+            // file saved by older version has property names in every line
+            String legacy = "#com.examples.model.Apple:2\n"
+                    + "com.examples.model.Apple;Id:1;Color:RED;Weight:120\n"
+                    + "com.examples.model.Apple;Id:2;Weight:130\n";
+            Files.write(Paths.get("tmp.txt"), legacy.getBytes(StandardCharsets.UTF_8));
+            ULDB.clearData();
+            ULDB.loadData();
+            assertThat(ULDB.get(Apple.class, 1L).getColor().equals("RED"));
+            assertThat(ULDB.get(Apple.class, 2L).getWeight() == 130);
+            assertThat(ULDB.get(Apple.class, 2L).getColor() == null);
+
+            // property removed from class (Shape) is skipped, property missing in header (Color) stays empty
+            String changed = "#com.examples.model.Apple:2\n"
+                    + "!Id:long;Shape:java.lang.String;Weight:int\n"
+                    + "1;ROUND;120\n"
+                    + "2;#;#\n";
+            Files.write(Paths.get("tmp.txt"), changed.getBytes(StandardCharsets.UTF_8));
+            ULDB.clearData();
+            ULDB.loadData();
+            assertThat(ULDB.count(Apple.class) == 2);
+            assertThat(ULDB.get(Apple.class, 1L).getWeight() == 120);
+            assertThat(ULDB.get(Apple.class, 1L).getColor() == null);
+            assertThat(ULDB.get(Apple.class, 2L).getWeight() == 0);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        ULDB.deleteAllData();
+    }
+
+    private static void sectionIndexTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.loadData();
+
+        for (int i = 0; i < 3; i++) {
+            ULDB.saveOrUpdate(new Apple());
+        }
+        ULDB.saveOrUpdate(new Basket());
+        ULDB.saveData();
+        assertThat(new File("tmp.txt.idx").exists());
+
+        ULDB.clearData();
+        ULDB.loadData(Apple.class);
+        assertThat(ULDB.count(Apple.class) == 3);
+        assertThat(!ULDB.getMetrics().getObjectCounts().containsKey(Basket.class.getName()));
+
+        // classes are loaded on first access
+        ULDB.clearData();
+        ULDB.setLazyLoading(true);
+        ULDB.loadData();
+        assertThat(ULDB.getMetrics().getObjectCounts().isEmpty());
+        assertThat(ULDB.get(Apple.class, 2L) != null);
+        assertThat(ULDB.getMetrics().getObjectCounts().size() == 1);
+        assertThat(ULDB.saveOrUpdate(new Basket()) == 2);
+        ULDB.delete(ULDB.get(Apple.class, 1L));
+        ULDB.setLayout(ULDB.Layout.COLUMNS);
+        ULDB.saveData();
+
+        ULDB.clearData();
+        ULDB.loadData();
+        assertThat(ULDB.count(Basket.class) == 2);
+        assertThat(ULDB.count(Apple.class) == 2);
+
+        // file changed after index was saved, whole file is read
+        try {
+            Files.write(Paths.get("tmp.txt"), "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        ULDB.clearData();
+        ULDB.loadData(Basket.class);
+        assertThat(ULDB.count(Basket.class) == 2);
+        assertThat(!ULDB.getMetrics().getObjectCounts().containsKey(Apple.class.getName()));
+
+        ULDB.setLazyLoading(false);
+        ULDB.setLayout(ULDB.Layout.ROWS);
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.deleteAllData();
+        assertThat(!new File("tmp.txt.idx").exists());
+    }
+
+    private static void lsmEngineTest() {
+        File directory = new File("tmp-lsm");
+        deleteDirectory(directory);
+        ULDB.LsmEngine engine = new ULDB.LsmEngine(directory.getPath());
+        // every save writes new segment
+        engine.setMemtableLimit(1);
+        ULDB.setStorageEngine(engine);
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.loadData();
+
+        for (int i = 1; i <= 10; i++) {
+            Apple apple = new Apple();
+            apple.setWeight(i);
+            ULDB.saveOrUpdate(apple);
+            ULDB.saveData();
+        }
+        Apple apple = ULDB.get(Apple.class, 1L);
+        apple.setWeight(100);
+        ULDB.saveOrUpdate(apple);
+        ULDB.delete(ULDB.get(Apple.class, 2L));
+        ULDB.saveOrUpdate(new Basket());
+        ULDB.saveData();
+
+        // level 0 segments are merged into level 1
+        engine.awaitCompaction();
+        List<Integer> segmentCounts = engine.getSegmentCounts();
+        assertThat(segmentCounts.get(0) < 4 && segmentCounts.size() > 1);
+        try {
+            assertThat(engine.get(Apple.class.getName(), 2) == null);
+            assertThat(engine.get(Apple.class.getName(), 3) != null);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        ULDB.clearData();
+        ULDB.loadData();
+        assertThat(ULDB.count(Apple.class) == 9);
+        assertThat(ULDB.get(Apple.class, 1L).getWeight() == 100);
+        assertThat(ULDB.get(Apple.class, 2L) == null);
+        assertThat(ULDB.saveOrUpdate(new Apple()) == 11);
+
+        ULDB.clearData();
+        ULDB.loadData(Basket.class);
+        assertThat(ULDB.count(Basket.class) == 1);
+        assertThat(!ULDB.getMetrics().getObjectCounts().containsKey(Apple.class.getName()));
+
+        // unflushed changes are read back from log by new engine
+        engine.setMemtableLimit(Long.MAX_VALUE);
+        ULDB.saveOrUpdate(new Basket());
+        ULDB.saveData();
+        ULDB.clearData();
+        ULDB.setStorageEngine(new ULDB.LsmEngine(directory.getPath()));
+        ULDB.loadData();
+        assertThat(ULDB.count(Basket.class) == 2);
+        assertThat(ULDB.count(Apple.class) == 9);
+
+        ULDB.clearData();
+        ULDB.setStorageEngine(new ULDB.TextFileEngine());
+        ULDB.setActionLimitBeforeSaving(0);
+        deleteDirectory(directory);
+    }
+
+    private static void serverTest() {
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.Server server = ULDB.startServer(0);
+        assertThat(server != null);
+        ULDB.Client client = ULDB.connect(server.getPort());
+        assertThat(client != null);
+
+        // new children are saved with their parent and get ids from server
+        Basket basket = new Basket();
+        Apple apple = new Apple();
+        apple.setColor("red");
+        apple.setWeight(5);
+        basket.getApples().add(apple);
+        basket.getApples().add(new Apple());
+        long basketId = client.saveOrUpdate(basket);
+        assertThat(basketId > 0 && apple.getId() > 0);
+        Basket stored = ULDB.get(Basket.class, basketId);
+        assertThat(stored.getApples().size() == 2);
+        assertThat(stored.getApples().get(0) == ULDB.get(Apple.class, apple.getId()));
+
+        Apple copy = client.get(Apple.class, apple.getId());
+        assertThat(copy != ULDB.get(Apple.class, apple.getId()));
+        assertThat("red".equals(copy.getColor()) && copy.getWeight() == 5);
+        assertThat(client.get(Apple.class, 1000L) == null);
+
+        // requests of many threads are pipelined over one connection
+        int count = ULDB.count(Apple.class);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 50; j++) {
+                    assertThat(client.saveOrUpdate(new Apple()) > 0);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+        assertThat(ULDB.count(Apple.class) == count + 200);
+        List<Long> ids = new ArrayList<>();
+        for (Apple storedApple : ULDB.getAll(Apple.class)) {
+            ids.add(storedApple.getId());
+        }
+        List<Apple> apples = client.get(Apple.class, ids);
+        assertThat(apples.size() == ids.size() && !apples.contains(null));
+        assertThat(client.getAll(Apple.class).size() == ids.size());
+
+        long[] batch = client.saveOrUpdateAll(Arrays.asList(new Apple(), new Apple(), "not valid"));
+        assertThat(batch[0] > 0 && batch[1] == batch[0] + 1 && batch[2] == -1);
+
+        assertThat(client.delete(copy));
+        assertThat(ULDB.get(Apple.class, apple.getId()) == null);
+        assertThat(!client.delete(copy));
+        client.close();
+        serverBackpressureTest(server);
+        server.close();
+
+        String javaVersion = System.getProperty("java.specification.version");
+        if (!javaVersion.startsWith("1.") && Integer.parseInt(javaVersion) >= 16) {
+            ULDB.Server unixServer = ULDB.startServer("tmp-uldb.sock");
+            assertThat(unixServer != null);
+            ULDB.Client unixClient = ULDB.connect("tmp-uldb.sock");
+            assertThat(unixClient.get(Basket.class, basketId).getApples().size() == 2);
+            unixClient.close();
+            unixServer.close();
+            assertThat(!new File("tmp-uldb.sock").exists());
+        }
+
+        ULDB.clearData();
+        ULDB.setActionLimitBeforeSaving(0);
+    }
+
+    /**
+     * Client that sends requests without reading responses stops being read by server, requests are executed
+     * when it reads responses.
+     */
+    private static void serverBackpressureTest(ULDB.Server server) {
+        for (int i = 0; i < 2000; i++) {
+            ULDB.saveOrUpdate(new Apple());
+        }
+        int requests = 400;
+        byte[] className = Apple.class.getName().getBytes(StandardCharsets.UTF_8);
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            long executed = server.getRequestCount();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            for (int i = 0; i < requests; i++) {
+                // GET_ALL request: length, request id, operation, class name
+                out.writeInt(4 + 1 + 4 + className.length);
+                out.writeInt(i);
+                out.writeByte(2);
+                out.writeInt(className.length);
+                out.write(className);
+            }
+            out.flush();
+            long previous = -1;
+            while (server.getRequestCount() != previous) {
+                previous = server.getRequestCount();
+                Thread.sleep(200);
+            }
+            assertThat(previous - executed < requests);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            for (int i = 0; i < requests; i++) {
+                byte[] response = new byte[in.readInt()];
+                in.readFully(response);
+                assertThat(ByteBuffer.wrap(response).getInt() == i);
+            }
+            assertThat(server.getRequestCount() - executed == requests);
+        } catch (IOException | InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void timeToLiveTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.loadData();
+
+        ULDB.setTimeToLive(Apple.class, 300);
+        long[] ids = new long[3];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = ULDB.saveOrUpdate(new Apple());
+        }
+        long basketId = ULDB.saveOrUpdate(new Basket());
+        assertThat(ULDB.expireAfter(ULDB.get(Apple.class, ids[0]), 60_000));
+        long expiryTime = ULDB.getExpiryTime(Apple.class, ids[0]);
+        assertThat(expiryTime > System.currentTimeMillis() + 30_000);
+        assertThat(ULDB.getExpiryTime(Apple.class, ids[1]) > 0);
+        assertThat(ULDB.getExpiryTime(Basket.class, basketId) == 0);
+
+        // expiry times are saved with data
+        ULDB.saveData();
+        ULDB.clearData();
+        ULDB.loadData();
+        assertThat(ULDB.getExpiryTime(Apple.class, ids[0]) == expiryTime);
+        assertThat(ULDB.count(Apple.class) == 3);
+
+        // expired objects are hidden at once and deleted by reaper
+        long expiredCount = ULDB.getMetrics().getExpiredCount();
+        try {
+            Thread.sleep(400);
+            assertThat(ULDB.get(Apple.class, ids[1]) == null);
+            assertThat(!ULDB.exists(Apple.class, ids[2]));
+            assertThat(ULDB.getAll(Apple.class).size() == 1);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (ULDB.getMetrics().getExpiredCount() < expiredCount + 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        assertThat(ULDB.getMetrics().getExpiredCount() == expiredCount + 2);
+        assertThat(ULDB.count(Apple.class) == 1);
+        assertThat(ULDB.getMetrics().getObjectCounts().get(Apple.class.getName()) == 1);
+        assertThat(ULDB.getExpiryTime(Apple.class, ids[1]) == 0);
+        assertThat(ULDB.count(Basket.class) == 1);
+
+        assertThat(ULDB.expireAfter(ULDB.get(Apple.class, ids[0]), 0));
+        assertThat(ULDB.getExpiryTime(Apple.class, ids[0]) == 0);
+
+        // expiry of object that is not stored does not change count
+        try {
+            String data = "#com.examples.model.Apple:1\n"
+                    + "com.examples.model.Apple;Id:1;Weight:1\n"
+                    + "#com.ULDB$Expiry:2\n"
+                    + "com.ULDB$Expiry;Id:1;ClassName:com.examples.model.Apple;ObjectId:1;ExpiresAt:" + Long.MAX_VALUE + "\n"
+                    + "com.ULDB$Expiry;Id:2;ClassName:com.examples.model.Apple;ObjectId:2;ExpiresAt:1\n";
+            Files.write(Paths.get("tmp.txt"), data.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        ULDB.clearData();
+        ULDB.loadData();
+        assertThat(ULDB.getExpiryTime(Apple.class, 1L) == Long.MAX_VALUE && ULDB.count(Apple.class) == 1);
+
+        ULDB.setTimeToLive(Apple.class, 0);
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.deleteAllData();
+        ULDB.clearData();
+    }
+
+    private static void importExportTest() {
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.clearData();
+        Apple special = new Apple();
+        special.setColor("red, \"dark\"\nline;#:\u00e9");
+        special.setWeight(7);
+        ULDB.saveOrUpdate(special);
+        ULDB.saveOrUpdate(new Apple());
+        Apple empty = new Apple();
+        empty.setColor("");
+        ULDB.saveOrUpdate(empty);
+        // more objects than one part converted at once
+        for (int i = 0; i < 10000; i++) {
+            Apple apple = new Apple();
+            apple.setWeight(i);
+            ULDB.saveOrUpdate(apple);
+        }
+        Basket basket = new Basket();
+        basket.getApples().add(special);
+        basket.getCollectors().add("Ann");
+        ULDB.saveOrUpdate(basket);
+
+        for (ULDB.DataFormat format : ULDB.DataFormat.values()) {
+            ByteArrayOutputStream apples = new ByteArrayOutputStream();
+            ByteArrayOutputStream baskets = new ByteArrayOutputStream();
+            assertThat(ULDB.exportTo(Apple.class, apples, format) == 10003);
+            assertThat(ULDB.exportTo(Basket.class, baskets, format) == 1);
+
+            ULDB.clearData();
+            assertThat(ULDB.importFrom(Apple.class, new ByteArrayInputStream(apples.toByteArray()), format) == 10003);
+            assertThat(ULDB.importFrom(Basket.class, new ByteArrayInputStream(baskets.toByteArray()), format) == 1);
+            Apple imported = ULDB.get(Apple.class, special.getId());
+            assertThat(imported.getColor().equals(special.getColor()) && imported.getWeight() == 7);
+            assertThat(ULDB.get(Apple.class, 2L).getColor() == null);
+            assertThat("".equals(ULDB.get(Apple.class, 3L).getColor()));
+            assertThat(ULDB.get(Apple.class, 10003L).getWeight() == 9999);
+            Basket importedBasket = ULDB.get(Basket.class, basket.getId());
+            assertThat(importedBasket.getApples().get(0).getId() == special.getId());
+            assertThat(importedBasket.getCollectors().get(0).equals("Ann"));
+        }
+
+        // objects without id get new ids
+        byte[] line = "{\"Color\": \"green\", \"Weight\": 3}\n".getBytes(StandardCharsets.UTF_8);
+        assertThat(ULDB.importFrom(Apple.class, new ByteArrayInputStream(line), ULDB.DataFormat.JSON_LINES) == 1);
+        assertThat(ULDB.count(Apple.class) == 10004);
+        assertThat(ULDB.get(Apple.class, 10004L).getColor().equals("green"));
+
+        // booleans are true, 1, false or 0, empty Boolean is null and line with other value is rejected
+        String harvests = "Id,Ripe\n1,0\n2,\n3,yes\n4,true\n";
+        assertThat(ULDB.importFrom(Harvest.class, new ByteArrayInputStream(harvests.getBytes(StandardCharsets.UTF_8)),
+                ULDB.DataFormat.CSV) == 3);
+        assertThat(!ULDB.get(Harvest.class, 1L).getRipe() && ULDB.get(Harvest.class, 2L).getRipe() == null);
+        assertThat(!ULDB.exists(Harvest.class, 3L) && ULDB.get(Harvest.class, 4L).getRipe());
+
+        ULDB.clearData();
+        ULDB.setActionLimitBeforeSaving(0);
+    }
+
+    private static void referrersTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.loadData();
+
+        Apple first = new Apple();
+        Apple second = new Apple();
+        Basket basket = new Basket();
+        basket.getApples().add(first);
+        basket.getApples().add(second);
+        ULDB.saveOrUpdate(basket);
+        Basket otherBasket = new Basket();
+        otherBasket.getApples().add(first);
+        ULDB.saveOrUpdate(otherBasket);
+        ApplePackage applePackage = new ApplePackage();
+        applePackage.setApple(first);
+        ULDB.saveOrUpdate(applePackage);
+
+        List<ULDB.Reference> references = ULDB.findReferrers(first);
+        assertThat(references.size() == 3);
+        assertThat(references.get(0).getOwnerClass().equals(ApplePackage.class.getName()));
+        assertThat(references.get(1).getOwnerId() == basket.getId() && references.get(1).getProperty().equals("Apples"));
+        assertThat(ULDB.findReferrers(Apple.class, first.getId(), Basket.class).size() == 2);
+        assertThat(ULDB.findReferrers(Apple.class, first.getId(), ApplePackage.class).get(0) == applePackage);
+
+        // changed and deleted owners do not refer any more
+        basket.getApples().remove(first);
+        ULDB.saveOrUpdate(basket);
+        ULDB.delete(otherBasket);
+        assertThat(ULDB.findReferrers(Apple.class, first.getId(), Basket.class).isEmpty());
+
+        // references to deleted object are kept until owner is changed
+        ULDB.delete(second);
+        assertThat(ULDB.findReferrers(second).size() == 1);
+
+        // index is built again while loading
+        ULDB.saveData();
+        ULDB.clearData();
+        assertThat(ULDB.findReferrers(second).isEmpty());
+        ULDB.loadData();
+        assertThat(ULDB.findReferrers(Apple.class, second.getId(), Basket.class).get(0).getId() == basket.getId());
+        assertThat(ULDB.findReferrers(first).size() == 1);
+
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.deleteAllData();
+        ULDB.clearData();
+    }
+
+    private static void projectionTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.loadData();
+        for (int i = 1; i <= 3; i++) {
+            Apple apple = new Apple();
+            apple.setColor("color" + i);
+            apple.setWeight(i);
+            ULDB.saveOrUpdate(apple);
+        }
+        Basket basket = new Basket();
+        basket.getApples().add(ULDB.get(Apple.class, 1L));
+        basket.getCollectors().add("Ann");
+        ULDB.saveOrUpdate(basket);
+
+        List<Apple> apples = ULDB.project(Apple.class, "color");
+        assertThat(apples.size() == 3 && apples.get(0) != ULDB.get(Apple.class, apples.get(0).getId()));
+        for (Apple apple : apples) {
+            assertThat(apple.getColor().equals("color" + apple.getId()) && apple.getWeight() == 0);
+        }
+        assertThat(ULDB.project(Apple.class, "size").isEmpty());
+
+        for (ULDB.Layout layout : ULDB.Layout.values()) {
+            // classes not loaded yet are read from file
+            ULDB.setLayout(layout);
+            ULDB.saveData();
+            ULDB.clearData();
+            ULDB.setLazyLoading(true);
+            ULDB.loadData();
+            apples = ULDB.project(Apple.class, "Weight");
+            assertThat(apples.size() == 3);
+            for (Apple apple : apples) {
+                assertThat(apple.getWeight() == apple.getId() && apple.getColor() == null);
+            }
+            List<Basket> baskets = ULDB.project(Basket.class, "collectors");
+            assertThat(baskets.get(0).getCollectors().get(0).equals("Ann") && baskets.get(0).getApples().isEmpty());
+            assertThat(!ULDB.getMetrics().getObjectCounts().containsKey(Apple.class.getName()));
+            ULDB.setLazyLoading(false);
+            ULDB.clearData();
+            ULDB.loadData();
+        }
+
+        // serialized objects decode only requested values
+        ULDB.clearData();
+        ULDB.setStorageMode(ULDB.StorageMode.OFF_HEAP);
+        ULDB.loadData();
+        apples = ULDB.project(Apple.class, "weight");
+        assertThat(apples.size() == 3 && apples.get(2).getWeight() == apples.get(2).getId() && apples.get(2).getColor() == null);
+
+        ULDB.clearData();
+        ULDB.setStorageMode(ULDB.StorageMode.HEAP);
+        ULDB.setLayout(ULDB.Layout.ROWS);
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.deleteAllData();
+    }
+
+    private static void backupTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.loadData();
+        for (int i = 1; i <= 10_000; i++) {
+            Apple apple = new Apple();
+            apple.setColor("color" + i);
+            apple.setWeight(i);
+            ULDB.saveOrUpdate(apple);
+        }
+        File backupFile = new File("tmp-backup.txt");
+        ULDB.setBackupRateLimit(256 * 1024);
+        ULDB.Backup backup = ULDB.backup(backupFile.toPath());
+        assertThat(backup != null && !backup.isDone());
+        assertThat(ULDB.backup(Paths.get("tmp-other-backup.txt")) == null);
+
+        // changes done while backup is running are not in backup
+        Apple changed = new Apple();
+        changed.setId(1);
+        changed.setColor("changed");
+        ULDB.saveOrUpdate(changed);
+        ULDB.delete(ULDB.get(Apple.class, 2L));
+        Apple added = new Apple();
+        ULDB.saveOrUpdate(added);
+        assertThat(backup.await() && backup.isDone() && backup.getProgress() == 1);
+        assertThat(backup.getBytesWritten() == backup.getTotalBytes() && backupFile.length() == backup.getTotalBytes());
+        assertThat(new File(backupFile.getPath() + ".idx").exists() && !new File(backupFile.getPath() + ".tmp").exists());
+        assertThat(ULDB.get(Apple.class, 1L).getColor().equals("changed") && ULDB.count(Apple.class) == 10_000);
+        ULDB.saveData();
+
+        ULDB.setFilename(backupFile.getPath());
+        ULDB.clearData();
+        ULDB.loadData(Apple.class);
+        assertThat(ULDB.count(Apple.class) == 10_000 && ULDB.get(Apple.class, 1L).getColor().equals("color1"));
+        assertThat(ULDB.get(Apple.class, 2L) != null && ULDB.get(Apple.class, added.getId()) == null);
+        ULDB.deleteAllData();
+
+        // in off-heap mode objects are copies, so one changed in place before saving keeps its previous state too
+        ULDB.setFilename("tmp.txt");
+        ULDB.setStorageMode(ULDB.StorageMode.OFF_HEAP);
+        ULDB.clearData();
+        ULDB.loadData();
+        ULDB.setBackupRateLimit(256 * 1024);
+        backup = ULDB.backup(backupFile.toPath());
+        Apple mutated = ULDB.get(Apple.class, 3L);
+        mutated.setColor("mutated");
+        ULDB.saveOrUpdate(mutated);
+        assertThat(backup.await() && ULDB.get(Apple.class, 3L).getColor().equals("mutated"));
+        ULDB.saveData();
+        ULDB.setStorageMode(ULDB.StorageMode.HEAP);
+
+        ULDB.setFilename(backupFile.getPath());
+        ULDB.clearData();
+        ULDB.loadData(Apple.class);
+        assertThat(ULDB.get(Apple.class, 3L).getColor().equals("color3"));
+        ULDB.deleteAllData();
+
+        // cancelled backup does not replace file
+        ULDB.setFilename("tmp.txt");
+        ULDB.clearData();
+        ULDB.loadData();
+        ULDB.setBackupRateLimit(1024);
+        backup = ULDB.backup(backupFile.toPath());
+        backup.cancel();
+        assertThat(!backup.await() && !backupFile.exists() && backup.getProgress() < 1);
+
+        ULDB.setBackupRateLimit(64L << 20);
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.deleteAllData();
+    }
+
+    private static void asyncTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.loadDataAsync().join();
+        long saves = ULDB.getMetrics().getSaveDataLatency().getCount();
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        for (int i = 1; i <= 500; i++) {
+            Apple apple = new Apple();
+            apple.setWeight(i);
+            futures.add(ULDB.saveAsync(apple));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        assertThat(futures.stream().map(CompletableFuture::join).distinct().filter(id -> id > 0).count() == 500);
+        assertThat(ULDB.count(Apple.class) == 500);
+        // concurrent writes share saves
+        assertThat(ULDB.getMetrics().getSaveDataLatency().getCount() - saves < 500);
+
+        // objects of one class added from many threads at once get unique ids, none is lost
+        ULDB.setActionLimitBeforeSaving(Integer.MAX_VALUE);
+        futures.clear();
+        for (int i = 0; i < 20_000; i++) {
+            futures.add(ULDB.saveAsync(new Apple()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        assertThat(ULDB.count(Apple.class) == 20_500 && ULDB.getMetrics().getPendingActions() == 20_000);
+        for (CompletableFuture<Long> future : futures) {
+            ULDB.deleteAsync(ULDB.get(Apple.class, future.join())).join();
+        }
+        assertThat(ULDB.count(Apple.class) == 500);
+        ULDB.setActionLimitBeforeSaving(0);
+        assertThat(ULDB.saveAsync(null).join() == -1L);
+
+        Apple apple = ULDB.getAsync(Apple.class, 1L).join();
+        assertThat(apple != null && ULDB.deleteAsync(apple).join() && !ULDB.deleteAsync(apple).join());
+        ULDB.saveDataAsync().join();
+        ULDB.clearData();
+        ULDB.setLazyLoading(true);
+        ULDB.loadDataAsync().join();
+        assertThat(ULDB.getAsync(Apple.class, 1L).join() == null && ULDB.getAsync(Apple.class, 2L).join().getWeight() > 0);
+        assertThat(ULDB.count(Apple.class) == 499);
+
+        ULDB.setLazyLoading(false);
+        ULDB.deleteAllData();
+    }
+
+    private static void heapFootprintTest() {
+        ULDB.setFilename("tmp.txt");
+        ULDB.setActionLimitBeforeSaving(-1);
+        ULDB.loadData();
+        for (int i = 0; i < 1000; i++) {
+            Apple apple = new Apple();
+            apple.setColor(i % 2 == 0 ? "red" : "green");
+            apple.setWeight(i);
+            ULDB.saveOrUpdate(apple);
+        }
+        Basket basket = new Basket();
+        for (int i = 0; i < 100; i++) {
+            basket.getCollectors().add("collector" + i);
+        }
+        basket.getApples().add(ULDB.get(Apple.class, 1L));
+        ULDB.saveOrUpdate(basket);
+
+        ULDB.HeapFootprint apples = ULDB.getHeapFootprint(Apple.class);
+        assertThat(apples.getRecords() == 1000 && apples.getOffHeapBytes() == 0);
+        assertThat(apples.getAverageRecordBytes() > 100 && apples.getAverageRecordBytes() < 300);
+        // strings of list are counted, apples only in their own class
+        ULDB.HeapFootprint baskets = ULDB.getHeapFootprints().get(Basket.class.getName());
+        assertThat(baskets.getRecords() == 1 && baskets.getHeapBytes() > 100 * 40 && baskets.getHeapBytes() < 100 * 100);
+        assertThat(ULDB.getHeapFootprint(Train.class).getRecords() == 0);
+
+        BlockingQueue<ULDB.HeapFootprint> exceeded = new LinkedBlockingQueue<>();
+        ULDB.setHeapBudget(Apple.class, 10_000);
+        ULDB.setHeapBudget(Basket.class, 1_000_000);
+        ULDB.setHeapBudgetListener((footprint, budget) -> exceeded.add(footprint));
+        long exceededCount = ULDB.getMetrics().getHeapBudgetExceededCount();
+        ULDB.setHeapSamplingInterval(20);
+        try {
+            ULDB.HeapFootprint footprint = exceeded.poll(5, TimeUnit.SECONDS);
+            assertThat(footprint != null && footprint.getClassName().equals(Apple.class.getName()));
+            // class over budget is reported once
+            assertThat(exceeded.poll(200, TimeUnit.MILLISECONDS) == null);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        assertThat(ULDB.getMetrics().getHeapBudgetExceededCount() == exceededCount + 1);
+        assertThat(ULDB.getMetrics().getSampledHeapBytes().get(Apple.class.getName()) == apples.getTotalBytes());
+        ULDB.setHeapSamplingInterval(0);
+        ULDB.setHeapBudget(Apple.class, 0);
+        ULDB.setHeapBudget(Basket.class, 0);
+        ULDB.setHeapBudgetListener(null);
+
+        ULDB.saveData();
+        ULDB.clearData();
+        ULDB.setStorageMode(ULDB.StorageMode.OFF_HEAP);
+        ULDB.loadData();
+        apples = ULDB.getHeapFootprint(Apple.class);
+        assertThat(apples.getRecords() == 1000 && apples.getOffHeapBytes() > 0 && apples.getHeapBytes() > 0);
+
+        ULDB.clearData();
+        ULDB.setStorageMode(ULDB.StorageMode.HEAP);
+        ULDB.setActionLimitBeforeSaving(0);
+        ULDB.deleteAllData();
+    }
+
+    public static class Harvest {
+        private long id;
+        private Boolean ripe = Boolean.TRUE;
+
+        public long getId() {
+            return id;
+        }
+
+        public void setId(long id) {
+            this.id = id;
+        }
+
+        public Boolean getRipe() {
+            return ripe;
+        }
+
+        public boolean isRipe() {
+            return Boolean.TRUE.equals(ripe);
+        }
+
+        public void setRipe(Boolean ripe) {
+            this.ripe = ripe;
+        }
+    }
+}